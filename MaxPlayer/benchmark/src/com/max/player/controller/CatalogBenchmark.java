@@ -0,0 +1,352 @@
+package com.max.player.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+/**
+ * Measures the hot paths of {@link MusicRetriever} on the JVM, against synthetic libraries of
+ * 1k to 500k tracks: loading the catalog with prepare(), with and without LIMIT paging, drawing
+ * songs with getRandomItem(), saving the catalog snapshot and loading it with loadSnapshot(), and
+ * search(). For each it reports the median time of a few measured runs after warm-up, the bytes
+ * allocated per run, and for prepare() the heap the catalog and its indexes retain.
+ *
+ * prepare() runs against a {@link RowsResolver} that answers its queries from rows made up
+ * front, as a cursor window would hold them, so everything from the cursor on is the app's own
+ * code; the cost of MediaProvider's side of the query is not part of it, since that needs a
+ * device. The framework classes the app code touches are the stand-ins in ../stubs.
+ *
+ * Run it with "ant run" in this directory; "ant run -Dsizes=1000,20000" picks the sizes.
+ */
+public class CatalogBenchmark {
+    static final int WARMUP_RUNS = 3;
+    static final int MEASURED_RUNS = 5;
+    static final int DEFAULT_DRAWS = 1000000;
+
+    private static final int[] DEFAULT_SIZES = { 1000, 10000, 100000, 500000 };
+    private static final String[] QUERIES = { "love", "the b", "zz", "song 12" };
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /** One column per MediaStore column we read, like a cursor window. */
+    static class Rows {
+        final int count;
+        final long[] ids;
+        final String[] artists;
+        final String[] titles;
+        final String[] albums;
+        final long[] albumIds;
+        final long[] durations;
+        final String[] paths;
+
+        Rows(int count, long seed) {
+            this.count = count;
+            ids = new long[count];
+            artists = new String[count];
+            titles = new String[count];
+            albums = new String[count];
+            albumIds = new long[count];
+            durations = new long[count];
+            paths = new String[count];
+
+            // a library has far fewer artists and albums than tracks
+            Random random = new Random(seed);
+            String[] artistNames = names(random, Math.max(1, count / 40), 2);
+            int albumCount = Math.max(1, count / 10);
+            String[] albumNames = names(random, albumCount, 3);
+            for (int i = 0; i < count; i++) {
+                int album = random.nextInt(albumCount);
+                ids[i] = i + 1;
+                artists[i] = artistNames[album % artistNames.length];
+                titles[i] = "Song " + i + " " + WORDS[random.nextInt(WORDS.length)];
+                albums[i] = albumNames[album];
+                albumIds[i] = album + 1;
+                durations[i] = 60000 + random.nextInt(400000);
+                paths[i] = "/storage/emulated/0/Music/" + artists[i] + "/" + albums[i] + "/"
+                        + titles[i] + ".mp3";
+            }
+        }
+    }
+
+    /**
+     * Answers MusicRetriever's queries from the rows, the way MediaProvider would: the rows with
+     * an _ID above the first selection argument, in _ID order, up to the LIMIT at the end of the
+     * sort order if there is one. Like newer providers, it can refuse LIMIT there instead.
+     */
+    static class RowsResolver extends ContentResolver {
+        final Rows rows;
+        final boolean rejectLimit;
+
+        RowsResolver(Rows rows, boolean rejectLimit) {
+            this.rows = rows;
+            this.rejectLimit = rejectLimit;
+        }
+
+        @Override
+        protected Cursor onQuery(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            long afterId = selectionArgs != null ? Long.parseLong(selectionArgs[0]) : -1;
+            int from = Arrays.binarySearch(rows.ids, afterId + 1);
+            if (from < 0) from = -from - 1;
+            int to = rows.count;
+            int limit = sortOrder != null ? sortOrder.indexOf(" LIMIT ") : -1;
+            if (limit >= 0) {
+                if (rejectLimit) throw new IllegalArgumentException("Invalid token LIMIT");
+                to = (int) Math.min(to, from + Long.parseLong(sortOrder.substring(limit + 7)));
+            }
+            return new RowsCursor(rows, projection, from, to);
+        }
+    }
+
+    /** A cursor over rows [from, to) of the given rows, with the given columns. */
+    static class RowsCursor implements Cursor {
+        private final Rows mRows;
+        private final String[] mProjection;
+        private final int mFrom;
+        private final int mCount;
+        private int mPosition = -1;
+
+        RowsCursor(Rows rows, String[] projection, int from, int to) {
+            mRows = rows;
+            mProjection = projection;
+            mFrom = from;
+            mCount = Math.max(0, to - from);
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public boolean moveToFirst() {
+            return moveToPosition(0);
+        }
+
+        public boolean moveToNext() {
+            return moveToPosition(mPosition + 1);
+        }
+
+        public boolean moveToPosition(int position) {
+            mPosition = Math.max(-1, Math.min(position, mCount));
+            return mPosition >= 0 && mPosition < mCount;
+        }
+
+        public int getColumnIndex(String columnName) {
+            for (int i = 0; i < mProjection.length; i++) {
+                if (mProjection[i].equals(columnName)) return i;
+            }
+            return -1;
+        }
+
+        public String getString(int columnIndex) {
+            String column = mProjection[columnIndex];
+            int row = mFrom + mPosition;
+            if (column.equals(MediaStore.Audio.Media.ARTIST)) return mRows.artists[row];
+            if (column.equals(MediaStore.Audio.Media.TITLE)) return mRows.titles[row];
+            if (column.equals(MediaStore.Audio.Media.ALBUM)) return mRows.albums[row];
+            if (column.equals(MediaStore.Audio.Media.DATA)) return mRows.paths[row];
+            return String.valueOf(getLong(columnIndex));
+        }
+
+        public long getLong(int columnIndex) {
+            String column = mProjection[columnIndex];
+            int row = mFrom + mPosition;
+            if (column.equals(MediaStore.Audio.Media._ID)) return mRows.ids[row];
+            if (column.equals(MediaStore.Audio.Media.ALBUM_ID)) return mRows.albumIds[row];
+            if (column.equals(MediaStore.Audio.Media.DURATION)) return mRows.durations[row];
+            if (column.equals(MediaStore.Audio.Media.DATE_MODIFIED)) return 1000000000L;
+            return 0;
+        }
+
+        public void close() {
+        }
+    }
+
+    interface Run {
+        /** Does one run and returns something derived from its work, so it can't be elided. */
+        long run() throws Exception;
+    }
+
+    static class Result {
+        final long medianNanos;
+        final long allocatedBytes;
+
+        Result(long medianNanos, long allocatedBytes) {
+            this.medianNanos = medianNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    static long sSink;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0 && args[0].length() > 0) {
+            String[] parts = args[0].split(",");
+            sizes = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        File snapshotFile = File.createTempFile("catalog", ".snapshot");
+        snapshotFile.deleteOnExit();
+
+        System.out.println("tracks      benchmark            median ms     ops/s   alloc/run  retained");
+        for (int size : sizes) {
+            benchmarkSize(size, snapshotFile);
+        }
+        System.out.println("(sink " + sSink + ")");
+    }
+
+    private static void benchmarkSize(final int size, final File snapshotFile) throws Exception {
+        final Rows rows = new Rows(size, 42);
+
+        Result prepare = measure(new Run() {
+            public long run() {
+                MusicRetriever retriever = new MusicRetriever(new RowsResolver(rows, false));
+                retriever.prepare();
+                return retriever.mCatalog.count();
+            }
+        });
+        long retained = retainedBytes(rows);
+        print(size, "prepare", prepare, size, retained);
+
+        Result unlimited = measure(new Run() {
+            public long run() {
+                MusicRetriever retriever = new MusicRetriever(new RowsResolver(rows, true));
+                retriever.prepare();
+                return retriever.mCatalog.count();
+            }
+        });
+        print(size, "prepare, no LIMIT", unlimited, size, -1);
+
+        final MusicRetriever library = new MusicRetriever(new RowsResolver(rows, false));
+        library.prepare();
+
+        final int draws = Math.max(DEFAULT_DRAWS, size);
+        Result random = measure(new Run() {
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < draws; i++) sum += library.getRandomItem().getId();
+                return sum;
+            }
+        });
+        print(size, "getRandomItem", random, draws, -1);
+
+        Result save = measure(new Run() {
+            public long run() throws IOException {
+                // what prepare() and sync() do to save the catalog
+                CatalogSnapshot snapshot;
+                synchronized (library) {
+                    snapshot = CatalogSnapshot.capture(library.mCatalog, size, 0);
+                }
+                snapshot.writeTo(snapshotFile);
+                return snapshotFile.length();
+            }
+        });
+        print(size, "snapshot save", save, 1, -1);
+
+        Result load = measure(new Run() {
+            public long run() {
+                MusicRetriever restored = new MusicRetriever(null, snapshotFile);
+                if (!restored.loadSnapshot()) throw new IllegalStateException("No snapshot");
+                return restored.mCatalog.count();
+            }
+        });
+        print(size, "loadSnapshot", load, 1, -1);
+
+        Result search = measure(new Run() {
+            public long run() {
+                long found = 0;
+                for (String query : QUERIES) found += library.search(query, 50).size();
+                return found;
+            }
+        });
+        print(size, "search", search, QUERIES.length, -1);
+    }
+
+    private static Result measure(Run run) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) sSink += run.run();
+
+        long[] nanos = new long[MEASURED_RUNS];
+        long allocated = 0;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            sSink += run.run();
+            nanos[i] = System.nanoTime() - start;
+            allocated += allocatedBytes() - allocatedBefore;
+        }
+        Arrays.sort(nanos);
+        return new Result(nanos[MEASURED_RUNS / 2], allocated / MEASURED_RUNS);
+    }
+
+    /** Heap held by a catalog and indexes of the rows, beyond the rows themselves. */
+    private static long retainedBytes(Rows rows) {
+        long before = usedHeap();
+        MusicRetriever retriever = new MusicRetriever(new RowsResolver(rows, false));
+        retriever.prepare();
+        long after = usedHeap();
+        sSink += retriever.mCatalog.count();
+        return after - before;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // per-thread allocation counting is a HotSpot extension; without it we report 0
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static void print(int size, String name, Result result, long ops, long retained) {
+        double ms = result.medianNanos / 1e6;
+        double opsPerSecond = ops * 1e9 / Math.max(1, result.medianNanos);
+        System.out.println(String.format("%-10d  %-18s %11.2f %10.0f %10s %9s", size, name, ms,
+                opsPerSecond, bytes(result.allocatedBytes), retained < 0 ? "" : bytes(retained)));
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes < 10 * 1024) return bytes + "B";
+        if (bytes < 10 * 1024 * 1024) return (bytes / 1024) + "K";
+        return (bytes / (1024 * 1024)) + "M";
+    }
+
+    private static String[] names(Random random, int count, int words) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int w = 0; w < words; w++) {
+                if (w > 0) name.append(' ');
+                name.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            names[i] = name.append(' ').append(i).toString();
+        }
+        return names;
+    }
+
+    private static final String[] WORDS = {
+            "the", "love", "night", "blue", "river", "fire", "heart", "dream", "road", "light",
+            "black", "summer", "rain", "gold", "wild", "moon", "city", "song", "home", "stone",
+            "b\u00e9b\u00e9", "m\u00fcller", "caf\u00e9", "se\u00f1or", "zz top"
+    };
+}
@@ -0,0 +1,288 @@
+package com.max.player.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks {@link CachingProxy} and {@link StreamCache} on the JVM, against an HTTP server of our
+ * own on the loopback interface that serves a made-up stream and records the ranges it is asked
+ * for: a stream played through the proxy arrives whole, playing it again doesn't touch the
+ * server, a seek gets the right bytes, and when the server drops the connection in the middle of
+ * a stream, or sends a garbled Content-Range, the proxy asks again with a Range request from
+ * where it was, without the player noticing. Requests that didn't come from the proxy's own URLs,
+ * or that it can't make sense of, get an error, and the proxy carries on.
+ *
+ * Run it with "ant check" in this directory. It throws, and the build fails, at the first check
+ * that doesn't hold.
+ */
+public class CachingProxyCheck {
+    static final int STREAM_SIZE = 1024 * 1024 + 123;
+
+    public static void main(String[] args) throws Exception {
+        byte[] stream = new byte[STREAM_SIZE];
+        new Random(42).nextBytes(stream);
+        File dir = createTempDir();
+        TestServer server = new TestServer(stream);
+        server.start();
+        CachingProxy proxy = new CachingProxy(new StreamCache(dir, 64 * 1024 * 1024));
+        proxy.start();
+        try {
+            String url = server.getUrl("/song.mp3");
+            String proxyUrl = proxy.getUrl(url);
+
+            // the first play goes to the server, and arrives whole
+            check("first play", Arrays.equals(stream, get(proxyUrl, -1)));
+            int requests = server.getRequests().size();
+            check("first play went to the server", requests > 0);
+
+            // playing it again needs no network
+            check("replay", Arrays.equals(stream, get(proxyUrl, -1)));
+            check("replay came from the cache", server.getRequests().size() == requests);
+
+            // a seek, like MediaPlayer does it
+            int from = STREAM_SIZE / 3;
+            check("seek", Arrays.equals(Arrays.copyOfRange(stream, from, STREAM_SIZE),
+                    get(proxyUrl, from)));
+            check("seek came from the cache", server.getRequests().size() == requests);
+
+            // the server hangs up part way through the first response
+            int dropAt = STREAM_SIZE / 2 + 17;
+            server.dropNextResponseAfter(dropAt);
+            String droppedUrl = proxy.getUrl(server.getUrl("/dropped.mp3"));
+            check("dropped connection", Arrays.equals(stream, get(droppedUrl, -1)));
+            List<Long> all = server.getRequests();
+            List<Long> resumed = all.subList(requests, all.size());
+            check("resumed with a range request from the drop, got " + resumed,
+                    resumed.equals(Arrays.asList(0L, (long) dropAt)));
+
+            // a server that garbles the Content-Range of its answer to a seek, once
+            int seekAt = STREAM_SIZE / 4;
+            server.garbleNextContentRange();
+            int before = server.getRequests().size();
+            String garbledUrl = proxy.getUrl(server.getUrl("/garbled.mp3"));
+            check("garbled Content-Range", Arrays.equals(
+                    Arrays.copyOfRange(stream, seekAt, STREAM_SIZE), get(garbledUrl, seekAt)));
+            all = server.getRequests();
+            List<Long> retried = all.subList(before, all.size());
+            check("asked again after the garbled header, got " + retried,
+                    retried.equals(Arrays.asList((long) seekAt, (long) seekAt)));
+
+            // what other apps on the device could send it
+            String base = proxyUrl.substring(0, proxyUrl.lastIndexOf('/') + 1);
+            String noToken = "http://127.0.0.1:" + new URL(proxyUrl).getPort() + "/"
+                    + URLEncoder.encode(url, "UTF-8");
+            check("no token", status(noToken, null) == 404);
+            check("ftp: URL", status(proxy.getUrl("ftp://127.0.0.1/song.mp3"), null) == 400);
+            check("bad escape", status(base + "%zz", null) == 400);
+            check("range too large", status(proxyUrl, "bytes=99999999999999999999-") == 400);
+            check("still serving", Arrays.equals(stream, get(proxyUrl, -1)));
+
+            System.out.println("All checks passed.");
+        } finally {
+            proxy.shutdown();
+            server.shutdown();
+            deleteTree(dir);
+        }
+    }
+
+    static void check(String name, boolean holds) {
+        if (!holds) throw new AssertionError("Check failed: " + name);
+        System.out.println("ok  " + name);
+    }
+
+    /** Reads the URL from the given offset, or all of it if the offset is negative. */
+    static byte[] get(String url, long from) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (from >= 0) connection.setRequestProperty("Range", "bytes=" + from + "-");
+        try {
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) bytes.write(buffer, 0, n);
+            in.close();
+            return bytes.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /** Returns the status code of a GET of the URL, with the given Range header if not null. */
+    static int status(String url, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (range != null) connection.setRequestProperty("Range", range);
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    static File createTempDir() throws IOException {
+        File dir = File.createTempFile("streams", "");
+        if (!dir.delete() || !dir.mkdir()) throw new IOException("Could not create " + dir);
+        return dir;
+    }
+
+    static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteTree(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Serves one stream, whatever the path, honoring "bytes=N-" and "bytes=N-M" ranges, and
+     * records the start of the range of each request.
+     */
+    static class TestServer {
+        private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+        private final byte[] mStream;
+        private final List<Long> mRequests = new ArrayList<Long>();
+        private ServerSocket mServerSocket;
+        private int mDropAfter = -1; // bytes of body after which to hang up, once
+        private boolean mGarbleContentRange; // once
+
+        TestServer(byte[] stream) {
+            mStream = stream;
+        }
+
+        void start() throws IOException {
+            mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        final Socket client;
+                        try {
+                            client = mServerSocket.accept();
+                        } catch (IOException e) {
+                            return; // shut down
+                        }
+                        Thread handler = new Thread(new Runnable() {
+                            public void run() {
+                                try {
+                                    serve(client);
+                                } catch (IOException e) {
+                                    // the proxy hung up
+                                } finally {
+                                    try {
+                                        client.close();
+                                    } catch (IOException e) {
+                                        // nothing left to do with it
+                                    }
+                                }
+                            }
+                        }, "TestServerClient");
+                        handler.setDaemon(true);
+                        handler.start();
+                    }
+                }
+            }, "TestServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+        }
+
+        String getUrl(String path) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+        }
+
+        synchronized List<Long> getRequests() {
+            return new ArrayList<Long>(mRequests);
+        }
+
+        /** Makes the next response end after the given number of bytes of its body. */
+        synchronized void dropNextResponseAfter(int bytes) {
+            mDropAfter = bytes;
+        }
+
+        /** Makes the next 206 response have a Content-Range too large to parse. */
+        synchronized void garbleNextContentRange() {
+            mGarbleContentRange = true;
+        }
+
+        private void serve(Socket client) throws IOException {
+            InputStream in = client.getInputStream();
+            String line = readLine(in);
+            if (line == null) return;
+            String range = null;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                if (line.regionMatches(true, 0, "Range:", 0, 6)) range = line.substring(6).trim();
+            }
+
+            long start = 0;
+            long end = mStream.length - 1;
+            if (range != null) {
+                Matcher m = RANGE.matcher(range);
+                if (m.matches()) {
+                    start = Long.parseLong(m.group(1));
+                    if (m.group(2).length() > 0) {
+                        end = Math.min(end, Long.parseLong(m.group(2)));
+                    }
+                }
+            }
+            int dropAfter;
+            boolean garble;
+            synchronized (this) {
+                mRequests.add(start);
+                dropAfter = mDropAfter;
+                mDropAfter = -1;
+                garble = mGarbleContentRange && range != null;
+                if (garble) mGarbleContentRange = false;
+            }
+
+            OutputStream out = client.getOutputStream();
+            StringBuilder headers = new StringBuilder();
+            headers.append(range != null ? "HTTP/1.1 206 Partial Content\r\n"
+                    : "HTTP/1.1 200 OK\r\n");
+            headers.append("Content-Type: audio/mpeg\r\n");
+            headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            if (garble) {
+                headers.append("Content-Range: bytes 99999999999999999999-0/1\r\n");
+            } else if (range != null) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(mStream.length).append("\r\n");
+            }
+            headers.append("Connection: close\r\n\r\n");
+            out.write(headers.toString().getBytes("US-ASCII"));
+            int length = (int) (end - start + 1);
+            if (dropAfter >= 0) length = Math.min(length, dropAfter); // and then hang up
+            out.write(mStream, (int) start, length);
+            out.flush();
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package android.content;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Stand-in for the framework class, for running app code on the desktop JVM. Like the real one,
+ * query() is final and hands the query to whatever provides the data; here that is a subclass,
+ * through {@link #onQuery}.
+ */
+public abstract class ContentResolver {
+    public final Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        return onQuery(uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    protected abstract Cursor onQuery(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder);
+
+    public final void registerContentObserver(Uri uri, boolean notifyForDescendents,
+            ContentObserver observer) {
+    }
+
+    public final void unregisterContentObserver(ContentObserver observer) {
+    }
+}
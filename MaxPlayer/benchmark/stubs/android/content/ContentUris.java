@@ -0,0 +1,10 @@
+package android.content;
+
+import android.net.Uri;
+
+/** Stand-in for the framework class, for running app code on the desktop JVM. */
+public class ContentUris {
+    public static Uri withAppendedId(Uri contentUri, long id) {
+        return Uri.parse(contentUri + "/" + id);
+    }
+}
@@ -0,0 +1,12 @@
+package android.database;
+
+import android.os.Handler;
+
+/** Stand-in for the framework class, for running app code on the desktop JVM. */
+public abstract class ContentObserver {
+    public ContentObserver(Handler handler) {
+    }
+
+    public void onChange(boolean selfChange) {
+    }
+}
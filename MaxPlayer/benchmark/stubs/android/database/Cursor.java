@@ -0,0 +1,23 @@
+package android.database;
+
+/**
+ * Stand-in for the framework interface, for running app code on the desktop JVM: the methods
+ * the app calls, with the same signatures.
+ */
+public interface Cursor {
+    int getCount();
+
+    boolean moveToFirst();
+
+    boolean moveToNext();
+
+    boolean moveToPosition(int position);
+
+    int getColumnIndex(String columnName);
+
+    String getString(int columnIndex);
+
+    long getLong(int columnIndex);
+
+    void close();
+}
@@ -0,0 +1,19 @@
+package android.net;
+
+/** Stand-in for the framework class, for running app code on the desktop JVM. */
+public class Uri {
+    private final String mUri;
+
+    private Uri(String uri) {
+        mUri = uri;
+    }
+
+    public static Uri parse(String uri) {
+        return new Uri(uri);
+    }
+
+    @Override
+    public String toString() {
+        return mUri;
+    }
+}
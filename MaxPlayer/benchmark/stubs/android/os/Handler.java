@@ -0,0 +1,11 @@
+package android.os;
+
+/** Stand-in for the framework class, for running app code on the desktop JVM. */
+public class Handler {
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return false;
+    }
+
+    public final void removeCallbacks(Runnable r) {
+    }
+}
@@ -0,0 +1,9 @@
+package android.os;
+
+/** Stand-in for the framework class, for running app code on the desktop JVM. */
+public class Process {
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    public static void setThreadPriority(int priority) {
+    }
+}
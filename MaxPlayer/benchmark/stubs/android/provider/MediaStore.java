@@ -0,0 +1,28 @@
+package android.provider;
+
+import android.net.Uri;
+
+/**
+ * Stand-in for the framework class, for running app code on the desktop JVM: the columns the
+ * app reads, with the values the real ones have.
+ */
+public final class MediaStore {
+    public static final String UNKNOWN_STRING = "<unknown>";
+
+    public static final class Audio {
+        public static final class Media {
+            public static final Uri EXTERNAL_CONTENT_URI =
+                    Uri.parse("content://media/external/audio/media");
+
+            public static final String _ID = "_id";
+            public static final String DATA = "_data";
+            public static final String DATE_MODIFIED = "date_modified";
+            public static final String TITLE = "title";
+            public static final String ARTIST = "artist";
+            public static final String ALBUM = "album";
+            public static final String ALBUM_ID = "album_id";
+            public static final String DURATION = "duration";
+            public static final String IS_MUSIC = "is_music";
+        }
+    }
+}
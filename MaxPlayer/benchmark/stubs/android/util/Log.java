@@ -0,0 +1,16 @@
+package android.util;
+
+/** Stand-in for the framework class, for running app code on the desktop JVM; logs nothing. */
+public final class Log {
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+}
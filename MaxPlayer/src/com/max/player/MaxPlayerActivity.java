@@ -1,20 +1,38 @@
 package com.max.player;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.max.player.controller.MusicRetriever;
 import com.max.player.controller.MusicService;
+import com.max.player.interfaces.PlaybackStateListener;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
 
-public class MaxPlayerActivity extends Activity implements OnClickListener{
+public class MaxPlayerActivity extends Activity implements OnClickListener,
+		PlaybackStateListener {
 	 final String SUGGESTED_URL = "http://www.vorbis.com/music/Epoq-Lepidoptera.ogg";
 
 	    Button mPlayButton;
@@ -24,6 +42,24 @@ public class MaxPlayerActivity extends Activity implements OnClickListener{
 	    Button mStopButton;
 	    Button mEjectButton;
 
+	    // how many search results we show at most
+	    static final int MAX_SEARCH_RESULTS = 100;
+
+	    TextView mStatusText;
+	    EditText mSearchBox;
+	    ListView mSearchResults;
+	    ArrayAdapter<String> mSearchAdapter;
+	    List<MusicRetriever.Item> mSearchItems = new ArrayList<MusicRetriever.Item>();
+
+	    // searches run here, since they wait for the catalog's lock, which a sync holds while it
+	    // applies a batch; only the latest one counts
+	    ExecutorService mSearchExecutor;
+	    volatile int mSearchGeneration = 0;
+
+	    // the service and its catalog, while we are bound to the MusicService
+	    MusicService.LocalBinder mService;
+	    MusicRetriever mRetriever;
+
 	    @Override
 	    public void onCreate(Bundle savedInstanceState) {
 	        super.onCreate(savedInstanceState);
@@ -42,6 +78,126 @@ public class MaxPlayerActivity extends Activity implements OnClickListener{
 	        mRewindButton.setOnClickListener(this);
 	        mStopButton.setOnClickListener(this);
 	        mEjectButton.setOnClickListener(this);
+
+	        mStatusText = (TextView) findViewById(R.id.status);
+	        mSearchBox = (EditText) findViewById(R.id.searchbox);
+	        mSearchResults = (ListView) findViewById(R.id.searchresults);
+	        mSearchAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1);
+	        mSearchResults.setAdapter(mSearchAdapter);
+	        mSearchExecutor = Executors.newSingleThreadExecutor();
+
+	        mSearchBox.addTextChangedListener(new TextWatcher() {
+	            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+	            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+	            public void afterTextChanged(Editable s) {
+	                updateSearchResults();
+	            }
+	        });
+
+	        mSearchResults.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+	            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+	                // Ask the MusicService to play the song that was picked
+	                Intent i = new Intent(MusicService.ACTION_PLAY_ITEM);
+	                i.putExtra(MusicService.EXTRA_ITEM_ID, mSearchItems.get(position).getId());
+	                startService(i);
+	            }
+	        });
+	        mSearchResults.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+	            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+	                // Ask the MusicService to play the song after the ones already queued
+	                Intent i = new Intent(MusicService.ACTION_ENQUEUE);
+	                i.putExtra(MusicService.EXTRA_ITEM_ID, mSearchItems.get(position).getId());
+	                startService(i);
+	                Toast.makeText(MaxPlayerActivity.this, "Queued: " + mSearchItems.get(position).getTitle(),
+	                        Toast.LENGTH_SHORT).show();
+	                return true;
+	            }
+	        });
+	    }
+
+	    @Override
+	    protected void onStart() {
+	        super.onStart();
+	        // bind to the MusicService so we can search its catalog. Without BIND_AUTO_CREATE,
+	        // opening the activity doesn't start the service and its catalog load, and doesn't keep
+	        // it alive once it stops itself; we are connected when something starts it.
+	        bindService(new Intent(this, MusicService.class), mConnection, 0);
+	    }
+
+	    @Override
+	    protected void onStop() {
+	        super.onStop();
+	        if (mService != null) mService.removePlaybackStateListener(this);
+	        unbindService(mConnection);
+	        mService = null;
+	        mRetriever = null;
+	    }
+
+	    @Override
+	    protected void onDestroy() {
+	        super.onDestroy();
+	        mSearchExecutor.shutdownNow();
+	    }
+
+	    ServiceConnection mConnection = new ServiceConnection() {
+	        public void onServiceConnected(ComponentName name, IBinder service) {
+	            mService = (MusicService.LocalBinder) service;
+	            mRetriever = mService.getRetriever();
+	            mService.addPlaybackStateListener(MaxPlayerActivity.this);
+	            updateSearchResults();
+	        }
+
+	        public void onServiceDisconnected(ComponentName name) {
+	            mService = null;
+	            mRetriever = null;
+	        }
+	    };
+
+	    public void onPlaybackStateChanged(MusicService.State state, String songTitle) {
+	        if (state == MusicService.State.Playing || state == MusicService.State.Paused
+	                || state == MusicService.State.Preparing) {
+	            mStatusText.setText(songTitle + " (" + state.name().toLowerCase() + ")");
+	        } else {
+	            mStatusText.setText(state.name());
+	        }
+	    }
+
+	    /** Shows the songs matching the text of the search box, once they have been found. */
+	    void updateSearchResults() {
+	        final int generation = ++mSearchGeneration;
+	        final MusicRetriever retriever = mRetriever;
+	        final String query = mSearchBox.getText().toString();
+	        if (retriever == null) {
+	            showSearchResults(new ArrayList<MusicRetriever.Item>());
+	            return;
+	        }
+	        mSearchExecutor.execute(new Runnable() {
+	            public void run() {
+	                if (generation != mSearchGeneration) return; // typed over already
+	                final List<MusicRetriever.Item> items = retriever.search(query,
+	                        MAX_SEARCH_RESULTS);
+	                runOnUiThread(new Runnable() {
+	                    public void run() {
+	                        if (generation == mSearchGeneration) showSearchResults(items);
+	                    }
+	                });
+	            }
+	        });
+	    }
+
+	    void showSearchResults(List<MusicRetriever.Item> items) {
+	        mSearchItems.clear();
+	        mSearchItems.addAll(items);
+
+	        mSearchAdapter.setNotifyOnChange(false);
+	        mSearchAdapter.clear();
+	        for (MusicRetriever.Item item : mSearchItems) {
+	            mSearchAdapter.add(item.getArtist() == null ? item.getTitle()
+	                    : item.getTitle() + " - " + item.getArtist());
+	        }
+	        mSearchAdapter.notifyDataSetChanged();
 	    }
 
 	    public void onClick(View target) {
@@ -64,7 +220,7 @@ public class MaxPlayerActivity extends Activity implements OnClickListener{
 	    void showUrlDialog() {
 	        AlertDialog.Builder alertBuilder = new AlertDialog.Builder(this);
 	        alertBuilder.setTitle("Manual Input");
-	        alertBuilder.setMessage("Enter a URL (must be http://)");
+	        alertBuilder.setMessage("Enter a URL, or the path of a song or playlist");
 	        final EditText input = new EditText(this);
 	        alertBuilder.setView(input);
 
@@ -73,10 +229,12 @@ public class MaxPlayerActivity extends Activity implements OnClickListener{
 	        alertBuilder.setPositiveButton("Play!", new DialogInterface.OnClickListener() {
 	            public void onClick(DialogInterface dlg, int whichButton) {
 	                // Send an intent with the URL of the song to play. This is expected by
-	                // MusicService.
+	                // MusicService. The intent names the service, since a path or a
+	                // content: URI matches no data filter.
 	                Intent i = new Intent(MusicService.ACTION_URL);
 	                Uri uri = Uri.parse(input.getText().toString());
 	                i.setData(uri);
+	                i.setClass(MaxPlayerActivity.this, MusicService.class);
 	                startService(i);
 	            }
 	        });
@@ -0,0 +1,183 @@
+package com.max.player.controller;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import com.max.player.util.BitmapLruCache;
+
+/**
+ * Loads the artwork of MediaStore albums, by album id, on a background thread of its own. Images
+ * are decoded with a power-of-two inSampleSize so they come out no smaller than
+ * {@link #ARTWORK_SIZE} (what the lock screen remote control shows), as RGB_565, and are kept in a
+ * {@link BitmapLruCache} with a fixed byte budget; albums without artwork are remembered too.
+ *
+ * Callers never wait on a decode: {@link #get} only looks in the cache, {@link #load} queues the
+ * album ahead of anything else and reports back to the listener on the listener's handler, and
+ * {@link #prefetch} queues it behind everything else, for a song we expect to play next.
+ */
+class AlbumArtLoader {
+    static final String TAG = "AlbumArtLoader";
+
+    /** Size, in pixels, we want the shorter side of the artwork to have at least. */
+    static final int ARTWORK_SIZE = 320;
+
+    private static final Uri ALBUM_ART_URI = Uri.parse("content://media/external/audio/albumart");
+
+    private static final int MSG_LOAD = 1;
+    private static final int MSG_PREFETCH = 2;
+
+    interface Listener {
+        /** Called once an album asked for with {@link #load} is decoded; art is null if none. */
+        void onAlbumArtLoaded(long albumId, Bitmap art);
+    }
+
+    private final ContentResolver mResolver;
+    private final BitmapLruCache mCache;
+    private final Handler mListenerHandler;
+    private final Listener mListener;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // the last album asked for with load(); loads of earlier ones that are still queued can go
+    private volatile long mWantedAlbumId = -1;
+
+    AlbumArtLoader(ContentResolver resolver, long maxBytes, Handler listenerHandler,
+            Listener listener) {
+        mResolver = resolver;
+        mCache = new BitmapLruCache(maxBytes);
+        mListenerHandler = listenerHandler;
+        mListener = listener;
+
+        mThread = new HandlerThread("AlbumArt", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new DecodeHandler(mThread.getLooper());
+    }
+
+    /** Returns the cached artwork of the album, or null if it has none or is not cached. */
+    Bitmap get(long albumId) {
+        return mCache.get(albumId);
+    }
+
+    /** Whether we know about the artwork of the album, including that it has none. */
+    boolean isCached(long albumId) {
+        return mCache.contains(albumId);
+    }
+
+    /** Decodes the artwork of the album ahead of anything else, and tells the listener. */
+    void load(long albumId) {
+        if (albumId < 0) return;
+        mWantedAlbumId = albumId;
+        mHandler.sendMessageAtFrontOfQueue(
+                mHandler.obtainMessage(MSG_LOAD, Long.valueOf(albumId)));
+    }
+
+    /** Decodes the artwork of the album into the cache when there is nothing more urgent. */
+    void prefetch(long albumId) {
+        if (albumId < 0 || mCache.contains(albumId)) return;
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_PREFETCH, Long.valueOf(albumId)));
+    }
+
+    /** Drops whatever is queued and stops the decoding thread. */
+    void quit() {
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quit();
+        mCache.clear();
+    }
+
+    private class DecodeHandler extends Handler {
+        DecodeHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            final long albumId = (Long) msg.obj;
+            if (msg.what == MSG_LOAD && albumId != mWantedAlbumId) return; // skipped past it
+
+            final Bitmap art;
+            if (mCache.contains(albumId)) {
+                art = mCache.get(albumId);
+            } else {
+                art = decode(albumId);
+                mCache.put(albumId, art);
+            }
+            if (msg.what == MSG_LOAD) {
+                mListenerHandler.post(new Runnable() {
+                    public void run() {
+                        mListener.onAlbumArtLoaded(albumId, art);
+                    }
+                });
+            }
+        }
+    }
+
+    private Bitmap decode(long albumId) {
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = mResolver.openFileDescriptor(ContentUris.withAppendedId(ALBUM_ART_URI, albumId),
+                    "r");
+        } catch (FileNotFoundException e) {
+            return null; // the album has no artwork
+        }
+        if (pfd == null) return null;
+
+        try {
+            FileDescriptor fd = pfd.getFileDescriptor();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Out of memory decoding artwork of album " + albumId);
+            return null;
+        } finally {
+            try {
+                pfd.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+        }
+    }
+
+    /** Decodes a drawable resource the same way, for artwork we ship ourselves. */
+    static Bitmap decodeResource(Resources resources, int id) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(resources, id, options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeResource(resources, id, options);
+    }
+
+    /** Largest power of two that keeps both sides at or above ARTWORK_SIZE. */
+    static int sampleSize(int width, int height) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= ARTWORK_SIZE
+                && height / (sampleSize * 2) >= ARTWORK_SIZE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,267 @@
+package com.max.player.controller;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.max.player.util.StringDictionary;
+
+/**
+ * Binary image of a {@link TrackCatalog} and its sync watermarks, stored in app-private storage
+ * so that the next cold start can skip the MediaStore query.
+ *
+ * Layout (big endian): magic, version, watermarks, the artist, album and folder dictionaries,
+ * then one column at a time (ids, durations, album ids, dates modified, artist codes, album
+ * codes, titles, folder codes, file names), then a CRC32 of everything before it. Strings are a
+ * length-prefixed run of UTF-8 bytes. A file with the wrong magic, version or checksum is
+ * ignored, and the caller falls back to a full query.
+ */
+class CatalogSnapshot {
+    static final int MAGIC = 0x4d584354; // "MXCT"
+    static final int VERSION = 4;
+
+    long maxId;
+    long maxDateModified;
+
+    String[] artists;
+    String[] albums;
+    String[] folders;
+
+    int count;
+    long[] ids;
+    long[] durations;
+    long[] albumIds;
+    long[] datesModified;
+    int[] artistCodes;
+    int[] albumCodes;
+    String[] titles;
+    int[] folderCodes;
+    String[] fileNames;
+
+    /**
+     * Copies the live tracks of the catalog into a new snapshot. The caller must hold the
+     * catalog lock; the copy is cheap, and writing it out can then happen without the lock.
+     */
+    static CatalogSnapshot capture(TrackCatalog catalog, long maxId, long maxDateModified) {
+        CatalogSnapshot snapshot = new CatalogSnapshot();
+        snapshot.maxId = maxId;
+        snapshot.maxDateModified = maxDateModified;
+        snapshot.artists = toArray(catalog.getArtistDictionary());
+        snapshot.albums = toArray(catalog.getAlbumDictionary());
+        snapshot.folders = toArray(catalog.getFolderDictionary());
+
+        int count = catalog.count();
+        snapshot.count = count;
+        snapshot.ids = new long[count];
+        snapshot.durations = new long[count];
+        snapshot.albumIds = new long[count];
+        snapshot.datesModified = new long[count];
+        snapshot.artistCodes = new int[count];
+        snapshot.albumCodes = new int[count];
+        snapshot.titles = new String[count];
+        snapshot.folderCodes = new int[count];
+        snapshot.fileNames = new String[count];
+
+        int n = 0;
+        for (int position = 0; position < catalog.size() && n < count; position++) {
+            if (catalog.isRemoved(position)) continue;
+            snapshot.ids[n] = catalog.getId(position);
+            snapshot.durations[n] = catalog.getDuration(position);
+            snapshot.albumIds[n] = catalog.getAlbumId(position);
+            snapshot.datesModified[n] = catalog.getDateModified(position);
+            snapshot.artistCodes[n] = catalog.getArtistCode(position);
+            snapshot.albumCodes[n] = catalog.getAlbumCode(position);
+            snapshot.titles[n] = catalog.getTitle(position);
+            snapshot.folderCodes[n] = catalog.getFolderCode(position);
+            snapshot.fileNames[n] = catalog.getFileName(position);
+            n++;
+        }
+        return snapshot;
+    }
+
+    /** Materializes the i-th track of the snapshot. */
+    MusicRetriever.Item getItem(int i) {
+        String path = fileNames[i];
+        String folder = decode(folders, folderCodes[i]);
+        if (path != null && folder != null) path = folder + '/' + path;
+        return new MusicRetriever.Item(ids[i], decode(artists, artistCodes[i]), titles[i],
+                decode(albums, albumCodes[i]), albumIds[i], durations[i], path,
+                datesModified[i]);
+    }
+
+    /**
+     * Writes the snapshot to a temporary file next to the given one, then renames it over the
+     * original, so a crash half-way never leaves a truncated snapshot behind.
+     */
+    void writeTo(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean renamed = false;
+        try {
+            write(tmp);
+            renamed = tmp.renameTo(file);
+            if (!renamed) throw new IOException("Could not rename " + tmp + " to " + file);
+        } finally {
+            // whatever went wrong, don't leave a half-written snapshot lying around
+            if (!renamed) tmp.delete();
+        }
+    }
+
+    private void write(File tmp) throws IOException {
+        CRC32 crc = new CRC32();
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(fileOut, 64 * 1024), crc);
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(maxId);
+            out.writeLong(maxDateModified);
+            out.writeInt(artists.length);
+            writeStrings(out, artists, artists.length);
+            out.writeInt(albums.length);
+            writeStrings(out, albums, albums.length);
+            out.writeInt(folders.length);
+            writeStrings(out, folders, folders.length);
+
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) out.writeLong(ids[i]);
+            for (int i = 0; i < count; i++) out.writeLong(durations[i]);
+            for (int i = 0; i < count; i++) out.writeLong(albumIds[i]);
+            for (int i = 0; i < count; i++) out.writeLong(datesModified[i]);
+            for (int i = 0; i < count; i++) out.writeInt(artistCodes[i]);
+            for (int i = 0; i < count; i++) out.writeInt(albumCodes[i]);
+            writeStrings(out, titles, count);
+            for (int i = 0; i < count; i++) out.writeInt(folderCodes[i]);
+            writeStrings(out, fileNames, count);
+            out.flush();
+
+            // the checksum covers everything above, so it goes straight to the file
+            new DataOutputStream(fileOut).writeLong(crc.getValue());
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+    }
+
+    /**
+     * Reads a snapshot through a read-only memory mapping of the file. Returns null if the file
+     * does not exist, or is not a valid snapshot of the current version.
+     */
+    static CatalogSnapshot readFrom(File file) throws IOException {
+        if (!file.exists() || file.length() < 16) return null;
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+
+            int payloadLength = buffer.limit() - 8;
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return null;
+            if (checksum(buffer, payloadLength) != buffer.getLong(payloadLength)) return null;
+
+            buffer.position(8);
+            CatalogSnapshot snapshot = new CatalogSnapshot();
+            snapshot.maxId = buffer.getLong();
+            snapshot.maxDateModified = buffer.getLong();
+            snapshot.artists = readStrings(buffer, buffer.getInt());
+            snapshot.albums = readStrings(buffer, buffer.getInt());
+            snapshot.folders = readStrings(buffer, buffer.getInt());
+
+            int count = buffer.getInt();
+            snapshot.count = count;
+            snapshot.ids = new long[count];
+            buffer.asLongBuffer().get(snapshot.ids);
+            buffer.position(buffer.position() + count * 8);
+            snapshot.durations = new long[count];
+            buffer.asLongBuffer().get(snapshot.durations);
+            buffer.position(buffer.position() + count * 8);
+            snapshot.albumIds = new long[count];
+            buffer.asLongBuffer().get(snapshot.albumIds);
+            buffer.position(buffer.position() + count * 8);
+            snapshot.datesModified = new long[count];
+            buffer.asLongBuffer().get(snapshot.datesModified);
+            buffer.position(buffer.position() + count * 8);
+            snapshot.artistCodes = new int[count];
+            buffer.asIntBuffer().get(snapshot.artistCodes);
+            buffer.position(buffer.position() + count * 4);
+            snapshot.albumCodes = new int[count];
+            buffer.asIntBuffer().get(snapshot.albumCodes);
+            buffer.position(buffer.position() + count * 4);
+            snapshot.titles = readStrings(buffer, count);
+            snapshot.folderCodes = new int[count];
+            buffer.asIntBuffer().get(snapshot.folderCodes);
+            buffer.position(buffer.position() + count * 4);
+            snapshot.fileNames = readStrings(buffer, count);
+            return snapshot;
+        } catch (RuntimeException e) {
+            // a corrupt length sends us past the end of the buffer
+            throw new IOException("Corrupt catalog snapshot: " + e);
+        } finally {
+            in.close();
+        }
+    }
+
+    // CRC32.update(ByteBuffer) is not available on Android, so we feed it in chunks
+    private static long checksum(ByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        int remaining = length;
+        while (remaining > 0) {
+            int n = Math.min(chunk.length, remaining);
+            view.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+            remaining -= n;
+        }
+        return crc.getValue();
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == null) {
+                out.writeInt(-1);
+                continue;
+            }
+            byte[] bytes = values[i].getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer buffer, int count)
+            throws UnsupportedEncodingException {
+        String[] values = new String[count];
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getInt();
+            if (length < 0) continue;
+            if (length > bytes.length) bytes = new byte[Math.max(length, bytes.length * 2)];
+            buffer.get(bytes, 0, length);
+            values[i] = new String(bytes, 0, length, "UTF-8");
+        }
+        return values;
+    }
+
+    private static String[] toArray(StringDictionary dictionary) {
+        String[] values = new String[dictionary.size()];
+        for (int i = 0; i < values.length; i++) values[i] = dictionary.decode(i);
+        return values;
+    }
+
+    private static String decode(String[] dictionary, int code) {
+        return code < 0 ? null : dictionary[code];
+    }
+}
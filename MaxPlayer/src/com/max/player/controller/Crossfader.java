@@ -0,0 +1,111 @@
+package com.max.player.controller;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Fades one player out while another fades in, along equal-power curves, so the sum sounds
+ * about as loud all the way through. The volumes are set by a message on the handler every
+ * {@link #RAMP_STEP_MS}, and only while a fade is under way; in between fades the crossfader
+ * costs nothing.
+ *
+ * Both volumes are scaled by the volume set with {@link #setVolume(float)}, which is where the
+ * service puts the ducking volume while it has to be quiet, and each by its own song's loudness
+ * gain, so the fade goes between the two songs as loud as each of them plays on its own.
+ *
+ * Not thread-safe; {@link MusicService} only uses it on its playback thread.
+ */
+class Crossfader {
+    // how often the volumes move during a fade (ms); fine enough that no step can be heard
+    static final int RAMP_STEP_MS = 50;
+
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    private MediaPlayer mOutgoing;
+    private MediaPlayer mIncoming;
+    private float mOutgoingGain;
+    private float mIncomingGain;
+    private long mStartTime;
+    private int mDuration;
+    private float mVolume = 1.0f;
+
+    Crossfader(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    boolean isFading() {
+        return mIncoming != null;
+    }
+
+    /** Whether the player is one of the two of the fade under way. */
+    boolean isFading(MediaPlayer player) {
+        return player != null && (player == mIncoming || player == mOutgoing);
+    }
+
+    /**
+     * Starts fading from the outgoing player, which is playing, to the incoming one, which must
+     * be prepared; the caller starts it right after. Each player comes with the gain of its
+     * song. The fade takes the given time (ms).
+     */
+    void start(MediaPlayer outgoing, float outgoingGain, MediaPlayer incoming,
+            float incomingGain, int duration, float volume) {
+        finish();
+        mOutgoing = outgoing;
+        mIncoming = incoming;
+        mOutgoingGain = outgoingGain;
+        mIncomingGain = incomingGain;
+        mDuration = Math.max(duration, 1);
+        mVolume = volume;
+        mStartTime = SystemClock.uptimeMillis();
+        mIncoming.setVolume(0, 0);
+        mHandler.post(mStepRunnable);
+    }
+
+    /** Sets the volume that the fade goes up to, and down from. */
+    void setVolume(float volume) {
+        mVolume = volume;
+        if (isFading()) step();
+    }
+
+    /**
+     * Ends the fade under way, if there is one, at once: the incoming player is at its full
+     * volume, and the outgoing one goes to the listener.
+     */
+    void finish() {
+        if (!isFading()) return;
+        mHandler.removeCallbacks(mStepRunnable);
+        MediaPlayer outgoing = mOutgoing;
+        float in = mVolume * mIncomingGain;
+        mIncoming.setVolume(in, in);
+        mIncoming = null;
+        mOutgoing = null;
+        mListener.onCrossfadeFinished(outgoing);
+    }
+
+    private void step() {
+        float t = (SystemClock.uptimeMillis() - mStartTime) / (float) mDuration;
+        if (t >= 1) {
+            finish();
+            return;
+        }
+        float in = mVolume * mIncomingGain * (float) Math.sin(t * Math.PI / 2);
+        float out = mVolume * mOutgoingGain * (float) Math.cos(t * Math.PI / 2);
+        mIncoming.setVolume(in, in);
+        mOutgoing.setVolume(out, out);
+    }
+
+    private final Runnable mStepRunnable = new Runnable() {
+        public void run() {
+            step();
+            if (isFading()) mHandler.postDelayed(this, RAMP_STEP_MS);
+        }
+    };
+
+    public interface Listener {
+        /** Hands back the player that was faded out, which may still be playing. */
+        public void onCrossfadeFinished(MediaPlayer outgoing);
+    }
+}
@@ -0,0 +1,310 @@
+package com.max.player.controller;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.max.player.util.LongIntMap;
+
+/**
+ * Finds the songs of a {@link MusicRetriever} that are byte-for-byte copies of one another, and
+ * has the retriever collapse each group of them to its first song. Hashing a library is slow,
+ * so only what can be a copy is hashed: songs are grouped by duration, which we have already,
+ * and then by file size, which is one stat per song of a group; the files left in groups of two
+ * or more are hashed on a pool of workers at background priority, one per core, reading them in
+ * memory-mapped chunks.
+ *
+ * The hashes are kept in a {@link HashCache} by path, size and modification time, so a run after
+ * the first only reads the files that are new or changed since.
+ *
+ * A run goes on a thread of its own, which waits for the workers, so a long first run doesn't
+ * hold up the syncs and other chores on the BackgroundExecutor. Runs don't overlap: starting one
+ * while another is under way queues one more after it, for the songs that came in since.
+ */
+class DuplicateDetector {
+    static final String TAG = "DuplicateDetector";
+
+    // how much of a file is mapped at a time
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // how long a run waits for its workers before giving up on them (s)
+    static final int HASH_TIMEOUT_S = 30 * 60;
+
+    private final MusicRetriever mRetriever;
+    private final HashCache mCache;
+    private boolean mCacheLoaded = false; // the run's thread only
+
+    // the run under way; guarded by this
+    private ExecutorService mRun;
+    private boolean mRunAgain = false; // start() was called during it
+
+    private volatile boolean mCancelled = false;
+    private volatile ExecutorService mWorkers;
+
+    DuplicateDetector(MusicRetriever retriever, HashCache cache) {
+        mRetriever = retriever;
+        mCache = cache;
+    }
+
+    /** Starts a run, or, if one is under way, queues another after it. */
+    synchronized void start() {
+        if (mCancelled) return;
+        if (mRun != null) {
+            mRunAgain = true;
+            return;
+        }
+        mRun = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "DuplicateDetector");
+            }
+        });
+        mRun.execute(new Runnable() {
+            public void run() {
+                try {
+                    detect();
+                } finally {
+                    finishRun();
+                }
+            }
+        });
+        mRun.shutdown(); // the thread goes away when the run is done
+    }
+
+    /** Stops the run under way, and the one queued, for good. */
+    void cancel() {
+        mCancelled = true;
+        ExecutorService workers = mWorkers;
+        if (workers != null) workers.shutdownNow();
+        synchronized (this) {
+            if (mRun != null) mRun.shutdownNow(); // stops it waiting for the workers
+        }
+    }
+
+    private synchronized void finishRun() {
+        mRun = null;
+        if (mRunAgain && !mCancelled) {
+            mRunAgain = false;
+            start();
+        }
+    }
+
+    /** Finds the copies among the songs in the catalog now. Call on the run's thread. */
+    private void detect() {
+        if (mCancelled) return;
+        long startTime = System.currentTimeMillis();
+        if (!mCacheLoaded) {
+            mCache.load();
+            mCacheLoaded = true;
+        }
+
+        // the songs with a path, sorted by duration, in catalog order within a duration
+        long[] ids = mRetriever.getTrackIds();
+        String[] paths = new String[ids.length];
+        long[] keys = new long[ids.length];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            MusicRetriever.Item item = mRetriever.getItem(ids[i]);
+            if (item == null || item.getPath() == null) continue;
+            paths[i] = item.getPath();
+            keys[count++] = (item.getDuration() << 24) | i;
+        }
+        Arrays.sort(keys, 0, count);
+
+        // the files that share a duration with another song are hashed if they share a size too
+        long[] sizes = new long[ids.length];
+        long[] modifiedTimes = new long[ids.length];
+        int[] candidates = new int[count];
+        int candidateCount = 0;
+        for (int start = 0, end; start < count; start = end) {
+            long duration = keys[start] >>> 24;
+            for (end = start + 1; end < count && keys[end] >>> 24 == duration; end++);
+            if (end - start < 2) continue;
+
+            long[] bySize = new long[end - start];
+            for (int k = start; k < end; k++) {
+                int i = (int) (keys[k] & 0xffffff);
+                File file = new File(paths[i]);
+                sizes[i] = file.length(); // 0 if it's gone, which matches nothing we hash
+                modifiedTimes[i] = file.lastModified();
+                bySize[k - start] = sizes[i];
+            }
+            Arrays.sort(bySize);
+            for (int k = start; k < end; k++) {
+                int i = (int) (keys[k] & 0xffffff);
+                if (sizes[i] > 0 && occurrences(bySize, sizes[i]) > 1) {
+                    candidates[candidateCount++] = i;
+                }
+            }
+        }
+
+        long[] hashHighs = new long[ids.length];
+        long[] hashLows = new long[ids.length];
+        boolean[] hashed = new boolean[ids.length];
+        int read = hashAll(candidates, candidateCount, paths, sizes, modifiedTimes, hashHighs,
+                hashLows, hashed);
+        mCache.close(); // flushes what the workers added
+        if (mCancelled) return;
+
+        // the first file with a given content is the original, the later ones copies of it;
+        // candidates are in catalog order within a duration, and copies share a duration
+        LongIntMap firstByHash = new LongIntMap(candidateCount);
+        long[] copyIds = new long[candidateCount];
+        long[] originalIds = new long[candidateCount];
+        int copies = 0;
+        for (int k = 0; k < candidateCount; k++) {
+            int i = candidates[k];
+            if (!hashed[i]) continue;
+            int first = firstByHash.get(hashHighs[i]);
+            if (first < 0) {
+                firstByHash.put(hashHighs[i], i);
+            } else if (hashLows[first] == hashLows[i] && sizes[first] == sizes[i]) {
+                copyIds[copies] = ids[i];
+                originalIds[copies] = ids[first];
+                copies++;
+            }
+        }
+        long[] trimmedCopyIds = new long[copies];
+        long[] trimmedOriginalIds = new long[copies];
+        System.arraycopy(copyIds, 0, trimmedCopyIds, 0, copies);
+        System.arraycopy(originalIds, 0, trimmedOriginalIds, 0, copies);
+        mRetriever.setDuplicates(trimmedCopyIds, trimmedOriginalIds);
+
+        Log.i(TAG, "Found " + copies + " copies among " + candidateCount + " candidates of "
+                + count + " songs in " + (System.currentTimeMillis() - startTime) + "ms; read "
+                + read + " files.");
+    }
+
+    /**
+     * Hashes the candidate files on the worker pool, or takes their hashes from the cache.
+     * Returns how many files were read.
+     */
+    private int hashAll(final int[] candidates, final int candidateCount, final String[] paths,
+            final long[] sizes, final long[] modifiedTimes, final long[] hashHighs,
+            final long[] hashLows, final boolean[] hashed) {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger read = new AtomicInteger();
+        int workers = Math.max(1, Math.min(candidateCount,
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "DuplicateHash");
+            }
+        });
+        mWorkers = pool;
+        if (mCancelled) pool.shutdownNow(); // cancel() may have missed it
+
+        for (int w = 0; w < workers; w++) {
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        MessageDigest digest = newDigest();
+                        long[] hash = new long[2];
+                        int k;
+                        while (!mCancelled && (k = next.getAndIncrement()) < candidateCount) {
+                            int i = candidates[k];
+                            if (!mCache.get(paths[i], sizes[i], modifiedTimes[i], hash)) {
+                                try {
+                                    hash(paths[i], digest, hash);
+                                } catch (IOException e) {
+                                    if (!mCancelled) {
+                                        Log.w(TAG, "Failed to hash " + paths[i] + ": "
+                                                + e.getMessage());
+                                    }
+                                    continue;
+                                }
+                                mCache.put(paths[i], sizes[i], modifiedTimes[i], hash[0],
+                                        hash[1]);
+                                read.incrementAndGet();
+                            }
+                            hashHighs[i] = hash[0];
+                            hashLows[i] = hash[1];
+                            hashed[i] = true;
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                break; // cancelled
+            }
+        }
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(HASH_TIMEOUT_S, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Gave up waiting for the hashing to finish");
+                pool.shutdownNow();
+                mCancelled = true; // their results can't be trusted to be there
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            mCancelled = true;
+        }
+        mWorkers = null;
+        return read.get();
+    }
+
+    /** Hashes the whole file, a mapped chunk at a time, into hash[0..1]. */
+    private void hash(String path, MessageDigest digest, long[] hash) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            digest.reset();
+            for (long position = 0; position < size && !mCancelled; position += CHUNK_SIZE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(CHUNK_SIZE, size - position)));
+            }
+        } finally {
+            in.close();
+        }
+        if (mCancelled) throw new InterruptedIOException("Cancelled");
+        byte[] bytes = digest.digest();
+        hash[0] = toLong(bytes, 0);
+        hash[1] = toLong(bytes, 8);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) value = (value << 8) | (bytes[offset + i] & 0xff);
+        return value;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // every Java platform has MD5
+        }
+    }
+
+    private static int occurrences(long[] sorted, long value) {
+        int index = Arrays.binarySearch(sorted, value);
+        if (index < 0) return 0;
+        int first = index, last = index;
+        while (first > 0 && sorted[first - 1] == value) first--;
+        while (last < sorted.length - 1 && sorted[last + 1] == value) last++;
+        return last - first + 1;
+    }
+}
@@ -0,0 +1,295 @@
+package com.max.player.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.max.player.util.LongIntMap;
+import com.max.player.util.PrimitiveArrays;
+import com.max.player.util.StringDictionary;
+
+/**
+ * The folders of the files of a {@link TrackCatalog}, as a tree for browsing: one node per path
+ * segment, with its name interned in a dictionary and its children in a linked list. Nodes are
+ * kept in parallel arrays, like the catalog's columns, and node 0 is the root of the file system.
+ * A child is found by its parent and name in a hash map, and new children go at the end of the
+ * list; a node's list is put in name order the first time it is walked after that, so a folder
+ * with thousands of others next to it doesn't cost a walk over them each time one is added.
+ *
+ * Each node has the catalog positions of its own tracks, kept sorted by file name, and the
+ * number of tracks in its whole subtree. A track is put in and taken out of its folder as the
+ * catalog changes, which costs a binary search and a shift within that folder plus a walk up to
+ * the root. So listing a folder is a walk over its children, and the tracks below a folder are
+ * gathered without looking at any folder that has none.
+ *
+ * This class is not thread-safe; {@link MusicRetriever} guards it with its own lock.
+ */
+class FolderTree {
+    static final int ROOT = 0;
+
+    private final TrackCatalog mCatalog;
+    private final StringDictionary mNames = new StringDictionary();
+
+    private int[] mParents = new int[64];
+    private int[] mNameCodes = new int[64];
+    private int[] mFirstChildren = new int[64];
+    private int[] mNextSiblings = new int[64];
+    private boolean[] mUnsorted = new boolean[64]; // children added since they were put in order
+    private int[][] mTracks = new int[64][]; // the node's own tracks, by file name
+    private int[] mTrackCounts = new int[64];
+    private int[] mSubtreeCounts = new int[64]; // tracks of the node and all below it
+    private int mNodeCount = 0;
+
+    // the node of each folder of the catalog's folder dictionary, or -1 if it has none yet
+    private int[] mNodeByFolder = new int[64];
+
+    // each node but the root, by its parent and the code of its name
+    private final LongIntMap mChildren = new LongIntMap();
+
+    FolderTree(TrackCatalog catalog) {
+        mCatalog = catalog;
+        Arrays.fill(mNodeByFolder, -1);
+        newNode(-1, null);
+    }
+
+    /** Takes in the track at the given position, which was just put in the catalog. */
+    void add(int position) {
+        int folder = mCatalog.getFolderCode(position);
+        if (folder < 0) return;
+        int node = nodeOfFolder(folder);
+
+        int[] tracks = mTracks[node];
+        int count = mTrackCounts[node];
+        if (count == tracks.length) {
+            tracks = PrimitiveArrays.copyOf(tracks, count * 2);
+            mTracks[node] = tracks;
+        }
+        // after the tracks of the same name, so that the order is that of arrival
+        int index = upperBound(tracks, count, mCatalog.getFileName(position));
+        System.arraycopy(tracks, index, tracks, index + 1, count - index);
+        tracks[index] = position;
+        mTrackCounts[node] = count + 1;
+        for (; node >= 0; node = mParents[node]) mSubtreeCounts[node]++;
+    }
+
+    /** Takes out the track at the given position, which is about to leave the catalog. */
+    void remove(int position) {
+        int folder = mCatalog.getFolderCode(position);
+        if (folder < 0) return;
+        int node = mNodeByFolder[folder];
+
+        int[] tracks = mTracks[node];
+        int count = mTrackCounts[node];
+        int index = lowerBound(tracks, count, mCatalog.getFileName(position));
+        while (index < count && tracks[index] != position) index++;
+        if (index == count) return; // not ours
+        System.arraycopy(tracks, index + 1, tracks, index, count - index - 1);
+        mTrackCounts[node] = count - 1;
+        for (; node >= 0; node = mParents[node]) mSubtreeCounts[node]--;
+    }
+
+    /** Returns the node of the folder at the given path, or -1 if no track is below it. */
+    int find(String folder) {
+        int node = ROOT;
+        int start = 0;
+        int length = folder.length();
+        while (start < length && node >= 0) {
+            int slash = folder.indexOf('/', start);
+            int end = slash < 0 ? length : slash;
+            if (end > start) node = findChild(node, folder.substring(start, end));
+            start = end + 1;
+        }
+        return node >= 0 && mSubtreeCounts[node] > 0 ? node : -1;
+    }
+
+    /** Returns the names of the node's children that have tracks below them, in name order. */
+    List<String> listFolders(int node) {
+        sortChildren(node);
+        List<String> names = new ArrayList<String>();
+        for (int child = nonEmpty(mFirstChildren[node]); child >= 0;
+                child = nonEmpty(mNextSiblings[child])) {
+            names.add(mNames.decode(mNameCodes[child]));
+        }
+        return names;
+    }
+
+    /**
+     * Returns the catalog positions of the node's own tracks, by file name, or of all the tracks
+     * below it if recursive: a folder's own tracks first, then those of each of its folders in
+     * turn.
+     */
+    int[] getTracks(int node, boolean recursive) {
+        if (!recursive) return PrimitiveArrays.copyOf(mTracks[node], mTrackCounts[node]);
+
+        int[] tracks = new int[mSubtreeCounts[node]];
+        int offset = 0;
+        int current = node;
+        while (true) {
+            System.arraycopy(mTracks[current], 0, tracks, offset, mTrackCounts[current]);
+            offset += mTrackCounts[current];
+            sortChildren(current);
+            int child = nonEmpty(mFirstChildren[current]);
+            if (child >= 0) {
+                current = child;
+                continue;
+            }
+            // up until there is a folder after ours
+            while (current != node) {
+                int sibling = nonEmpty(mNextSiblings[current]);
+                if (sibling >= 0) {
+                    current = sibling;
+                    break;
+                }
+                current = mParents[current];
+            }
+            if (current == node) return tracks;
+        }
+    }
+
+    /** Returns the first node from the given one on along its siblings with tracks below it. */
+    private int nonEmpty(int node) {
+        while (node >= 0 && mSubtreeCounts[node] == 0) node = mNextSiblings[node];
+        return node;
+    }
+
+    // the first index in tracks[0, count) whose file name comes at or after the given one
+    private int lowerBound(int[] tracks, int count, String name) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareNames(mCatalog.getFileName(tracks[middle]), name) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // the first index in tracks[0, count) whose file name comes after the given one
+    private int upperBound(int[] tracks, int count, String name) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareNames(mCatalog.getFileName(tracks[middle]), name) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /** Returns the node of the given folder of the catalog, adding it and its parents if new. */
+    private int nodeOfFolder(int folder) {
+        if (folder >= mNodeByFolder.length) {
+            int[] grown = new int[Math.max(folder + 1, mNodeByFolder.length * 2)];
+            Arrays.fill(grown, mNodeByFolder.length, grown.length, -1);
+            System.arraycopy(mNodeByFolder, 0, grown, 0, mNodeByFolder.length);
+            mNodeByFolder = grown;
+        }
+        int node = mNodeByFolder[folder];
+        if (node >= 0) return node;
+
+        String path = mCatalog.getFolderDictionary().decode(folder);
+        node = ROOT;
+        int start = 0;
+        int length = path.length();
+        while (start < length) {
+            int slash = path.indexOf('/', start);
+            int end = slash < 0 ? length : slash;
+            if (end > start) node = childOf(node, path.substring(start, end));
+            start = end + 1;
+        }
+        mNodeByFolder[folder] = node;
+        return node;
+    }
+
+    private int findChild(int node, String name) {
+        int code = mNames.codeOf(name);
+        return code < 0 ? -1 : mChildren.get(childKey(node, code));
+    }
+
+    /** Returns the child of the node with the given name, adding it if new. */
+    private int childOf(int node, String name) {
+        int child = findChild(node, name);
+        if (child >= 0) return child;
+
+        int added = newNode(node, name);
+        mChildren.put(childKey(node, mNameCodes[added]), added);
+        mNextSiblings[added] = mFirstChildren[node];
+        mFirstChildren[node] = added;
+        mUnsorted[node] = true;
+        return added;
+    }
+
+    private static long childKey(int node, int nameCode) {
+        return ((long) node << 32) | nameCode;
+    }
+
+    /** Puts the node's children in name order, if some were added since they last were. */
+    private void sortChildren(int node) {
+        if (!mUnsorted[node]) return;
+        mUnsorted[node] = false;
+
+        List<Integer> children = new ArrayList<Integer>();
+        for (int child = mFirstChildren[node]; child >= 0; child = mNextSiblings[child]) {
+            children.add(child);
+        }
+        // names that only differ in case stay in the order they came in, which is that of
+        // their nodes
+        Collections.sort(children, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int order = compareNames(mNames.decode(mNameCodes[a]),
+                        mNames.decode(mNameCodes[b]));
+                return order != 0 ? order : a - b;
+            }
+        });
+        int next = -1;
+        for (int i = children.size() - 1; i >= 0; i--) {
+            int child = children.get(i);
+            mNextSiblings[child] = next;
+            next = child;
+        }
+        mFirstChildren[node] = next;
+    }
+
+    private int newNode(int parent, String name) {
+        if (mNodeCount == mParents.length) growNodes();
+        int node = mNodeCount++;
+        mParents[node] = parent;
+        mNameCodes[node] = mNames.encode(name);
+        mFirstChildren[node] = -1;
+        mNextSiblings[node] = -1;
+        mUnsorted[node] = false;
+        mTracks[node] = new int[4];
+        mTrackCounts[node] = 0;
+        mSubtreeCounts[node] = 0;
+        return node;
+    }
+
+    // the order a file browser shows names in
+    private static int compareNames(String a, String b) {
+        return a.compareToIgnoreCase(b);
+    }
+
+    private void growNodes() {
+        int capacity = mParents.length * 2;
+        mParents = PrimitiveArrays.copyOf(mParents, capacity);
+        mNameCodes = PrimitiveArrays.copyOf(mNameCodes, capacity);
+        mFirstChildren = PrimitiveArrays.copyOf(mFirstChildren, capacity);
+        mNextSiblings = PrimitiveArrays.copyOf(mNextSiblings, capacity);
+        mTrackCounts = PrimitiveArrays.copyOf(mTrackCounts, capacity);
+        mSubtreeCounts = PrimitiveArrays.copyOf(mSubtreeCounts, capacity);
+        boolean[] unsorted = new boolean[capacity];
+        System.arraycopy(mUnsorted, 0, unsorted, 0, mNodeCount);
+        mUnsorted = unsorted;
+        int[][] tracks = new int[capacity][];
+        System.arraycopy(mTracks, 0, tracks, 0, mNodeCount);
+        mTracks = tracks;
+    }
+}
@@ -0,0 +1,163 @@
+package com.max.player.controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import android.util.Log;
+
+import com.max.player.util.LongIntMap;
+
+/**
+ * The loudness gain of every song {@link LoudnessScanner} has measured, by MediaStore id: the
+ * gain in hundredths of a dB, kept in a {@link LongIntMap} as a non-negative int, so a library of
+ * ten thousand songs takes a few hundred kilobytes of memory and no objects per song. A song the
+ * scanner could not decode has an entry too, with no gain, so that it isn't tried again.
+ *
+ * On disk the table is a file of {@link #RECORD_SIZE}-byte records, appended as the songs are
+ * measured, so a scan cut short by the service going away loses at most the songs it was in the
+ * middle of. A record cut short by a crash ends the load, and the file is cut back to before it.
+ *
+ * Thread-safe: the scanner's workers add to it while the playback thread looks gains up.
+ */
+class GainTable {
+    static final String TAG = "GainTable";
+
+    static final int MAGIC = 0x4d58474e; // "MXGN"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 4 + 4;
+
+    // track id, gain in hundredths of a dB
+    static final int RECORD_SIZE = 8 + 2;
+
+    // the gain of a song that could not be measured
+    static final short NO_GAIN = Short.MIN_VALUE;
+
+    private final File mFile;
+    private final LongIntMap mGains = new LongIntMap();
+
+    private DataOutputStream mOut;
+    private boolean mClosed = false;
+
+    GainTable(File file) {
+        mFile = file;
+    }
+
+    synchronized int size() {
+        return mGains.size();
+    }
+
+    /** Whether the song has been measured, or tried. */
+    synchronized boolean contains(long id) {
+        return mGains.get(id) >= 0;
+    }
+
+    /** Returns the song's gain in dB, or 0 if it has none. */
+    synchronized float getGainDb(long id) {
+        int value = mGains.get(id);
+        if (value < 0) return 0;
+        short gain = (short) (value + Short.MIN_VALUE);
+        return gain == NO_GAIN ? 0 : gain / 100f;
+    }
+
+    /** Records a song's gain, in hundredths of a dB, or {@link #NO_GAIN}. */
+    synchronized void put(long id, short gain) {
+        if (mClosed) return;
+        mGains.put(id, gain - Short.MIN_VALUE);
+        try {
+            if (mOut == null) {
+                mOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mFile, true), RECORD_SIZE * 64));
+            }
+            mOut.writeLong(id);
+            mOut.writeShort(gain);
+            mOut.flush();
+        } catch (IOException e) {
+            // the gain still applies; the song will just be measured again next time
+            Log.w(TAG, "Failed to write gain table: " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    /** Reads the table from its file, if there is one. */
+    synchronized void load() {
+        mGains.clear();
+        long validLength = 0; // up to the end of the last whole record
+        if (mFile.exists()) {
+            long startTime = System.currentTimeMillis();
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mFile), 64 * 1024));
+                try {
+                    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                        throw new IOException("Not a gain table");
+                    }
+                    validLength = HEADER_SIZE;
+                    while (true) {
+                        long id = in.readLong();
+                        short gain = in.readShort();
+                        mGains.put(id, gain - Short.MIN_VALUE);
+                        validLength += RECORD_SIZE;
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (EOFException e) {
+                // the end of the file, or of the header or a record cut short
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read gain table: " + e.getMessage());
+                mGains.clear();
+                validLength = 0;
+            }
+            Log.i(TAG, "Loaded " + mGains.size() + " gains in "
+                    + (System.currentTimeMillis() - startTime) + "ms.");
+        }
+        if (validLength == 0 || validLength != mFile.length()) truncate(validLength);
+    }
+
+    /** Flushes the table to disk and closes it; what is added after that is not kept. */
+    synchronized void close() {
+        mClosed = true;
+        closeFile();
+    }
+
+    private void closeFile() {
+        if (mOut == null) return;
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close gain table: " + e.getMessage());
+        }
+        mOut = null;
+    }
+
+    /** Cuts the file back to the given length, or starts it afresh if that's 0. */
+    private void truncate(long length) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                if (length == 0) {
+                    mGains.clear();
+                    file.setLength(0);
+                    file.writeInt(MAGIC);
+                    file.writeInt(VERSION);
+                } else {
+                    file.setLength(length);
+                }
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to repair gain table: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.max.player.controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+import com.max.player.util.LongIntMap;
+import com.max.player.util.PrimitiveArrays;
+
+/**
+ * The content hashes of the files {@link DuplicateDetector} has hashed, by path, along with the
+ * size and modification time the files had then; a hash is only good for a file that still has
+ * both. Paths are kept as their 64-bit hash, like in {@link TrackCatalog}, so an entry is five
+ * longs in parallel arrays whatever the length of the path.
+ *
+ * On disk the cache is a file of {@link #RECORD_SIZE}-byte records, appended as files are hashed;
+ * a later record for the same path replaces an earlier one. A record cut short by a crash ends
+ * the load. When the file has grown to several times the entries it holds, it is rewritten as
+ * just those, to a temporary file that is then renamed over it.
+ *
+ * Thread-safe: the detector's workers look up and add hashes at the same time.
+ */
+class HashCache {
+    static final String TAG = "HashCache";
+
+    static final int MAGIC = 0x4d584843; // "MXHC"
+    static final int VERSION = 1;
+
+    // path hash, size, modification time, 128-bit content hash
+    static final int RECORD_SIZE = 8 * 5;
+
+    // files shorter than this are never worth rewriting
+    static final int MIN_COMPACT_RECORDS = 1024;
+
+    private final File mFile;
+
+    private final LongIntMap mIndexByPath = new LongIntMap();
+    private long[] mSizes = new long[256];
+    private long[] mModifiedTimes = new long[256];
+    private long[] mHashHighs = new long[256];
+    private long[] mHashLows = new long[256];
+    private long[] mPathHashes = new long[256];
+    private int mCount = 0;
+
+    private DataOutputStream mOut;
+    private int mRecords = 0;
+
+    HashCache(File file) {
+        mFile = file;
+    }
+
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Copies the content hash of the file at the given path into hash[0..1] and returns true, if
+     * we have one for it as it is now, with the given size and modification time.
+     */
+    synchronized boolean get(String path, long size, long modifiedTime, long[] hash) {
+        int index = mIndexByPath.get(TrackCatalog.pathHash(path));
+        if (index < 0 || mSizes[index] != size || mModifiedTimes[index] != modifiedTime) {
+            return false;
+        }
+        hash[0] = mHashHighs[index];
+        hash[1] = mHashLows[index];
+        return true;
+    }
+
+    /** Records the content hash of the file at the given path. */
+    synchronized void put(String path, long size, long modifiedTime, long hashHigh,
+            long hashLow) {
+        long pathHash = TrackCatalog.pathHash(path);
+        set(pathHash, size, modifiedTime, hashHigh, hashLow);
+        try {
+            if (mOut == null) {
+                mOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mFile, true), RECORD_SIZE * 64));
+            }
+            writeRecord(mOut, pathHash, size, modifiedTime, hashHigh, hashLow);
+            mRecords++;
+        } catch (IOException e) {
+            // the hash still counts for this run; the file will just be hashed again next time
+            Log.w(TAG, "Failed to write hash cache: " + e.getMessage());
+            close();
+        }
+    }
+
+    /** Reads the cache from its file, if there is one. */
+    synchronized void load() {
+        mIndexByPath.clear();
+        mCount = 0;
+        mRecords = 0;
+        boolean clean = true;
+        if (mFile.exists()) {
+            long startTime = System.currentTimeMillis();
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mFile), 64 * 1024));
+                try {
+                    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                        throw new IOException("Not a hash cache");
+                    }
+                    while (true) {
+                        long pathHash;
+                        try {
+                            pathHash = in.readLong();
+                        } catch (EOFException e) {
+                            break; // the end of the last whole record
+                        }
+                        set(pathHash, in.readLong(), in.readLong(), in.readLong(),
+                                in.readLong());
+                        mRecords++;
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (EOFException e) {
+                clean = false; // the last record was cut short
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read hash cache: " + e.getMessage());
+                mIndexByPath.clear();
+                mCount = 0;
+                clean = false;
+            }
+            Log.i(TAG, "Loaded " + mCount + " hashes from " + mRecords + " records in "
+                    + (System.currentTimeMillis() - startTime) + "ms.");
+        }
+        if (!clean || !mFile.exists()
+                || (mRecords > MIN_COMPACT_RECORDS && mRecords > 2 * mCount)) {
+            compact();
+        }
+    }
+
+    /** Flushes what has been added to disk and closes the file. */
+    synchronized void close() {
+        if (mOut == null) return;
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close hash cache: " + e.getMessage());
+        }
+        mOut = null;
+    }
+
+    private void set(long pathHash, long size, long modifiedTime, long hashHigh,
+            long hashLow) {
+        int index = mIndexByPath.get(pathHash);
+        if (index < 0) {
+            if (mCount == mSizes.length) grow();
+            index = mCount++;
+            mIndexByPath.put(pathHash, index);
+        }
+        mPathHashes[index] = pathHash;
+        mSizes[index] = size;
+        mModifiedTimes[index] = modifiedTime;
+        mHashHighs[index] = hashHigh;
+        mHashLows[index] = hashLow;
+    }
+
+    private static void writeRecord(DataOutputStream out, long pathHash, long size,
+            long modifiedTime, long hashHigh, long hashLow) throws IOException {
+        out.writeLong(pathHash);
+        out.writeLong(size);
+        out.writeLong(modifiedTime);
+        out.writeLong(hashHigh);
+        out.writeLong(hashLow);
+    }
+
+    /** Rewrites the file as the entries we have. */
+    private void compact() {
+        close();
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut,
+                        64 * 1024));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (int i = 0; i < mCount; i++) {
+                    writeRecord(out, mPathHashes[i], mSizes[i], mModifiedTimes[i],
+                            mHashHighs[i], mHashLows[i]);
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+            if (!tmp.renameTo(mFile)) throw new IOException("Could not rename " + tmp);
+            mRecords = mCount;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact hash cache: " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    private void grow() {
+        int capacity = mSizes.length * 2;
+        mPathHashes = PrimitiveArrays.copyOf(mPathHashes, capacity);
+        mSizes = PrimitiveArrays.copyOf(mSizes, capacity);
+        mModifiedTimes = PrimitiveArrays.copyOf(mModifiedTimes, capacity);
+        mHashHighs = PrimitiveArrays.copyOf(mHashHighs, capacity);
+        mHashLows = PrimitiveArrays.copyOf(mHashLows, capacity);
+    }
+}
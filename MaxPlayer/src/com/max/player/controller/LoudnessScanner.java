@@ -0,0 +1,208 @@
+package com.max.player.controller;
+
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.max.player.util.LoudnessMeter;
+import com.max.player.util.MediaDecoderCompat;
+
+/**
+ * Measures the loudness of every song of a {@link MusicRetriever} that is not in the
+ * {@link GainTable} yet, and records the gain that brings it to {@link #REFERENCE_LOUDNESS}. The
+ * songs are decoded with {@link MediaDecoderCompat} by a pool of workers at the lowest priority,
+ * one fewer than there are cores, which take the songs in catalog order; since every result goes
+ * to the table as soon as it is known, a scan that is stopped picks up where it was the next
+ * time it is started. Starting it while it runs queues another run after it, for the songs that
+ * came into the catalog since; only the songs not in the table are decoded.
+ *
+ * While paused, the workers drop the songs they are in the middle of, so that they don't hold on
+ * to a codec meanwhile, and wait; they decode those songs again from the start once resumed.
+ *
+ * Decoding needs API level 16; before that, {@link #isAvailable()} is false and there is
+ * nothing to scan with.
+ */
+class LoudnessScanner {
+    static final String TAG = "LoudnessScanner";
+
+    // what the gains bring songs to (LUFS): ReplayGain 2.0's reference level
+    static final double REFERENCE_LOUDNESS = -18.0;
+
+    // the most a song is turned down or up (dB); anything beyond is a measuring accident
+    static final double MIN_GAIN_DB = -24.0;
+    static final double MAX_GAIN_DB = 12.0;
+
+    // what measure() returns when it was stopped by a pause or cancel
+    private static final int INTERRUPTED = Integer.MIN_VALUE;
+
+    private final MusicRetriever mRetriever;
+    private final GainTable mTable;
+
+    // the run under way; guarded by this
+    private ExecutorService mExecutor;
+    private boolean mRunAgain = false; // start() was called during it
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final AtomicInteger mWorkers = new AtomicInteger();
+    private final AtomicInteger mMeasured = new AtomicInteger();
+    private long mStartTime;
+
+    private volatile boolean mCancelled = false;
+    private volatile boolean mPaused = false; // changes under the lock on this
+
+    LoudnessScanner(MusicRetriever retriever, GainTable table) {
+        mRetriever = retriever;
+        mTable = table;
+    }
+
+    static boolean isAvailable() {
+        return MediaDecoderCompat.isAvailable();
+    }
+
+    /**
+     * Starts scanning the songs that are in the catalog now. If a run is under way, another one
+     * follows it, for the songs that came in since.
+     */
+    synchronized void start() {
+        if (mCancelled) return;
+        if (mExecutor != null) {
+            mRunAgain = true;
+            return;
+        }
+        final long[] ids = mRetriever.getTrackIds();
+        mNext.set(0);
+        mMeasured.set(0);
+        mStartTime = SystemClock.elapsedRealtime();
+        // leave a core for playback and the UI
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        mWorkers.set(workers);
+        mExecutor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                        r.run();
+                    }
+                }, "LoudnessScan");
+            }
+        });
+        for (int i = 0; i < workers; i++) {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    scan(ids);
+                }
+            });
+        }
+        mExecutor.shutdown(); // the threads go away when the run is done
+    }
+
+    /** Holds the workers back, or lets them go on. */
+    synchronized void setPaused(boolean paused) {
+        if (paused == mPaused) return;
+        mPaused = paused;
+        if (!paused) notifyAll();
+    }
+
+    /** Stops the scan for good; what has been measured so far is kept. */
+    void cancel() {
+        mCancelled = true;
+        synchronized (this) {
+            notifyAll();
+            if (mExecutor != null) mExecutor.shutdownNow();
+        }
+    }
+
+    private void scan(long[] ids) {
+        int index;
+        while (!mCancelled && (index = mNext.getAndIncrement()) < ids.length) {
+            long id = ids[index];
+            if (mTable.contains(id)) continue;
+
+            int gain = INTERRUPTED;
+            while (gain == INTERRUPTED) {
+                if (!waitWhilePaused()) return;
+                MusicRetriever.Item item = mRetriever.getItem(id);
+                if (item == null || item.getPath() == null) break; // gone since
+                gain = measure(item.getPath());
+            }
+            if (gain != INTERRUPTED) {
+                mTable.put(id, (short) gain);
+                mMeasured.incrementAndGet();
+            }
+        }
+        if (mWorkers.decrementAndGet() == 0) finishRun();
+    }
+
+    private synchronized void finishRun() {
+        mExecutor = null;
+        if (mCancelled) return;
+        Log.i(TAG, "Measured " + mMeasured.get() + " songs in "
+                + (SystemClock.elapsedRealtime() - mStartTime) + "ms; "
+                + mTable.size() + " in the table.");
+        if (mRunAgain) {
+            mRunAgain = false;
+            start();
+        }
+    }
+
+    /** Waits until the scan is not paused. Returns false if it was cancelled meanwhile. */
+    private synchronized boolean waitWhilePaused() {
+        while (mPaused && !mCancelled) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return !mCancelled;
+    }
+
+    /**
+     * Decodes the file and returns its gain in hundredths of a dB, {@link GainTable#NO_GAIN} if
+     * it can't be decoded, or {@link #INTERRUPTED}.
+     */
+    private int measure(String path) {
+        Measurement measurement = new Measurement();
+        boolean complete;
+        try {
+            complete = MediaDecoderCompat.decode(path, measurement);
+        } catch (IOException e) {
+            if (mCancelled || mPaused) return INTERRUPTED;
+            Log.w(TAG, "Failed to decode " + path + ": " + e.getMessage());
+            return GainTable.NO_GAIN;
+        }
+        if (!complete) return mCancelled || mPaused ? INTERRUPTED : GainTable.NO_GAIN;
+
+        double loudness = measurement.mMeter != null
+                ? measurement.mMeter.getIntegratedLoudness() : Double.NEGATIVE_INFINITY;
+        if (Double.isInfinite(loudness)) return 0; // silence is best left alone
+        double gain = Math.max(MIN_GAIN_DB, Math.min(MAX_GAIN_DB,
+                REFERENCE_LOUDNESS - loudness));
+        return (int) Math.round(gain * 100);
+    }
+
+    private class Measurement implements MediaDecoderCompat.PcmListener {
+        LoudnessMeter mMeter;
+        int mSampleRate;
+        int mChannels;
+
+        public void onFormat(int sampleRate, int channels) {
+            if (mMeter != null && sampleRate == mSampleRate && channels == mChannels) return;
+            mMeter = new LoudnessMeter(sampleRate, channels);
+            mSampleRate = sampleRate;
+            mChannels = channels;
+        }
+
+        public boolean onSamples(ShortBuffer samples) {
+            if (mCancelled || mPaused) return false;
+            mMeter.process(samples);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.max.player.controller;
+
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Keeps the metadata and playback state shown by a {@link RemoteControlClientCompat} up to date,
+ * as cheaply as possible. Each call through the compat layer is a reflective invoke, so we
+ * remember what the remote controls show and only push the fields that changed, and we apply
+ * metadata at most once every {@link #MIN_APPLY_INTERVAL_MS}: when songs change faster than that
+ * (someone is skipping through them), only the last one gets published.
+ *
+ * Must only be used on the thread of the handler it is given.
+ */
+class MetadataPublisher {
+    static final long MIN_APPLY_INTERVAL_MS = 250;
+
+    private final RemoteControlClientCompat mClient;
+    private final Handler mHandler;
+
+    // the metadata we want on the remote controls
+    private String mArtist;
+    private String mAlbum;
+    private String mTitle;
+    private long mDuration;
+    private Bitmap mArtwork;
+
+    // the metadata the remote controls show
+    private boolean mApplied = false;
+    private String mAppliedArtist;
+    private String mAppliedAlbum;
+    private String mAppliedTitle;
+    private long mAppliedDuration;
+    private Bitmap mAppliedArtwork;
+
+    private int mPlaybackState = -1;
+    private int mTransportControlFlags = -1;
+
+    private long mLastApplyTime = 0;
+    private boolean mApplyScheduled = false;
+
+    MetadataPublisher(RemoteControlClientCompat client, Handler handler) {
+        mClient = client;
+        mHandler = handler;
+    }
+
+    /** Sets the metadata of the current song. */
+    void setMetadata(String artist, String album, String title, long duration, Bitmap artwork) {
+        mArtist = artist;
+        mAlbum = album;
+        mTitle = title;
+        mDuration = duration;
+        mArtwork = artwork;
+        scheduleApply();
+    }
+
+    /** Replaces the artwork of the current song, once it has been loaded. */
+    void setArtwork(Bitmap artwork) {
+        mArtwork = artwork;
+        scheduleApply();
+    }
+
+    private void scheduleApply() {
+        if (mApplyScheduled) return;
+        long wait = mLastApplyTime + MIN_APPLY_INTERVAL_MS - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+            apply();
+        } else {
+            mApplyScheduled = true;
+            mHandler.postDelayed(mApplyRunnable, wait);
+        }
+    }
+
+    /** Sets the playback state, unless it is already the one shown. */
+    void setPlaybackState(int state) {
+        if (state == mPlaybackState) return;
+        mPlaybackState = state;
+        mClient.setPlaybackState(state);
+    }
+
+    /** Sets the transport control flags, unless they are already the ones in effect. */
+    void setTransportControlFlags(int flags) {
+        if (flags == mTransportControlFlags) return;
+        mTransportControlFlags = flags;
+        mClient.setTransportControlFlags(flags);
+    }
+
+    /** Drops any metadata update that is waiting for its turn. */
+    void cancel() {
+        mHandler.removeCallbacks(mApplyRunnable);
+        mApplyScheduled = false;
+    }
+
+    private final Runnable mApplyRunnable = new Runnable() {
+        public void run() {
+            mApplyScheduled = false;
+            apply();
+        }
+    };
+
+    /** Pushes the fields that differ from what the remote controls show. */
+    private void apply() {
+        boolean artistChanged = !mApplied || !equal(mArtist, mAppliedArtist);
+        boolean albumChanged = !mApplied || !equal(mAlbum, mAppliedAlbum);
+        boolean titleChanged = !mApplied || !equal(mTitle, mAppliedTitle);
+        boolean durationChanged = !mApplied || mDuration != mAppliedDuration;
+        boolean artworkChanged = !mApplied || mArtwork != mAppliedArtwork;
+        if (!artistChanged && !albumChanged && !titleChanged && !durationChanged
+                && !artworkChanged) {
+            return;
+        }
+
+        // the first time, we start from scratch; after that, the editor starts out with what we
+        // applied before, so the fields we don't touch keep their values
+        RemoteControlClientCompat.MetadataEditorCompat editor = mClient.editMetadata(!mApplied);
+        if (artistChanged) editor.putString(MediaMetadataRetriever.METADATA_KEY_ARTIST, mArtist);
+        if (albumChanged) editor.putString(MediaMetadataRetriever.METADATA_KEY_ALBUM, mAlbum);
+        if (titleChanged) editor.putString(MediaMetadataRetriever.METADATA_KEY_TITLE, mTitle);
+        if (durationChanged) {
+            editor.putLong(MediaMetadataRetriever.METADATA_KEY_DURATION, mDuration);
+        }
+        if (artworkChanged) {
+            editor.putBitmap(RemoteControlClientCompat.MetadataEditorCompat.METADATA_KEY_ARTWORK,
+                    mArtwork);
+        }
+        editor.apply();
+
+        mApplied = true;
+        mAppliedArtist = mArtist;
+        mAppliedAlbum = mAlbum;
+        mAppliedTitle = mTitle;
+        mAppliedDuration = mDuration;
+        mAppliedArtwork = mArtwork;
+        mLastApplyTime = SystemClock.uptimeMillis();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -1,28 +1,142 @@
 package com.max.player.controller;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
 import android.provider.MediaStore;
 import android.util.Log;
 
+import com.max.player.util.BackgroundExecutor;
+
 public class MusicRetriever {
     final String TAG = "MusicRetriever";
 
+    // how long we wait for MediaStore to settle down before syncing (ms). The media scanner
+    // sends a burst of change notifications while it works, and we only want to sync once.
+    static final long SYNC_DEBOUNCE_MS = 2000;
+
+    // how many rows of a delta we apply per catalog lock, so that playback never waits on a
+    // big patch
+    static final int SYNC_BATCH_SIZE = 256;
+
+    // how many rows prepare() reads per query
+    static final int PAGE_SIZE = 1000;
+
+    static final String MUSIC_SELECTION = MediaStore.Audio.Media.IS_MUSIC + " = 1";
+
+    // the only columns we read: the five the catalog started with, ALBUM_ID for album art,
+    // DATA, the path of the file, which playlists and folders go by, and DATE_MODIFIED, which
+    // moves the sync watermark and tells the tag table when a file has changed since it was read
+    static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.DATE_MODIFIED
+    };
+
     ContentResolver mContentResolver;
 
-    // the items (songs) we have queried
-    List<Item> mItems = new ArrayList<Item>();
+    // the songs we have queried. Guarded by this.
+    final TrackCatalog mCatalog = new TrackCatalog();
+
+    // highest _ID and DATE_MODIFIED we have seen so far. Anything above either of them is new or
+    // changed since the last prepare() or sync().
+    long mMaxId = -1;
+    long mMaxDateModified = -1;
+
+    // serializes prepare() and sync() against each other
+    final Object mSyncLock = new Object();
+
+    // finds songs in the catalog by title, artist and album. Guarded by this.
+    final SearchIndex mSearchIndex = new SearchIndex();
+
+    // the folders of the catalog's files, for browsing them. Guarded by this.
+    FolderTree mFolderTree = new FolderTree(mCatalog);
 
-    Random mRandom = new Random();
+    // the order we play the catalog in. Guarded by this.
+    final ShuffleOrder mShuffle = new ShuffleOrder(mCatalog, new Random());
+
+    Handler mHandler;
+    ContentObserver mObserver;
+
+    // where we keep a copy of the catalog between runs, or null if we don't
+    File mSnapshotFile;
+
+    // told about syncs that changed the catalog
+    SyncListener mSyncListener;
+
+    // fills in what MediaStore doesn't know about a song, if set
+    TagTable mTagTable;
 
     public MusicRetriever(ContentResolver cr) {
+        this(cr, null);
+    }
+
+    public MusicRetriever(ContentResolver cr, File snapshotFile) {
         mContentResolver = cr;
+        mSnapshotFile = snapshotFile;
+    }
+
+    /**
+     * Fills the catalog from the snapshot saved by a previous run, if there is a valid one.
+     * This is much faster than {@link #prepare()}, but the catalog may be stale, so follow it up
+     * with {@link #sync()}. Returns whether a snapshot was loaded.
+     */
+    public boolean loadSnapshot() {
+        if (mSnapshotFile == null) return false;
+
+        synchronized (mSyncLock) {
+            long startTime = System.currentTimeMillis();
+            CatalogSnapshot snapshot;
+            try {
+                snapshot = CatalogSnapshot.readFrom(mSnapshotFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read catalog snapshot: " + e.getMessage());
+                snapshot = null;
+            }
+            if (snapshot == null || snapshot.count == 0) return false;
+
+            synchronized (this) {
+                for (int i = 0; i < snapshot.count; i++) {
+                    putTrack(snapshot.getItem(i));
+                }
+            }
+            mMaxId = snapshot.maxId;
+            mMaxDateModified = snapshot.maxDateModified;
+            Log.i(TAG, "Loaded " + snapshot.count + " songs from snapshot in "
+                    + (System.currentTimeMillis() - startTime) + "ms.");
+            return true;
+        }
+    }
+
+    /** Saves the catalog so the next run can start from it. Caller holds mSyncLock. */
+    private void saveSnapshot() {
+        if (mSnapshotFile == null) return;
+
+        CatalogSnapshot snapshot;
+        synchronized (this) {
+            snapshot = CatalogSnapshot.capture(mCatalog, mMaxId, mMaxDateModified);
+        }
+        try {
+            snapshot.writeTo(mSnapshotFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write catalog snapshot: " + e.getMessage());
+        }
     }
 
     /**
@@ -30,61 +144,555 @@ public class MusicRetriever {
      * blocking the main thread.
      */
     public void prepare() {
-        Uri uri = android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        Log.i(TAG, "Querying media...");
-        Log.i(TAG, "URI: " + uri.toString());
+        prepare(null);
+    }
+
+    /**
+     * Loads music data one page at a time, calling the listener after each page so that the
+     * songs loaded so far can be used while the rest stream in. The listener can stop the load
+     * between pages; the songs loaded until then stay, and since pages go in _ID order, a
+     * {@link #sync()} picks up the rest. This method may take long, so be sure to call it
+     * asynchronously without blocking the main thread.
+     */
+    public void prepare(PageListener listener) {
+        synchronized (mSyncLock) {
+            Uri uri = android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+            long startTime = System.currentTimeMillis();
+            Log.i(TAG, "Querying media from " + uri);
+
+            // Perform a query on the content resolver. The URI we're passing specifies that we
+            // want to query for all audio media on external storage (e.g. SD card). We walk the
+            // rows in _ID order, and each page starts after the last _ID of the one before, so
+            // no page has to skip over the rows already read.
+            //
+            // The page size rides on the sort order as "LIMIT n", which only works because
+            // MediaProvider pastes the sort order into its SQL as it is; ContentResolver has no
+            // other way to ask for a limit at the API levels we run on. Providers that check the
+            // sort order reject it, and then we read all the rows through one cursor instead,
+            // still a page per catalog lock and per listener call.
+            String selection = MUSIC_SELECTION + " AND " + MediaStore.Audio.Media._ID + " > ?";
+            String sortOrder = MediaStore.Audio.Media._ID + " ASC";
+            boolean limited = true;
+            long lastId = -1;
+            int total = 0;
+            while (true) {
+                String[] selectionArgs = { String.valueOf(lastId) };
+                Cursor cur;
+                try {
+                    cur = mContentResolver.query(uri, PROJECTION, selection, selectionArgs,
+                            limited ? sortOrder + " LIMIT " + PAGE_SIZE : sortOrder);
+                } catch (RuntimeException e) {
+                    // an IllegalArgumentException or an SQLiteException, depending on the
+                    // provider
+                    if (!limited) throw e;
+                    Log.w(TAG, "Paging with LIMIT rejected, reading all at once: " + e);
+                    limited = false;
+                    continue;
+                }
+                if (cur == null) {
+                    // Query failed...
+                    Log.e(TAG, "Failed to retrieve music: cursor is null :-(");
+                    break;
+                }
+
+                int queryRows = 0;
+                try {
+                    ColumnIndices columns = new ColumnIndices(cur);
+                    while (true) {
+                        int rows = 0;
+                        synchronized (this) {
+                            while (rows < PAGE_SIZE && cur.moveToNext()) {
+                                putTrack(columns.read(cur));
+                                advanceWatermarks(cur, columns);
+                                lastId = cur.getLong(columns.id);
+                                rows++;
+                            }
+                        }
+                        queryRows += rows;
+                        total += rows;
+                        if (rows > 0 && listener != null && !listener.onPageLoaded(total)) {
+                            Log.i(TAG, "Querying cancelled after " + total + " songs.");
+                            return;
+                        }
+                        if (rows < PAGE_SIZE) break;
+                    }
+                } finally {
+                    cur.close();
+                }
+                // a provider that ignores the LIMIT gives us everything at once, and the next
+                // query comes back empty
+                if (!limited || queryRows < PAGE_SIZE) break;
+            }
+
+            if (total == 0) {
+                // Nothing to query. There is no music on the device. How boring.
+                Log.e(TAG, "No music found.");
+                return;
+            }
+            Log.i(TAG, "Done querying " + total + " songs in "
+                    + (System.currentTimeMillis() - startTime) + "ms. MusicRetriever is ready.");
+            saveSnapshot();
+        }
+    }
 
-        // Perform a query on the content resolver. The URI we're passing specifies that we
-        // want to query for all audio media on external storage (e.g. SD card)
-        Cursor cur = mContentResolver.query(uri, null,
-                MediaStore.Audio.Media.IS_MUSIC + " = 1", null, null);
-        Log.i(TAG, "Query finished. " + (cur == null ? "Returned NULL." : "Returned a cursor."));
+    /**
+     * Brings the catalog up to date with MediaStore by applying only what changed since the last
+     * prepare() or sync(): rows above the _ID/DATE_MODIFIED watermarks are inserted or updated,
+     * and rows that no longer exist are removed. Like prepare(), this queries the content
+     * resolver and must not be called on the main thread. The catalog stays usable throughout.
+     */
+    public void sync() {
+        sync(null);
+    }
 
+    /**
+     * Like {@link #sync()}, calling the listener after each batch of rows applied. If the
+     * listener stops it, the watermarks stay where they were, so the next sync starts over.
+     */
+    public void sync(PageListener listener) {
+        boolean changed;
+        synchronized (mSyncLock) {
+            Uri uri = android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+            long startTime = System.currentTimeMillis();
+            long oldMaxId = mMaxId;
+            long oldMaxDateModified = mMaxDateModified;
+
+            // DATE_MODIFIED has a resolution of one second, so we re-read the last second we
+            // saw. Re-applying an unchanged row is harmless.
+            Cursor cur = mContentResolver.query(uri, PROJECTION, MUSIC_SELECTION + " AND ("
+                    + MediaStore.Audio.Media._ID + " > ? OR "
+                    + MediaStore.Audio.Media.DATE_MODIFIED + " >= ?)",
+                    new String[] { String.valueOf(mMaxId), String.valueOf(mMaxDateModified) },
+                    null);
+            if (cur == null) {
+                Log.e(TAG, "Failed to sync music: cursor is null.");
+                return;
+            }
+
+            int upserts = 0;
+            try {
+                if (cur.moveToFirst()) {
+                    ColumnIndices columns = new ColumnIndices(cur);
+                    List<Item> batch = new ArrayList<Item>(SYNC_BATCH_SIZE);
+                    do {
+                        batch.add(columns.read(cur));
+                        advanceWatermarks(cur, columns);
+                        if (batch.size() == SYNC_BATCH_SIZE) {
+                            upserts += applyUpserts(batch);
+                            if (listener != null && !listener.onPageLoaded(upserts)) {
+                                mMaxId = oldMaxId;
+                                mMaxDateModified = oldMaxDateModified;
+                                Log.i(TAG, "Sync cancelled after " + upserts + " songs.");
+                                return;
+                            }
+                        }
+                    } while (cur.moveToNext());
+                    upserts += applyUpserts(batch);
+                    if (listener != null) listener.onPageLoaded(upserts);
+                }
+            } finally {
+                cur.close();
+            }
+
+            int deletes = removeDeletedItems(uri);
+            // rows from the last second we saw come back every time, so only a watermark moving
+            // tells us that something really changed
+            changed = mMaxId != oldMaxId || mMaxDateModified != oldMaxDateModified
+                    || deletes > 0;
+            if (changed) saveSnapshot();
+            Log.i(TAG, "Sync done in " + (System.currentTimeMillis() - startTime) + "ms: "
+                    + upserts + " inserted/updated, " + deletes + " removed.");
+        }
+        // outside the lock, so whatever the listener sets off doesn't hold up the next sync
+        if (changed && mSyncListener != null) mSyncListener.onSynced();
+    }
+
+    /** Puts every item of the batch in the catalog and clears the batch. */
+    private int applyUpserts(List<Item> batch) {
+        int count = batch.size();
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                Item item = batch.get(i);
+                putTrack(item);
+            }
+        }
+        batch.clear();
+        return count;
+    }
+
+    /**
+     * Removes items that MediaStore no longer lists as music. Every row that still exists is
+     * already in the catalog at this point, so if the counts match nothing was deleted and we can
+     * skip walking the ids.
+     */
+    private int removeDeletedItems(Uri uri) {
+        Cursor cur = mContentResolver.query(uri, new String[] { MediaStore.Audio.Media._ID },
+                MUSIC_SELECTION, null, null);
         if (cur == null) {
-            // Query failed...
-            Log.e(TAG, "Failed to retrieve music: cursor is null :-(");
-            return;
+            Log.e(TAG, "Failed to check for deleted music: cursor is null.");
+            return 0;
         }
-        if (!cur.moveToFirst()) {
-            // Nothing to query. There is no music on the device. How boring.
-            Log.e(TAG, "Failed to move cursor to first row (no query results).");
-            return;
+
+        long[] liveIds;
+        try {
+            synchronized (this) {
+                if (cur.getCount() == mCatalog.count()) return 0;
+            }
+            liveIds = new long[cur.getCount()];
+            int idColumn = cur.getColumnIndex(MediaStore.Audio.Media._ID);
+            int n = 0;
+            while (cur.moveToNext() && n < liveIds.length) {
+                liveIds[n++] = cur.getLong(idColumn);
+            }
+            Arrays.sort(liveIds, 0, n);
+            if (n < liveIds.length) {
+                long[] trimmed = new long[n];
+                System.arraycopy(liveIds, 0, trimmed, 0, n);
+                liveIds = trimmed;
+            }
+        } finally {
+            cur.close();
         }
 
-        Log.i(TAG, "Listing...");
+        List<Long> staleIds = new ArrayList<Long>();
+        synchronized (this) {
+            for (int position = 0; position < mCatalog.size(); position++) {
+                if (mCatalog.isRemoved(position)) continue;
+                long id = mCatalog.getId(position);
+                if (Arrays.binarySearch(liveIds, id) < 0) staleIds.add(id);
+            }
+        }
+        for (int start = 0; start < staleIds.size(); start += SYNC_BATCH_SIZE) {
+            int end = Math.min(start + SYNC_BATCH_SIZE, staleIds.size());
+            synchronized (this) {
+                for (int i = start; i < end; i++) {
+                    removeTrack(staleIds.get(i));
+                }
+            }
+        }
+        synchronized (this) {
+            if (mCatalog.needsCompacting()) compact();
+        }
+        return staleIds.size();
+    }
 
-        // retrieve the indices of the columns where the ID, title, etc. of the song are
-        int artistColumn = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST);
-        int titleColumn = cur.getColumnIndex(MediaStore.Audio.Media.TITLE);
-        int albumColumn = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM);
-        int durationColumn = cur.getColumnIndex(MediaStore.Audio.Media.DURATION);
-        int idColumn = cur.getColumnIndex(MediaStore.Audio.Media._ID);
+    /**
+     * Closes the holes that removed tracks left in the catalog, and moves everything that refers
+     * to tracks by position along. The folder tree is keyed by folder codes, which change too, so
+     * it is built again; that also drops the folders that have no tracks left. Caller holds the
+     * catalog lock.
+     */
+    private void compact() {
+        long startTime = System.currentTimeMillis();
+        int holes = mCatalog.size() - mCatalog.count();
+        int[] newPositions = mCatalog.compact();
+        mSearchIndex.remap(newPositions);
+        mShuffle.remap(newPositions);
+        mFolderTree = new FolderTree(mCatalog);
+        for (int position = 0; position < mCatalog.size(); position++) {
+            mFolderTree.add(position);
+        }
+        Log.i(TAG, "Compacted " + holes + " removed songs out of the catalog in "
+                + (System.currentTimeMillis() - startTime) + "ms.");
+    }
 
-        Log.i(TAG, "Title column index: " + String.valueOf(titleColumn));
-        Log.i(TAG, "ID column index: " + String.valueOf(titleColumn));
+    /**
+     * Adds the item to the catalog, or updates the one with the same id, and keeps the search
+     * index and the folder tree in step. Caller holds the catalog lock. Package-private so that
+     * CatalogBenchmark measures this very path.
+     */
+    void putTrack(Item item) {
+        if (mTagTable != null) item = mTagTable.fillIn(item);
+        int position = mCatalog.positionOf(item.id);
+        if (position >= 0) {
+            mSearchIndex.remove(position, mCatalog.getArtist(position),
+                    mCatalog.getTitle(position), mCatalog.getAlbum(position));
+            mFolderTree.remove(position);
+        }
+        position = mCatalog.put(item);
+        mSearchIndex.add(position, item.artist, item.title, item.album);
+        mFolderTree.add(position);
+    }
 
-        // add each song to mItems
-        do {
-            Log.i(TAG, "ID: " + cur.getString(idColumn) + " Title: " + cur.getString(titleColumn));
-            mItems.add(new Item(
-                    cur.getLong(idColumn),
-                    cur.getString(artistColumn),
-                    cur.getString(titleColumn),
-                    cur.getString(albumColumn),
-                    cur.getLong(durationColumn)));
-        } while (cur.moveToNext());
+    /** Removes the track with the given id from the catalog. Caller holds the catalog lock. */
+    private void removeTrack(long id) {
+        int position = mCatalog.positionOf(id);
+        if (position < 0) return;
+        mSearchIndex.remove(position, mCatalog.getArtist(position),
+                mCatalog.getTitle(position), mCatalog.getAlbum(position));
+        mFolderTree.remove(position);
+        mCatalog.remove(id);
+    }
 
-        Log.i(TAG, "Done querying media. MusicRetriever is ready.");
+    private void advanceWatermarks(Cursor cur, ColumnIndices columns) {
+        mMaxId = Math.max(mMaxId, cur.getLong(columns.id));
+        if (columns.dateModified >= 0) {
+            mMaxDateModified = Math.max(mMaxDateModified, cur.getLong(columns.dateModified));
+        }
     }
 
+    /**
+     * Starts listening for MediaStore changes and syncs the catalog once they settle down.
+     * Change notifications are delivered on the given handler's thread.
+     */
+    public void startWatching(Handler handler) {
+        if (mObserver != null) return;
+
+        mHandler = handler;
+        mObserver = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mHandler.removeCallbacks(mSyncRunnable);
+                mHandler.postDelayed(mSyncRunnable, SYNC_DEBOUNCE_MS);
+            }
+        };
+        mContentResolver.registerContentObserver(
+                android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mObserver);
+    }
+
+    /** Stops listening for MediaStore changes. */
+    public void stopWatching() {
+        if (mObserver == null) return;
+
+        mContentResolver.unregisterContentObserver(mObserver);
+        mHandler.removeCallbacks(mSyncRunnable);
+        mObserver = null;
+        mHandler = null;
+    }
+
+    final Runnable mSyncRunnable = new Runnable() {
+        public void run() {
+            try {
+                BackgroundExecutor.get().execute(new Runnable() {
+                    public void run() {
+                        sync();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // enough syncs are queued already; the last of them will see this change too
+            }
+        }
+    };
+
     public ContentResolver getContentResolver() {
         return mContentResolver;
     }
 
-    /** Returns a random Item. If there are no items available, returns null. */
-    public Item getRandomItem() {
-        if (mItems.size() <= 0) return null;
-        return mItems.get(mRandom.nextInt(mItems.size()));
+    /**
+     * Returns a random Item: the next song of the shuffle, which plays every song once before
+     * any of them repeats. If there are no items available, returns null.
+     */
+    public synchronized Item getRandomItem() {
+        int position = mShuffle.next();
+        return position < 0 ? null : mCatalog.getItem(position);
+    }
+
+    /**
+     * Moves ahead in the shuffle by count songs at once, as if {@link #getRandomItem()} had been
+     * called count times, and returns the song we land on, or null if there are none.
+     */
+    public synchronized Item skipItems(int count) {
+        int position = -1;
+        for (int i = 0; i < count; i++) {
+            position = mShuffle.next();
+            if (position < 0) return null;
+        }
+        return position < 0 ? null : mCatalog.getItem(position);
+    }
+
+    /**
+     * Returns the Item that the next call to {@link #getRandomItem()} will return, without moving
+     * on to it, or null if there are no items available.
+     */
+    public synchronized Item peekRandomItem() {
+        int position = mShuffle.peekNext();
+        return position < 0 ? null : mCatalog.getItem(position);
+    }
+
+    /**
+     * Moves the shuffle on to the song with the given id, if it is the one
+     * {@link #getRandomItem()} would return, as after {@link #peekRandomItem()}, and returns
+     * whether it was. If it isn't, because the catalog changed since, the shuffle stays where it
+     * was.
+     */
+    public synchronized boolean moveToRandomItem(long id) {
+        int position = mCatalog.positionOf(id);
+        return position >= 0 && mShuffle.moveTo(position);
+    }
+
+    /**
+     * Goes back in the shuffle and returns the song played before the one last returned by
+     * {@link #getRandomItem()}, or null if there is none.
+     */
+    public synchronized Item getPreviousItem() {
+        int position = mShuffle.previous();
+        return position < 0 ? null : mCatalog.getItem(position);
+    }
+
+    /**
+     * Returns up to limit songs that have words starting with each of the words of the query,
+     * in their title, artist or album. Case and accents don't matter.
+     */
+    public synchronized List<Item> search(String query, int limit) {
+        // copies of songs are left out, so ask for a few more to make up for them
+        int[] positions = mSearchIndex.search(query,
+                limit + Math.min(limit, mCatalog.duplicateCount()));
+        List<Item> items = new ArrayList<Item>(Math.min(limit, positions.length));
+        for (int position : positions) {
+            if (items.size() == limit) break;
+            if (!mCatalog.isDuplicate(position)) items.add(mCatalog.getItem(position));
+        }
+        return items;
+    }
+
+    /**
+     * Returns the names of the folders directly in the given one that have songs in them, at any
+     * depth, in name order, or null if there are no songs below the folder. Folders are given by
+     * path, like "/sdcard/Music"; "/" is the root.
+     */
+    public synchronized List<String> listFolders(String folder) {
+        int node = mFolderTree.find(folder);
+        return node < 0 ? null : mFolderTree.listFolders(node);
+    }
+
+    /** Returns the songs directly in the given folder, by file name. */
+    public synchronized List<Item> listSongs(String folder) {
+        int node = mFolderTree.find(folder);
+        if (node < 0) return new ArrayList<Item>();
+        int[] positions = mFolderTree.getTracks(node, false);
+        List<Item> items = new ArrayList<Item>(positions.length);
+        for (int position : positions) items.add(mCatalog.getItem(position));
+        return items;
+    }
+
+    /**
+     * Returns the MediaStore ids of the songs in the given folder and all the folders below it,
+     * in the order {@link #listFolders(String)} and {@link #listSongs(String)} show them: a
+     * folder's own songs first, then those of each of its folders in turn.
+     */
+    public synchronized long[] getFolderTrackIds(String folder) {
+        int node = mFolderTree.find(folder);
+        if (node < 0) return new long[0];
+        int[] positions = mFolderTree.getTracks(node, true);
+        long[] ids = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) ids[i] = mCatalog.getId(positions[i]);
+        return ids;
+    }
+
+    /** Returns the MediaStore ids of all the songs in the catalog, in catalog order. */
+    public synchronized long[] getTrackIds() {
+        long[] ids = new long[mCatalog.count()];
+        int count = 0;
+        for (int position = 0; position < mCatalog.size(); position++) {
+            if (!mCatalog.isRemoved(position)) ids[count++] = mCatalog.getId(position);
+        }
+        return ids;
+    }
+
+    /**
+     * Collapses songs that are copies of others: copyIds[i] is a copy of originalIds[i]. The
+     * copies are left out of the shuffle and of search results from then on, but can still be
+     * played by id or path. Replaces the copies set before; ids no longer in the catalog are
+     * skipped.
+     */
+    public synchronized void setDuplicates(long[] copyIds, long[] originalIds) {
+        mCatalog.clearDuplicates();
+        for (int i = 0; i < copyIds.length; i++) {
+            int position = mCatalog.positionOf(copyIds[i]);
+            int original = mCatalog.positionOf(originalIds[i]);
+            if (position >= 0 && original >= 0 && position != original) {
+                mCatalog.setOriginal(position, original);
+            }
+        }
+    }
+
+    /**
+     * Sets the table to fill in the artist, album and duration of songs that MediaStore doesn't
+     * have, from then on. Set it before loading the catalog.
+     */
+    void setTagTable(TagTable table) {
+        mTagTable = table;
+    }
+
+    /** Puts the song in the catalog again, to take in what the tag table has for it now. */
+    synchronized void refreshTrack(long id) {
+        int position = mCatalog.positionOf(id);
+        if (position >= 0) putTrack(mCatalog.getItem(position));
+    }
+
+    /** Sets the listener to call after every sync that changed the catalog. */
+    public void setSyncListener(SyncListener listener) {
+        mSyncListener = listener;
+    }
+
+    /** Returns the song with the given MediaStore id, or null if it is not in the catalog. */
+    public synchronized Item getItem(long id) {
+        int position = mCatalog.positionOf(id);
+        return position < 0 ? null : mCatalog.getItem(position);
+    }
+
+    /**
+     * Returns the song whose file is at the given path, or null if it is not in the catalog. The
+     * path has to be spelled the way MediaStore has it.
+     */
+    public synchronized Item getItemByPath(String path) {
+        int position = mCatalog.positionOfPath(path);
+        return position < 0 ? null : mCatalog.getItem(position);
+    }
+
+    /**
+     * Receives progress from {@link MusicRetriever#prepare(PageListener)} and
+     * {@link MusicRetriever#sync(PageListener)}.
+     */
+    public interface PageListener {
+        /**
+         * Called on the loading thread after each page has been added to the catalog.
+         *
+         * @param total Number of songs loaded so far.
+         * @return Whether to go on loading.
+         */
+        public boolean onPageLoaded(int total);
+    }
+
+    /** Hears about the syncs set off by MediaStore changes. */
+    public interface SyncListener {
+        /** Called on the syncing thread after a sync that changed the catalog. */
+        public void onSynced();
+    }
+
+    /** Column indices of the cursor columns we read into an {@link Item}. */
+    static class ColumnIndices {
+        final int id;
+        final int artist;
+        final int title;
+        final int album;
+        final int albumId;
+        final int duration;
+        final int data;
+        final int dateModified;
+
+        ColumnIndices(Cursor cur) {
+            id = cur.getColumnIndex(MediaStore.Audio.Media._ID);
+            artist = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+            title = cur.getColumnIndex(MediaStore.Audio.Media.TITLE);
+            album = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM);
+            albumId = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+            duration = cur.getColumnIndex(MediaStore.Audio.Media.DURATION);
+            data = cur.getColumnIndex(MediaStore.Audio.Media.DATA);
+            dateModified = cur.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
+        }
+
+        Item read(Cursor cur) {
+            return new Item(
+                    cur.getLong(id),
+                    cur.getString(artist),
+                    cur.getString(title),
+                    cur.getString(album),
+                    cur.getLong(albumId),
+                    cur.getLong(duration),
+                    data >= 0 ? cur.getString(data) : null,
+                    dateModified >= 0 ? cur.getLong(dateModified) : 0);
+        }
     }
 
     public static class Item {
@@ -92,14 +700,36 @@ public class MusicRetriever {
         String artist;
         String title;
         String album;
+        long albumId;
         long duration;
+        String path; // of the file, or null
+        long dateModified; // of the file, in seconds since the epoch, or 0 if we don't know
 
+        /** An item that is not part of any album we know, like a stream. */
         public Item(long id, String artist, String title, String album, long duration) {
+            this(id, artist, title, album, -1, duration);
+        }
+
+        public Item(long id, String artist, String title, String album, long albumId,
+                long duration) {
+            this(id, artist, title, album, albumId, duration, null);
+        }
+
+        public Item(long id, String artist, String title, String album, long albumId,
+                long duration, String path) {
+            this(id, artist, title, album, albumId, duration, path, 0);
+        }
+
+        public Item(long id, String artist, String title, String album, long albumId,
+                long duration, String path, long dateModified) {
             this.id = id;
             this.artist = artist;
             this.title = title;
             this.album = album;
+            this.albumId = albumId;
             this.duration = duration;
+            this.path = path;
+            this.dateModified = dateModified;
         }
 
         public long getId() {
@@ -118,10 +748,25 @@ public class MusicRetriever {
             return album;
         }
 
+        /** MediaStore id of the album, or -1 if the item has none. */
+        public long getAlbumId() {
+            return albumId;
+        }
+
         public long getDuration() {
             return duration;
         }
 
+        /** Path of the song's file, or null if we don't know it. */
+        public String getPath() {
+            return path;
+        }
+
+        /** When the song's file last changed, in seconds since the epoch, or 0 if unknown. */
+        public long getDateModified() {
+            return dateModified;
+        }
+
         public Uri getURI() {
             return ContentUris.withAppendedId(
                     android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id);
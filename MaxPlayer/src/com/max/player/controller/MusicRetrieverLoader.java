@@ -0,0 +1,147 @@
+package com.max.player.controller;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.max.player.util.BackgroundExecutor;
+
+/**
+ * Fills a {@link MusicRetriever} on the {@link BackgroundExecutor}: from the saved snapshot plus
+ * a sync if there is one, from a full query otherwise. The listener hears about it on the thread
+ * of the given handler: once when the first songs are in, every so often with the progress in
+ * rows per second, and once at the end.
+ *
+ * {@link #cancel()} stops the load at the next page, and from then on the listener is not called
+ * any more, even with callbacks that were already on their way; so a service can cancel in
+ * onDestroy() and know that it won't hear from the loader again. Cancel on the handler's thread.
+ */
+public class MusicRetrieverLoader implements MusicRetriever.PageListener {
+    static final String TAG = "MusicRetrieverLoader";
+
+    // how often progress is reported, at most (ms)
+    static final long PROGRESS_INTERVAL_MS = 500;
+
+    private final MusicRetriever mRetriever;
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    private volatile boolean mCancelled = false;
+    private Future<?> mFuture;
+
+    // only touched by the loading thread
+    private long mStartTime;
+    private long mLastProgressTime;
+    private boolean mFirstPageLoaded = false;
+
+    // only touched by the handler's thread
+    private boolean mPartiallyPrepared = false;
+
+    public MusicRetrieverLoader(MusicRetriever retriever, Handler handler, Listener listener) {
+        mRetriever = retriever;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /** Queues the load. */
+    public void start() {
+        try {
+            mFuture = BackgroundExecutor.get().submit(new Runnable() {
+                public void run() {
+                    load();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // can't happen unless the background thread is badly stuck, and then so are we
+            Log.e(TAG, "Could not queue the music retriever load");
+        }
+    }
+
+    /** Stops the load as soon as possible, and silences the listener. */
+    public void cancel() {
+        mCancelled = true;
+        if (mFuture != null) mFuture.cancel(false);
+    }
+
+    private void load() {
+        if (mCancelled) return;
+        mStartTime = SystemClock.elapsedRealtime();
+        mLastProgressTime = mStartTime;
+
+        if (mRetriever.loadSnapshot()) {
+            // the catalog from the last run is usable right away; reconcile it with
+            // MediaStore while the listener already gets going
+            post(mPartiallyPreparedRunnable);
+            mRetriever.sync(this);
+        } else {
+            mRetriever.prepare(this);
+        }
+        if (!mCancelled) post(mPreparedRunnable);
+    }
+
+    public boolean onPageLoaded(int total) {
+        if (mCancelled) return false;
+
+        // only the first page matters to the listener; the others just make the catalog bigger
+        if (!mFirstPageLoaded) {
+            mFirstPageLoaded = true;
+            post(mPartiallyPreparedRunnable);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - mLastProgressTime >= PROGRESS_INTERVAL_MS) {
+            mLastProgressTime = now;
+            final int rows = total;
+            final int rowsPerSecond = (int) (total * 1000L / Math.max(1, now - mStartTime));
+            post(new Runnable() {
+                public void run() {
+                    mListener.onMusicRetrieverProgress(rows, rowsPerSecond);
+                }
+            });
+        }
+        return true;
+    }
+
+    /** Runs the callback on the handler's thread, unless we are cancelled by then. */
+    private void post(final Runnable callback) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (!mCancelled) callback.run();
+            }
+        });
+    }
+
+    private final Runnable mPartiallyPreparedRunnable = new Runnable() {
+        public void run() {
+            if (mPartiallyPrepared) return;
+            mPartiallyPrepared = true;
+            mListener.onMusicRetrieverPartiallyPrepared();
+        }
+    };
+
+    private final Runnable mPreparedRunnable = new Runnable() {
+        public void run() {
+            mListener.onMusicRetrieverPrepared();
+        }
+    };
+
+    public interface Listener {
+        /**
+         * Signals that some songs are available, while more are still being retrieved. Not
+         * called if retrieving finds no songs at all.
+         */
+        public void onMusicRetrieverPartiallyPrepared();
+
+        /**
+         * Reports how far retrieving has got: the rows loaded so far (or, after a snapshot, the
+         * rows synced so far), and how many rows per second that makes.
+         */
+        public void onMusicRetrieverProgress(int rows, int rowsPerSecond);
+
+        /** Signals that retrieving is done. */
+        public void onMusicRetrieverPrepared();
+    }
+}
@@ -1,16 +1,14 @@
 package com.max.player.controller;
 
-import android.app.Notification;
-import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.media.AudioManager;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
@@ -19,24 +17,40 @@ import android.media.RemoteControlClient;
 import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
+import android.os.BatteryManager;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import com.max.player.MaxPlayerActivity;
 import com.max.player.R;
 import com.max.player.R.drawable;
 import com.max.player.interfaces.MusicFocusable;
+import com.max.player.interfaces.PlaybackStateListener;
+import com.max.player.net.CachingProxy;
+import com.max.player.net.StreamCache;
 import com.max.player.util.AudioFocusHelper;
 import com.max.player.util.MediaButtonHelper;
+import com.max.player.util.MediaPlayerCompat;
 import com.max.player.util.RemoteControlHelper;
 
 public class MusicService extends Service implements OnCompletionListener,
 		OnPreparedListener, OnErrorListener, MusicFocusable,
-		PrepareMusicRetrieverTask.MusicRetrieverPreparedListener {
+		MusicRetrieverLoader.Listener, PlaylistImporter.Listener,
+		Crossfader.Listener {
 
 	final static String TAG = "MaxPlayer";
 
@@ -46,19 +60,89 @@ public class MusicService extends Service implements OnCompletionListener,
 	public static final String ACTION_STOP = "com.max.player.action.STOP";
 	public static final String ACTION_SKIP = "com.max.player.action.SKIP";
 	public static final String ACTION_REWIND = "com.max.player.action.REWIND";
+	public static final String ACTION_PREVIOUS = "com.max.player.action.PREVIOUS";
 	public static final String ACTION_URL = "com.max.player.action.URL";
+	public static final String ACTION_PLAY_ITEM = "com.max.player.action.PLAY_ITEM";
+	public static final String ACTION_ENQUEUE = "com.max.player.action.ENQUEUE";
+	public static final String ACTION_SET_CROSSFADE = "com.max.player.action.SET_CROSSFADE";
+	public static final String ACTION_PLAY_FOLDER = "com.max.player.action.PLAY_FOLDER";
+
+	// MediaStore id of the song to play with ACTION_PLAY_ITEM, or to queue
+	// with ACTION_ENQUEUE (which takes a URL in the data instead, too)
+	public static final String EXTRA_ITEM_ID = "com.max.player.extra.ITEM_ID";
+
+	// path of the folder to play, with all the folders below it, with
+	// ACTION_PLAY_FOLDER
+	public static final String EXTRA_FOLDER = "com.max.player.extra.FOLDER";
+
+	// how long consecutive songs overlap with ACTION_SET_CROSSFADE (ms); 0
+	// plays them back to back
+	public static final String EXTRA_CROSSFADE_MS = "com.max.player.extra.CROSSFADE_MS";
+	public static final int MAX_CROSSFADE_MS = 12000;
 
 	public static final float DUCK_VOLUME = 0.1f;
 
 	private MediaPlayer mPlayer = null;
+
+	// The standby player prepares the song we'll play next while the current
+	// one is playing, so that skipping or finishing a song can switch over to
+	// it without waiting for prepareAsync(). Together with mPlayer it forms a
+	// pool of two players that trade places on every switch.
+	private MediaPlayer mStandbyPlayer = null;
+	private MusicRetriever.Item mStandbyItem = null; // song on mStandbyPlayer
+	private boolean mStandbyPrepared = false;
+	private boolean mStandbyChained = false; // set as mPlayer's next player
+	private boolean mStandbyFromQueue = false; // mStandbyItem is mQueue's head
+
+	// fades from mPlayer's song into the standby song, when they overlap
+	private Crossfader mCrossfader;
+	private int mCrossfadeMs = 0; // how long they overlap, 0 if they don't
+
+	// a fade is rescheduled if it comes due more than this early (ms)
+	private static final int CROSSFADE_SLACK_MS = 250;
+
+	// Times each request to play something, from the intent (or the end of
+	// the previous song) to audible output, for dump().
+	private final PlaybackLatency mLatency = new PlaybackLatency();
+	// when the command we're carrying out was queued (uptime), or when the
+	// song we're moving on from completed
+	private long mRequestTime = 0;
+	private boolean mSkipWasWarm = false; // switched to a prepared standby
+
+	// A skip that comes within this long of the previous one is part of a
+	// burst (someone hammering the "next" button). A burst is collapsed into
+	// a single move, so that only the song it lands on gets prepared.
+	static final long SKIP_BURST_MS = 300;
+	private long mLastSkipTime = 0;
+	private int mPendingSkips = 0; // skips of the current burst not yet applied
+
 	private AudioFocusHelper mAudioFocusHelper = null;
 
 	// states of service:
-	private enum State {
+	public enum State {
 		Retrieving, Stopped, Preparing, Playing, Paused
 	};
 
 	private State mState = State.Retrieving;
+
+	// Everything that touches mState or the media players runs on the playback
+	// thread, one command at a time. The main thread only turns intents into
+	// commands and queues them, so a slow setDataSource() or prepare never
+	// holds up the UI.
+	private enum Command {
+		TogglePlayback, Play, Pause, Skip, Stop, Rewind, Previous, PlayUrl, PlayItem, Enqueue,
+		SetCrossfade, PlayFolder,
+		// not sent by intents: the end of a burst of skips
+		ApplySkips
+	}
+
+	private HandlerThread mPlaybackThread;
+	private Handler mPlaybackHandler;
+	private Handler mMainHandler;
+
+	// notified of state changes on the main thread
+	private final CopyOnWriteArrayList<PlaybackStateListener> mStateListeners =
+			new CopyOnWriteArrayList<PlaybackStateListener>();
 	boolean mStartPlayingAfterRetrieve = false;
 	private Uri mWhatToPlayAfterRetrieve = null;
 
@@ -83,28 +167,86 @@ public class MusicService extends Service implements OnCompletionListener,
 
 	private final int NOTIFICATION_ID = 1;
 
+	// app-private file where the retriever keeps its catalog between runs
+	private static final String CATALOG_SNAPSHOT_FILE = "catalog.snapshot";
+
+	// app-private file the play queue is journaled to
+	private static final String PLAY_QUEUE_FILE = "queue.journal";
+
+	// app-private preferences, and what we keep there
+	private static final String PREFS_NAME = "playback";
+	private static final String PREF_CROSSFADE_MS = "crossfade_ms";
+
+	// app-private file with the loudness gain of every song measured so far
+	private static final String GAIN_TABLE_FILE = "loudness.gains";
+
+	// app-private file with the content hashes of the songs that may be copies
+	private static final String HASH_CACHE_FILE = "hashes.cache";
+
+	// app-private file with the tags read from the files of incomplete songs
+	private static final String TAG_TABLE_FILE = "tags.table";
+
+	// app-private file with the song and position to resume after a restart
+	private static final String RESUME_POINT_FILE = "resume.point";
+	// how often the position of a playing song is checkpointed to it (ms)
+	private static final long CHECKPOINT_INTERVAL_MS = 15000;
+
+	// where, and how much of, the streams we play are kept for the next time
+	private static final String STREAM_CACHE_DIR = "streams";
+	private static final long STREAM_CACHE_BYTES = 64 * 1024 * 1024;
+
+	// made with the first stream, and kept; the proxy is started then, or
+	// with the next stream if it couldn't be
+	private StreamCache mStreamCache;
+	private CachingProxy mStreamProxy;
+
 	private MusicRetriever mRetriever;
+	private MusicRetrieverLoader mRetrieverLoader; // fills mRetriever
+	private DuplicateDetector mDuplicateDetector; // collapses copies in mRetriever
+	private TagEnricher mTagEnricher; // fills in what MediaStore lacks in mRetriever
+	private PlayQueue mQueue; // songs to play before the shuffle's; playback thread only
+	private PlaylistImporter mPlaylistImporter; // fills mQueue from a playlist
+	private boolean mPlaylistStarted = false; // the first song of it is playing
+	private long mPlaylistRequestTime = 0; // when the playlist was asked for
+	private ResumePoint mResumePoint; // playback thread only
+	private boolean mResumeOnPlay = false; // next play picks up at mResumePoint
+	private long mPlayingId = -1; // MediaStore id of mPlayer's song, -1 for a URL
+	private int mSeekOnPrepared = 0; // where to start mPlayer's song once prepared
+	private GainTable mGainTable; // filled by mLoudnessScanner
+	private LoudnessScanner mLoudnessScanner; // null until the catalog is in
+	private boolean mOnBattery = false; // playback thread only
+	private float mPlayerGain = 1.0f; // loudness gain of mPlayer's song, as a volume
+	private float mStandbyGain = 1.0f; // same, of mStandbyItem
 	private RemoteControlClientCompat mRemoteControlClientCompat;
+	private MetadataPublisher mMetadataPublisher; // talks to the above
 	private Bitmap mDummyAlbumArt; // Dummy album art we will pass to the remote
-									// control (if the APIs are available).
+									// control (if the APIs are available),
+									// for songs without art of their own.
+	private AlbumArtLoader mAlbumArtLoader;
+	private long mArtAlbumId = -1; // album whose art the remote control wants
 	private ComponentName mMediaButtonReceiverComponent;
 
 	private AudioManager mAudioManager;
-	private NotificationManager mNotificationManager;
-
-	Notification mNotification = null;
+	private NotificationController mNotificationController;
 
 	private void createMediaPlayerIfNeeded() {
-		if (mPlayer == null) {
-			mPlayer = new MediaPlayer();
-
-			mPlayer.setWakeMode(getApplicationContext(),
-					PowerManager.PARTIAL_WAKE_LOCK);
-			mPlayer.setOnPreparedListener(this);
-			mPlayer.setOnCompletionListener(this);
-			mPlayer.setOnErrorListener(this);
-		} else
-			mPlayer.reset();
+		if (mPlayer == null)
+			mPlayer = newMediaPlayer();
+		else {
+			mPlayer.reset(); // also undoes any chaining to the standby player
+			mStandbyChained = false;
+		}
+	}
+
+	private MediaPlayer newMediaPlayer() {
+		MediaPlayer player = new MediaPlayer();
+
+		player.setWakeMode(getApplicationContext(),
+				PowerManager.PARTIAL_WAKE_LOCK);
+		player.setOnPreparedListener(this);
+		player.setOnCompletionListener(this);
+		player.setOnErrorListener(this);
+		return player;
 	}
 
 	// ----------------------------------------------------------------------------------------------
@@ -113,14 +255,53 @@ public class MusicService extends Service implements OnCompletionListener,
 	public void onCreate() {
 		Log.i(TAG, "debug: Creating service");
 
+		mMainHandler = new Handler();
+		mPlaybackThread = new HandlerThread("MusicPlayback",
+				Process.THREAD_PRIORITY_AUDIO);
+		mPlaybackThread.start();
+		mPlaybackHandler = new PlaybackHandler(mPlaybackThread.getLooper());
+
 		mWifiLock = ((WifiManager) getSystemService(Context.WIFI_SERVICE))
 				.createWifiLock(WifiManager.WIFI_MODE_FULL, "mylock");
 
-		mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+		mNotificationController = new NotificationController(this,
+				mPlaybackHandler, NOTIFICATION_ID);
+		mCrossfader = new Crossfader(mPlaybackHandler, this);
+		mCrossfadeMs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getInt(
+				PREF_CROSSFADE_MS, 0);
 		mAudioManager = (AudioManager) getSystemService(AUDIO_SERVICE);
 
-		mRetriever = new MusicRetriever(getContentResolver());
-		(new PrepareMusicRetrieverTask(mRetriever, this)).execute();
+		mRetriever = new MusicRetriever(getContentResolver(), new File(
+				getFilesDir(), CATALOG_SNAPSHOT_FILE));
+		TagTable tagTable = new TagTable(new File(getFilesDir(), TAG_TABLE_FILE));
+		mRetriever.setTagTable(tagTable);
+		mTagEnricher = new TagEnricher(mRetriever, tagTable);
+		mRetrieverLoader = new MusicRetrieverLoader(mRetriever, mMainHandler,
+				this);
+		mRetrieverLoader.start();
+		mDuplicateDetector = new DuplicateDetector(mRetriever, new HashCache(
+				new File(getFilesDir(), HASH_CACHE_FILE)));
+
+		mQueue = new PlayQueue(new File(getFilesDir(), PLAY_QUEUE_FILE));
+		mResumePoint = new ResumePoint(new File(getFilesDir(),
+				RESUME_POINT_FILE));
+		mGainTable = new GainTable(new File(getFilesDir(), GAIN_TABLE_FILE));
+		mPlaybackHandler.post(new Runnable() {
+			public void run() {
+				mQueue.load();
+				mResumeOnPlay = mResumePoint.load();
+				mGainTable.load();
+			}
+		});
+
+		// the loudness scan holds back while we play on battery
+		IntentFilter powerFilter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+		powerFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+		registerReceiver(mPowerReceiver, powerFilter);
+		Intent battery = registerReceiver(null, new IntentFilter(
+				Intent.ACTION_BATTERY_CHANGED));
+		setOnBattery(battery == null
+				|| battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0);
 
 		if (android.os.Build.VERSION.SDK_INT >= 8)
 			mAudioFocusHelper = new AudioFocusHelper(getApplicationContext(),
@@ -128,8 +309,11 @@ public class MusicService extends Service implements OnCompletionListener,
 		else
 			mAudioFocus = AudioFocus.Focused;
 
-		mDummyAlbumArt = BitmapFactory.decodeResource(getResources(),
+		mDummyAlbumArt = AlbumArtLoader.decodeResource(getResources(),
 				R.drawable.dummy_album_art);
+		mAlbumArtLoader = new AlbumArtLoader(getContentResolver(), Runtime
+				.getRuntime().maxMemory() / 16, mPlaybackHandler,
+				mAlbumArtListener);
 		mMediaButtonReceiverComponent = new ComponentName(this,
 				MusicIntentReceiver.class);
 	}
@@ -139,24 +323,191 @@ public class MusicService extends Service implements OnCompletionListener,
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		String action = intent.getAction();
+		Command command = null;
 		if (action.equals(ACTION_TOGGLE_PLAYBACK))
-			processTogglePlaybackRequest();
+			command = Command.TogglePlayback;
 		else if (action.equals(ACTION_PLAY))
-			processPlayRequest();
+			command = Command.Play;
 		else if (action.equals(ACTION_PAUSE))
-			processPauseRequest();
+			command = Command.Pause;
 		else if (action.equals(ACTION_SKIP))
-			processSkipRequest();
+			command = Command.Skip;
 		else if (action.equals(ACTION_STOP))
-			processStopRequest();
+			command = Command.Stop;
 		else if (action.equals(ACTION_REWIND))
-			processRewindRequest();
+			command = Command.Rewind;
+		else if (action.equals(ACTION_PREVIOUS))
+			command = Command.Previous;
 		else if (action.equals(ACTION_URL))
-			processAddRequest(intent);
-
+			command = Command.PlayUrl;
+		else if (action.equals(ACTION_PLAY_ITEM))
+			command = Command.PlayItem;
+		else if (action.equals(ACTION_ENQUEUE))
+			command = Command.Enqueue;
+		else if (action.equals(ACTION_SET_CROSSFADE))
+			command = Command.SetCrossfade;
+		else if (action.equals(ACTION_PLAY_FOLDER))
+			command = Command.PlayFolder;
+
+		if (command != null)
+			mPlaybackHandler.obtainMessage(command.ordinal(), intent)
+					.sendToTarget();
 		return START_NOT_STICKY;
 	}
 
+	/** Carries out commands on the playback thread. */
+	private class PlaybackHandler extends Handler {
+		PlaybackHandler(Looper looper) {
+			super(looper);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			Intent intent = (Intent) msg.obj;
+			mRequestTime = msg.getWhen(); // when onStartCommand() queued it
+			switch (Command.values()[msg.what]) {
+			case TogglePlayback:
+				processTogglePlaybackRequest();
+				break;
+			case Play:
+				processPlayRequest();
+				break;
+			case Pause:
+				processPauseRequest();
+				break;
+			case Skip:
+				processSkipRequest();
+				break;
+			case Stop:
+				processStopRequest();
+				break;
+			case Rewind:
+				processRewindRequest();
+				break;
+			case Previous:
+				processPreviousRequest();
+				break;
+			case PlayUrl:
+				processAddRequest(intent);
+				break;
+			case PlayItem:
+				processPlayItemRequest(intent);
+				break;
+			case Enqueue:
+				processEnqueueRequest(intent);
+				break;
+			case SetCrossfade:
+				processSetCrossfadeRequest(intent);
+				break;
+			case PlayFolder:
+				processPlayFolderRequest(intent);
+				break;
+			case ApplySkips:
+				applyPendingSkips();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Moves the service to a new state and lets the listeners know. Called on
+	 * the playback thread.
+	 */
+	private void setState(State state) {
+		mState = state;
+		publishState();
+
+		// the position only moves while we play
+		mPlaybackHandler.removeCallbacks(mCheckpointRunnable);
+		if (state == State.Playing)
+			mPlaybackHandler.postDelayed(mCheckpointRunnable,
+					CHECKPOINT_INTERVAL_MS);
+
+		updateLoudnessScan();
+	}
+
+	/**
+	 * Holds the loudness scan back while we play on battery, so that the
+	 * battery goes to the music; it goes on while paused, or plugged in.
+	 */
+	private void updateLoudnessScan() {
+		if (mLoudnessScanner != null)
+			mLoudnessScanner.setPaused(mOnBattery && mState == State.Playing);
+	}
+
+	/** Tells the playback thread whether we are running on battery. */
+	private void setOnBattery(final boolean onBattery) {
+		mPlaybackHandler.post(new Runnable() {
+			public void run() {
+				mOnBattery = onBattery;
+				updateLoudnessScan();
+			}
+		});
+	}
+
+	private final BroadcastReceiver mPowerReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			setOnBattery(Intent.ACTION_POWER_DISCONNECTED.equals(intent
+					.getAction()));
+		}
+	};
+
+	/**
+	 * Starts measuring the songs that have no loudness gain yet; after a sync,
+	 * the ones that just came in.
+	 */
+	private final Runnable mStartLoudnessScanRunnable = new Runnable() {
+		public void run() {
+			if (!LoudnessScanner.isAvailable())
+				return; // before API 16 we can't decode
+			if (mLoudnessScanner == null) {
+				mLoudnessScanner = new LoudnessScanner(mRetriever, mGainTable);
+				updateLoudnessScan();
+			}
+			mLoudnessScanner.start();
+		}
+	};
+
+	/**
+	 * Saves the current song and our position in it, so we can pick up there
+	 * if the service goes away. Songs played by URL are not resumed.
+	 */
+	private void checkpoint() {
+		if (mPlayer == null || mPlayingId < 0
+				|| (mState != State.Playing && mState != State.Paused))
+			return;
+		mResumePoint.save(mPlayingId, mPlayer.getCurrentPosition());
+	}
+
+	private final Runnable mCheckpointRunnable = new Runnable() {
+		public void run() {
+			checkpoint();
+			mPlaybackHandler.postDelayed(this, CHECKPOINT_INTERVAL_MS);
+		}
+	};
+
+	/** Tells the listeners about the current state, on the main thread. */
+	private void publishState() {
+		final State state = mState;
+		final String songTitle = mSongTitle;
+		mMainHandler.post(new Runnable() {
+			public void run() {
+				for (PlaybackStateListener listener : mStateListeners)
+					listener.onPlaybackStateChanged(state, songTitle);
+			}
+		});
+	}
+
+	/** Shows a toast. Toasts belong on the main thread, wherever we are. */
+	private void showToast(final String text, final int duration) {
+		mMainHandler.post(new Runnable() {
+			public void run() {
+				Toast.makeText(getApplicationContext(), text, duration).show();
+			}
+		});
+	}
+
 	// ----------------------------------------------------------------------------------------------
 
 	void processTogglePlaybackRequest() {
@@ -179,15 +530,15 @@ public class MusicService extends Service implements OnCompletionListener,
 		tryToGetAudioFocus();
 
 		if (mState == State.Stopped) {
-			playNextSong(null);
+			resumeOrPlayNextSong();
 		} else if (mState == State.Paused) {
-			mState = State.Playing;
-			setUpAsForeground(mSongTitle + " (playing)");
+			setState(State.Playing);
+			mNotificationController.show(mSongTitle + " (playing)");
 			configAndStartMediaPlayer();
 		}
 
-		if (mRemoteControlClientCompat != null) {
-			mRemoteControlClientCompat
+		if (mMetadataPublisher != null) {
+			mMetadataPublisher
 					.setPlaybackState(RemoteControlClient.PLAYSTATE_PLAYING);
 		}
 	}
@@ -201,30 +552,118 @@ public class MusicService extends Service implements OnCompletionListener,
 		}
 
 		if (mState == State.Playing) {
-			mState = State.Paused;
+			setState(State.Paused);
 			mPlayer.pause();
+			checkpoint();
 			relaxResources(false);
+			// we stay in the foreground, so that the notification stays put
+			// and playing again doesn't have to bring the service back
+			mNotificationController.show(mSongTitle + " (paused)");
 		}
 
 		// Tell any remote controls that our playback state is 'paused'.
-		if (mRemoteControlClientCompat != null) {
-			mRemoteControlClientCompat
+		if (mMetadataPublisher != null) {
+			mMetadataPublisher
 					.setPlaybackState(RemoteControlClient.PLAYSTATE_PAUSED);
 		}
 	}
 
 	// ----------------------------------------------------------------------------------------------
 	private void processRewindRequest() {
-		if (mState == State.Playing || mState == State.Paused)
+		if (mState == State.Playing || mState == State.Paused) {
 			mPlayer.seekTo(0);
+			scheduleCrossfade(); // the song ends later now
+		}
 	}
 
 	// ----------------------------------------------------------------------------------------------
-	private void processSkipRequest() {
+	private void processPreviousRequest() {
 		if (mState == State.Playing || mState == State.Paused) {
+			MusicRetriever.Item previousItem = mRetriever.getPreviousItem();
+			if (previousItem == null) {
+				// we're at the start of the history; the best we can do is
+				// start the current song over
+				processRewindRequest();
+				return;
+			}
 			tryToGetAudioFocus();
+
+			// the standby song was the one after the current song, which is
+			// not what comes after the previous one
+			dropStandby();
+			mLatency.begin(mRequestTime);
+			mSkipWasWarm = false;
+			startSong(previousItem, null);
+		}
+	}
+
+	// ----------------------------------------------------------------------------------------------
+	private void processSkipRequest() {
+		if (mState != State.Playing && mState != State.Paused
+				&& mState != State.Preparing)
+			return;
+		tryToGetAudioFocus();
+
+		long now = mRequestTime;
+		boolean inBurst = now - mLastSkipTime < SKIP_BURST_MS;
+		mLastSkipTime = now;
+		if (!inBurst && mPendingSkips == 0) {
+			// a lone skip goes through right away
 			playNextSong(null);
+			return;
 		}
+
+		// More skips are coming in. Whatever we are getting ready now is going
+		// to be skipped over, so stop preparing it, and only move on once the
+		// burst is over.
+		mPendingSkips++;
+		cancelPendingSongs();
+		mPlaybackHandler.removeMessages(Command.ApplySkips.ordinal());
+		mPlaybackHandler.sendEmptyMessageDelayed(Command.ApplySkips.ordinal(),
+				SKIP_BURST_MS);
+	}
+
+	/**
+	 * Stops the current song, or cancels its prepareAsync() if it is still
+	 * preparing, and drops the standby song, while we wait for the end of a
+	 * burst of skips.
+	 */
+	private void cancelPendingSongs() {
+		mCrossfader.finish();
+		dropStandby();
+		if (mPlayer != null)
+			mPlayer.reset();
+		if (mWifiLock.isHeld())
+			mWifiLock.release();
+		setState(State.Preparing);
+	}
+
+	/** Moves ahead by the skips of the burst that just ended, in one go. */
+	private void applyPendingSkips() {
+		int skips = mPendingSkips;
+		mPendingSkips = 0;
+		if (skips == 0)
+			return;
+
+		// queued songs are skipped over first, then the shuffle's
+		while (skips > 1 && !mQueue.isEmpty()) {
+			mQueue.remove();
+			skips--;
+		}
+		if (!mQueue.isEmpty()) {
+			mRequestTime = mLastSkipTime;
+			playNextSong(null);
+			return;
+		}
+
+		MusicRetriever.Item item = mRetriever.skipItems(skips);
+		if (item == null) {
+			processStopRequest(true);
+			return;
+		}
+		mLatency.begin(mLastSkipTime);
+		mSkipWasWarm = false;
+		startSong(item, null);
 	}
 
 	// ----------------------------------------------------------------------------------------------
@@ -235,13 +674,22 @@ public class MusicService extends Service implements OnCompletionListener,
 	// ----------------------------------------------------------------------------------------------
 	private void processStopRequest(boolean force) {
 		if (mState == State.Playing || mState == State.Paused || force) {
-			mState = State.Stopped;
+			if (mPlaylistImporter != null) {
+				// its first song would start us up again
+				mPlaylistImporter.cancel();
+				mPlaylistImporter = null;
+			}
+			checkpoint();
+			mResumeOnPlay = mResumePoint.getTrackId() >= 0;
+			setState(State.Stopped);
+			mPlaybackHandler.removeMessages(Command.ApplySkips.ordinal());
+			mPendingSkips = 0;
 
 			relaxResources(true);
 			giveUpAudioFocus();
 
-			if (mRemoteControlClientCompat != null) {
-				mRemoteControlClientCompat
+			if (mMetadataPublisher != null) {
+				mMetadataPublisher
 						.setPlaybackState(RemoteControlClient.PLAYSTATE_STOPPED);
 			}
 			stopSelf();
@@ -251,13 +699,19 @@ public class MusicService extends Service implements OnCompletionListener,
 	// ----------------------------------------------------------------------------------------------
 
 	private void relaxResources(boolean releaseMediaPlayer) {
-		stopForeground(true);
+		// whatever happens to mPlayer now, the song it was fading from is over
+		mCrossfader.finish();
+
+		if (releaseMediaPlayer)
+			mNotificationController.stop();
 
 		if (releaseMediaPlayer && mPlayer != null) {
 			mPlayer.reset();
 			mPlayer.release();
 			mPlayer = null;
 		}
+		if (releaseMediaPlayer)
+			releaseStandby();
 
 		if (mWifiLock.isHeld())
 			mWifiLock.release();
@@ -275,18 +729,63 @@ public class MusicService extends Service implements OnCompletionListener,
 
 	private void configAndStartMediaPlayer() {
 		if (mAudioFocus == AudioFocus.NoFocusNoDuck) {
+			mCrossfader.finish(); // nothing else may go on playing
 
 			if (mPlayer.isPlaying())
 				mPlayer.pause();
 			return;
-		} else if (mAudioFocus == AudioFocus.NoFocusCanDuck)
-			mPlayer.setVolume(DUCK_VOLUME, DUCK_VOLUME); // we'll be relatively
-															// quiet
-		else
-			mPlayer.setVolume(1.0f, 1.0f); // we can be loud
+		}
+		configVolume(mPlayer);
+		// a chained standby player starts by itself, so it has to be at the
+		// right volume already
+		if (mStandbyChained)
+			configVolume(mStandbyPlayer);
 
 		if (!mPlayer.isPlaying())
 			mPlayer.start();
+		finishLatency();
+		scheduleCrossfade();
+	}
+
+	private void configVolume(MediaPlayer player) {
+		float volume = getFocusVolume();
+		if (mCrossfader.isFading(player)) {
+			mCrossfader.setVolume(volume); // the fade scales from there
+		} else {
+			volume *= player == mStandbyPlayer ? mStandbyGain : mPlayerGain;
+			player.setVolume(volume, volume);
+		}
+	}
+
+	/**
+	 * The volume that brings the song to the reference loudness, from its
+	 * measured gain. This only ever turns songs down: MediaPlayer.setVolume()
+	 * can't go above full volume, and raising a quiet song any other way would
+	 * clip its peaks, so songs quieter than the reference play as they are.
+	 * The table keeps their positive gains all the same, up to
+	 * LoudnessScanner.MAX_GAIN_DB, for whatever can use them.
+	 */
+	private float getLoudnessGain(long id) {
+		float gainDb = mGainTable.getGainDb(id);
+		return Math.min(1.0f, (float) Math.pow(10, gainDb / 20));
+	}
+
+	/** The volume that audio focus allows us to play at. */
+	private float getFocusVolume() {
+		if (mAudioFocus == AudioFocus.NoFocusCanDuck)
+			return DUCK_VOLUME; // we'll be relatively quiet
+		return 1.0f; // we can be loud
+	}
+
+	/** Records, and logs, how long the pending request took to become audible. */
+	private void finishLatency() {
+		long latency = mLatency.finish(
+				mIsStreaming ? PlaybackLatency.SOURCE_STREAM
+						: PlaybackLatency.SOURCE_LOCAL, mSkipWasWarm,
+				SystemClock.uptimeMillis());
+		if (latency >= 0)
+			Log.i(TAG, "Skip-to-audio latency: " + latency + "ms ("
+					+ (mSkipWasWarm ? "standby" : "cold") + ")");
 	}
 
 	void processAddRequest(Intent intent) {
@@ -303,10 +802,176 @@ public class MusicService extends Service implements OnCompletionListener,
 				|| mState == State.Stopped) {
 			Log.i(TAG, "Playing from URL/path: " + intent.getData().toString());
 			tryToGetAudioFocus();
-			playNextSong(intent.getData().toString());
+			playUrl(intent.getData().toString());
+		}
+	}
+
+	/**
+	 * Plays the song at the given URL or path, or if it is a playlist, the
+	 * songs in it.
+	 */
+	void playUrl(String url) {
+		if (PlaylistImporter.isPlaylist(url))
+			importPlaylist(url);
+		else
+			playNextSong(url);
+	}
+
+	/**
+	 * Replaces the play queue with the songs of the playlist at the given URL
+	 * or path. The playlist is read in the background, and its first song
+	 * starts as soon as it has been read.
+	 */
+	void importPlaylist(String url) {
+		if (mPlaylistImporter != null)
+			mPlaylistImporter.cancel();
+		mQueue.clear();
+		if (mStandbyFromQueue)
+			dropStandby();
+		mPlaylistStarted = false;
+		mPlaylistRequestTime = mRequestTime;
+		mPlaylistImporter = new PlaylistImporter(url, mRetriever,
+				mPlaybackHandler, this);
+		mPlaylistImporter.start();
+	}
+
+	public void onPlaylistSongs(long[] ids, String[] urls) {
+		mQueue.addAll(ids, urls);
+		if (!mPlaylistStarted) {
+			// the first song of the playlist goes ahead of the standby song
+			mPlaylistStarted = true;
+			if (mStandbyItem != null && !mStandbyFromQueue)
+				dropStandby();
+			tryToGetAudioFocus();
+			mRequestTime = mPlaylistRequestTime;
+			playNextSong(null);
+		} else if (mStandbyItem == null
+				&& (mState == State.Playing || mState == State.Paused)) {
+			prepareStandbySong();
 		}
 	}
 
+	public void onPlaylistIsStream(String url) {
+		// a live stream: MediaPlayer plays the playlist itself
+		mPlaylistImporter = null;
+		tryToGetAudioFocus();
+		mRequestTime = mPlaylistRequestTime;
+		playNextSong(url);
+	}
+
+	public void onPlaylistImported(int songs) {
+		mPlaylistImporter = null;
+		if (songs == 0)
+			showToast("The playlist has no songs we can play.",
+					Toast.LENGTH_LONG);
+	}
+
+	void processPlayItemRequest(Intent intent) {
+		// user picked a song from the search results. There are no results to
+		// pick from until we have retrieved some songs, so we can't be in the
+		// Retrieving state here.
+		if (mState == State.Retrieving)
+			return;
+
+		MusicRetriever.Item item = mRetriever.getItem(intent.getLongExtra(
+				EXTRA_ITEM_ID, -1));
+		if (item == null)
+			return;
+
+		tryToGetAudioFocus();
+		mLatency.begin(mRequestTime);
+		mSkipWasWarm = false;
+		startSong(item, null);
+	}
+
+	void processPlayFolderRequest(Intent intent) {
+		// user picked a folder to play, with everything below it. Like search
+		// results, there are no folders to pick from until we have retrieved
+		// some songs.
+		if (mState == State.Retrieving)
+			return;
+
+		String folder = intent.getStringExtra(EXTRA_FOLDER);
+		long[] ids = folder == null ? null : mRetriever
+				.getFolderTrackIds(folder);
+		if (ids == null || ids.length == 0) {
+			showToast("The folder has no songs we can play.",
+					Toast.LENGTH_LONG);
+			return;
+		}
+
+		// the folder replaces the play queue, like a playlist does
+		if (mPlaylistImporter != null) {
+			mPlaylistImporter.cancel();
+			mPlaylistImporter = null;
+		}
+		mQueue.clear();
+		mQueue.addAll(ids, new String[ids.length]);
+		if (mStandbyItem != null)
+			dropStandby();
+		tryToGetAudioFocus();
+		playNextSong(null);
+	}
+
+	void processEnqueueRequest(Intent intent) {
+		// user wants to hear a song after the current one: a track from the
+		// search results by id, or a URL or path in the data
+		if (intent.getData() != null)
+			mQueue.addUrl(intent.getData().toString());
+		else if (intent.hasExtra(EXTRA_ITEM_ID))
+			mQueue.addTrack(intent.getLongExtra(EXTRA_ITEM_ID, -1));
+		else
+			return;
+
+		// a standby song from the shuffle has to make way for the queued one
+		if (mStandbyItem != null && !mStandbyFromQueue)
+			dropStandby();
+		if (mStandbyItem == null
+				&& (mState == State.Playing || mState == State.Paused))
+			prepareStandbySong();
+	}
+
+	/**
+	 * Starts playing the song of the resume point where we left it, if a play
+	 * request is the first since a restart or a stop and the song is still
+	 * there; otherwise starts playing the next song.
+	 */
+	void resumeOrPlayNextSong() {
+		MusicRetriever.Item item = null;
+		if (mResumeOnPlay) {
+			mResumeOnPlay = false;
+			item = mRetriever.getItem(mResumePoint.getTrackId());
+		}
+		if (item == null) {
+			playNextSong(null);
+			return;
+		}
+		Log.i(TAG, "Resuming " + item.getTitle() + " at "
+				+ mResumePoint.getPosition() + "ms");
+		mLatency.begin(mRequestTime);
+		mSkipWasWarm = false;
+		startSong(item, null, mResumePoint.getPosition());
+	}
+
+	void processSetCrossfadeRequest(Intent intent) {
+		int crossfadeMs = Math.max(0, Math.min(MAX_CROSSFADE_MS,
+				intent.getIntExtra(EXTRA_CROSSFADE_MS, 0)));
+		if (crossfadeMs == mCrossfadeMs)
+			return;
+		mCrossfadeMs = crossfadeMs;
+		getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+				.putInt(PREF_CROSSFADE_MS, crossfadeMs).commit();
+
+		// a chained standby player would cut in without a fade, and without
+		// chaining there would be a gap
+		if (mCrossfadeMs > 0 && mStandbyChained && mPlayer != null) {
+			MediaPlayerCompat.setNextMediaPlayer(mPlayer, null);
+			mStandbyChained = false;
+		}
+		chainStandbyPlayer();
+		scheduleCrossfade();
+	}
+
 	void tryToGetAudioFocus() {
 		if (mAudioFocus != AudioFocus.Focused && mAudioFocusHelper != null
 				&& mAudioFocusHelper.requestFocus())
@@ -315,100 +980,110 @@ public class MusicService extends Service implements OnCompletionListener,
 
 	/**
 	 * Starts playing the next song. If manualUrl is null, the next song will be
-	 * randomly selected from our Media Retriever (that is, it will be a random
-	 * song in the user's device). If manualUrl is non-null, then it specifies
-	 * the URL or path to the song that will be played next.
+	 * the head of the play queue, or if the queue is empty, randomly selected
+	 * from our Media Retriever (that is, it will be a random song in the user's
+	 * device). If manualUrl is non-null, then it specifies the URL or path to
+	 * the song that will be played next.
 	 */
 	void playNextSong(String manualUrl) {
-		mState = State.Stopped;
+		mLatency.begin(mRequestTime);
+		if (manualUrl == null && mStandbyItem != null && mPlayer != null) {
+			playStandbySong();
+			return;
+		}
+		mSkipWasWarm = false;
+
+		MusicRetriever.Item playingItem = null;
+		// take songs off the queue, passing over the ones deleted since
+		while (manualUrl == null && playingItem == null && !mQueue.isEmpty()) {
+			// a URL entry's URL goes away when the entry leaves the queue
+			long entry = mQueue.peek();
+			if (PlayQueue.isUrl(entry))
+				manualUrl = mQueue.getUrl(entry);
+			else
+				playingItem = mRetriever.getItem(entry);
+			mQueue.remove();
+		}
+		if (manualUrl == null && playingItem == null) {
+			playingItem = mRetriever.getRandomItem();
+			if (playingItem == null) {
+				showToast(
+						"No available music to play. Place some music on your external storage "
+								+ "device (e.g. your SD card) and try again.",
+						Toast.LENGTH_LONG);
+				processStopRequest(true); // stop everything!
+				return;
+			}
+		}
+		startSong(playingItem, manualUrl);
+	}
+
+	/**
+	 * Starts playing a song on the main player: the given song from our Media
+	 * Retriever if manualUrl is null, or else the song at the given URL or path.
+	 */
+	void startSong(MusicRetriever.Item playingItem, String manualUrl) {
+		startSong(playingItem, manualUrl, 0);
+	}
+
+	/**
+	 * Starts playing a song on the main player, like above, from the given
+	 * position (ms).
+	 */
+	void startSong(MusicRetriever.Item playingItem, String manualUrl,
+			int position) {
+		setState(State.Stopped);
 		relaxResources(false); // release everything except MediaPlayer
+		mSeekOnPrepared = position;
 
 		try {
-			MusicRetriever.Item playingItem = null;
 			if (manualUrl != null) {
 				// set the source of the media player to a manual URL or path
 				createMediaPlayerIfNeeded();
 				mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-				mPlayer.setDataSource(manualUrl);
 				mIsStreaming = manualUrl.startsWith("http:")
 						|| manualUrl.startsWith("https:");
+				// a live stream's playlist points to segments relative to its
+				// URL, which must not become relative to the proxy's
+				if (mIsStreaming && !PlaylistImporter.isPlaylist(manualUrl)) {
+					// streams go through our caching proxy, and once we have
+					// all of one, playing it again doesn't need the network
+					mPlayer.setDataSource(getProxyUrl(manualUrl));
+					mIsStreaming = !mStreamCache.isComplete(manualUrl);
+				} else if (manualUrl.startsWith("content:")
+						|| manualUrl.startsWith("file:")) {
+					mPlayer.setDataSource(getApplicationContext(),
+							Uri.parse(manualUrl));
+				} else {
+					mPlayer.setDataSource(manualUrl);
+				}
+				mLatency.mark(PlaybackLatency.STAGE_DATA_SOURCE,
+						SystemClock.uptimeMillis());
 
 				playingItem = new MusicRetriever.Item(0, null, manualUrl, null,
 						0);
+				mPlayingId = -1;
+				mPlayerGain = 1.0f;
+				mResumePoint.clear();
 			} else {
 				mIsStreaming = false; // playing a locally available song
 
-				playingItem = mRetriever.getRandomItem();
-				if (playingItem == null) {
-					Toast.makeText(
-							this,
-							"No available music to play. Place some music on your external storage "
-									+ "device (e.g. your SD card) and try again.",
-							Toast.LENGTH_LONG).show();
-					processStopRequest(true); // stop everything!
-					return;
-				}
-
 				// set the source of the media player a a content URI
 				createMediaPlayerIfNeeded();
 				mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
 				mPlayer.setDataSource(getApplicationContext(),
 						playingItem.getURI());
+				mLatency.mark(PlaybackLatency.STAGE_DATA_SOURCE,
+						SystemClock.uptimeMillis());
+				mPlayingId = playingItem.getId();
+				mPlayerGain = getLoudnessGain(mPlayingId);
+				mResumePoint.save(mPlayingId, position);
 			}
 
 			mSongTitle = playingItem.getTitle();
 
-			mState = State.Preparing;
-			setUpAsForeground(mSongTitle + " (loading)");
-
-			// Use the media button APIs (if available) to register ourselves
-			// for media button
-			// events
-
-			MediaButtonHelper.registerMediaButtonEventReceiverCompat(
-					mAudioManager, mMediaButtonReceiverComponent);
-
-			// Use the remote control APIs (if available) to set the playback
-			// state
-
-			if (mRemoteControlClientCompat == null) {
-				Intent intent = new Intent(Intent.ACTION_MEDIA_BUTTON);
-				intent.setComponent(mMediaButtonReceiverComponent);
-				mRemoteControlClientCompat = new RemoteControlClientCompat(
-						PendingIntent.getBroadcast(this /* context */, 0 /*
-																		 * requestCode
-																		 * ,
-																		 * ignored
-																		 */,
-								intent /* intent */, 0 /* flags */));
-				RemoteControlHelper.registerRemoteControlClient(mAudioManager,
-						mRemoteControlClientCompat);
-			}
-
-			mRemoteControlClientCompat
-					.setPlaybackState(RemoteControlClient.PLAYSTATE_PLAYING);
-
-			mRemoteControlClientCompat
-					.setTransportControlFlags(RemoteControlClient.FLAG_KEY_MEDIA_PLAY
-							| RemoteControlClient.FLAG_KEY_MEDIA_PAUSE
-							| RemoteControlClient.FLAG_KEY_MEDIA_NEXT
-							| RemoteControlClient.FLAG_KEY_MEDIA_STOP);
-
-			// Update the remote controls
-			mRemoteControlClientCompat
-					.editMetadata(true)
-					.putString(MediaMetadataRetriever.METADATA_KEY_ARTIST,
-							playingItem.getArtist())
-					.putString(MediaMetadataRetriever.METADATA_KEY_ALBUM,
-							playingItem.getAlbum())
-					.putString(MediaMetadataRetriever.METADATA_KEY_TITLE,
-							playingItem.getTitle())
-					.putLong(MediaMetadataRetriever.METADATA_KEY_DURATION,
-							playingItem.getDuration())
-					// TODO: fetch real item artwork
-					.putBitmap(
-							RemoteControlClientCompat.MetadataEditorCompat.METADATA_KEY_ARTWORK,
-							mDummyAlbumArt).apply();
+			setState(State.Preparing);
+			publishSong(playingItem, mSongTitle + " (loading)");
 
 			// starts preparing the media player in the background. When it's
 			// done, it will call
@@ -419,6 +1094,8 @@ public class MusicService extends Service implements OnCompletionListener,
 			// Until the media player is prepared, we *cannot* call start() on
 			// it!
 			mPlayer.prepareAsync();
+			mLatency.mark(PlaybackLatency.STAGE_PREPARE,
+					SystemClock.uptimeMillis());
 
 			// If we are streaming from the internet, we want to hold a Wifi
 			// lock, which prevents
@@ -434,53 +1111,331 @@ public class MusicService extends Service implements OnCompletionListener,
 			Log.e("MusicService",
 					"IOException playing next song: " + ex.getMessage());
 			ex.printStackTrace();
+		} catch (SecurityException ex) {
+			// a content: URI we aren't allowed to read
+			Log.e("MusicService",
+					"SecurityException playing next song: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the URL of the given stream on our caching proxy, starting the
+	 * proxy the first time. If it can't be started, we go to the server
+	 * directly.
+	 */
+	private String getProxyUrl(String url) {
+		if (mStreamProxy == null) {
+			// the cache reads its whole directory, so it is only made once
+			mStreamCache = new StreamCache(new File(getCacheDir(),
+					STREAM_CACHE_DIR), STREAM_CACHE_BYTES);
+			mStreamProxy = new CachingProxy(mStreamCache);
+		}
+		try {
+			mStreamProxy.start(); // does nothing if it's running
+		} catch (IOException ex) {
+			Log.w(TAG, "Could not start the stream proxy", ex);
+			return url;
+		}
+		return mStreamProxy.getUrl(url);
+	}
+
+	/**
+	 * Shows the song in the notification and on the remote controls. The text
+	 * is what the notification says about it.
+	 */
+	void publishSong(MusicRetriever.Item playingItem, String text) {
+		mNotificationController.showSong(text);
+
+		// Use the media button APIs (if available) to register ourselves
+		// for media button
+		// events
+
+		MediaButtonHelper.registerMediaButtonEventReceiverCompat(
+				mAudioManager, mMediaButtonReceiverComponent);
+
+		// Use the remote control APIs (if available) to set the playback
+		// state
+
+		if (mRemoteControlClientCompat == null) {
+			Intent intent = new Intent(Intent.ACTION_MEDIA_BUTTON);
+			intent.setComponent(mMediaButtonReceiverComponent);
+			mRemoteControlClientCompat = new RemoteControlClientCompat(
+					PendingIntent.getBroadcast(this /* context */, 0 /*
+																	 * requestCode
+																	 * ,
+																	 * ignored
+																	 */,
+							intent /* intent */, 0 /* flags */));
+			RemoteControlHelper.registerRemoteControlClient(mAudioManager,
+					mRemoteControlClientCompat);
+			mMetadataPublisher = new MetadataPublisher(
+					mRemoteControlClientCompat, mPlaybackHandler);
+		}
+
+		mMetadataPublisher
+				.setPlaybackState(RemoteControlClient.PLAYSTATE_PLAYING);
+
+		mMetadataPublisher
+				.setTransportControlFlags(RemoteControlClient.FLAG_KEY_MEDIA_PLAY
+						| RemoteControlClient.FLAG_KEY_MEDIA_PAUSE
+						| RemoteControlClient.FLAG_KEY_MEDIA_NEXT
+						| RemoteControlClient.FLAG_KEY_MEDIA_PREVIOUS
+						| RemoteControlClient.FLAG_KEY_MEDIA_STOP);
+
+		// Update the remote controls. Only what differs from the last song is
+		// sent, and a burst of song changes only sends the last one. If the
+		// album art isn't decoded yet, it follows once it is.
+		mArtAlbumId = playingItem.getAlbumId();
+		Bitmap art = mAlbumArtLoader.get(mArtAlbumId);
+		if (art == null && !mAlbumArtLoader.isCached(mArtAlbumId))
+			mAlbumArtLoader.load(mArtAlbumId);
+		mMetadataPublisher.setMetadata(playingItem.getArtist(),
+				playingItem.getAlbum(), playingItem.getTitle(),
+				playingItem.getDuration(), art != null ? art : mDummyAlbumArt);
+	}
+
+	private final AlbumArtLoader.Listener mAlbumArtListener =
+			new AlbumArtLoader.Listener() {
+		public void onAlbumArtLoaded(long albumId, Bitmap art) {
+			if (albumId == mArtAlbumId && art != null
+					&& mMetadataPublisher != null)
+				mMetadataPublisher.setArtwork(art);
+		}
+	};
+
+	/**
+	 * Switches playback over to the standby player, which has been preparing
+	 * the next song in the background. The player we switch away from becomes
+	 * the new standby player.
+	 */
+	void playStandbySong() {
+		playStandbySong(false);
+	}
+
+	/**
+	 * Switches playback over to the standby player, like above. When
+	 * crossfading, the player we switch away from is still playing, and only
+	 * comes back from the crossfader once the fade is over.
+	 */
+	void playStandbySong(boolean crossfade) {
+		MusicRetriever.Item playingItem = mStandbyItem;
+		boolean prepared = mStandbyPrepared;
+		mSkipWasWarm = prepared;
+
+		// move the queue, or the shuffle, on to the standby song; if the
+		// catalog changed since we peeked it, the shuffle stays where it is
+		if (mStandbyFromQueue)
+			mQueue.remove();
+		else
+			mRetriever.moveToRandomItem(playingItem.getId());
+		mStandbyFromQueue = false;
+
+		MediaPlayer previous = mPlayer;
+		mPlayer = mStandbyPlayer;
+		if (crossfade) {
+			mStandbyPlayer = null;
+		} else {
+			mStandbyPlayer = previous;
+			mStandbyPlayer.reset();
+		}
+		mStandbyItem = null;
+		mStandbyPrepared = false;
+		mStandbyChained = false;
+
+		mIsStreaming = false; // the standby song is always a local one
+		if (mWifiLock.isHeld())
+			mWifiLock.release();
+
+		mSongTitle = playingItem.getTitle();
+		mPlayingId = playingItem.getId();
+		mPlayerGain = mStandbyGain;
+		mSeekOnPrepared = 0;
+		mResumePoint.save(mPlayingId, 0);
+		if (prepared) {
+			// if the players were chained, mPlayer is playing already
+			setState(State.Playing);
+			publishSong(playingItem, mSongTitle + " (playing)");
+			configAndStartMediaPlayer();
+			if (!crossfade)
+				prepareStandbySong(); // onCrossfadeFinished() does it otherwise
+		} else {
+			// we'll get to play it in onPrepared(), like any other song
+			setState(State.Preparing);
+			publishSong(playingItem, mSongTitle + " (loading)");
+		}
+	}
+
+	/**
+	 * Picks the song to play after the current one and starts preparing it on
+	 * the standby player, unless that's already under way.
+	 */
+	void prepareStandbySong() {
+		if (mStandbyItem != null) {
+			chainStandbyPlayer();
+			return;
+		}
+
+		MusicRetriever.Item item;
+		if (!mQueue.isEmpty()) {
+			// a queued URL is played cold, and a deleted track is passed over
+			// by playNextSong(); there is nothing to get ready for either
+			long entry = mQueue.peek();
+			if (PlayQueue.isUrl(entry))
+				return;
+			item = mRetriever.getItem(entry);
+		} else {
+			item = mRetriever.peekRandomItem();
+		}
+		if (item == null)
+			return;
+
+		if (mStandbyPlayer == null)
+			mStandbyPlayer = newMediaPlayer();
+		try {
+			mStandbyPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+			mStandbyPlayer.setDataSource(getApplicationContext(), item.getURI());
+			mStandbyPlayer.prepareAsync();
+			mStandbyItem = item;
+			mStandbyGain = getLoudnessGain(item.getId());
+			mStandbyFromQueue = !mQueue.isEmpty();
+			mAlbumArtLoader.prefetch(item.getAlbumId());
+		} catch (IOException ex) {
+			Log.e(TAG, "IOException preparing standby song: " + ex.getMessage());
+			mStandbyPlayer.reset();
 		}
 	}
 
+	/**
+	 * Sets the prepared standby player to start right when mPlayer completes,
+	 * where the platform supports it, for gapless playback.
+	 */
+	void chainStandbyPlayer() {
+		if (mCrossfadeMs > 0) {
+			scheduleCrossfade(); // the fade takes the place of chaining
+			return;
+		}
+		if (!mStandbyPrepared || mStandbyChained || mPlayer == null
+				|| (mState != State.Playing && mState != State.Paused))
+			return;
+
+		configVolume(mStandbyPlayer);
+		mStandbyChained = MediaPlayerCompat.setNextMediaPlayer(mPlayer,
+				mStandbyPlayer);
+	}
+
+	/**
+	 * Sets the fade into the prepared standby song to start the crossfade time
+	 * before the current song ends, if crossfading is on. One delayed message
+	 * per song; it is set again whenever the song (re)starts or seeks.
+	 */
+	void scheduleCrossfade() {
+		mPlaybackHandler.removeCallbacks(mCrossfadeRunnable);
+		if (mCrossfadeMs <= 0 || !mStandbyPrepared || mPlayer == null
+				|| mState != State.Playing || mCrossfader.isFading())
+			return;
+		int duration = mPlayer.getDuration();
+		if (duration <= 0)
+			return; // a live stream never ends
+		int remaining = duration - mPlayer.getCurrentPosition();
+		mPlaybackHandler.postDelayed(mCrossfadeRunnable,
+				Math.max(0, remaining - mCrossfadeMs));
+	}
+
+	private final Runnable mCrossfadeRunnable = new Runnable() {
+		public void run() {
+			if (mCrossfadeMs <= 0 || !mStandbyPrepared || mPlayer == null
+					|| mState != State.Playing || !mPlayer.isPlaying()
+					|| mCrossfader.isFading())
+				return;
+			int remaining = mPlayer.getDuration()
+					- mPlayer.getCurrentPosition();
+			if (remaining > mCrossfadeMs + CROSSFADE_SLACK_MS) {
+				// the clock and the song drifted apart; try again later
+				mPlaybackHandler.postDelayed(this, remaining - mCrossfadeMs);
+				return;
+			}
+
+			mRequestTime = SystemClock.uptimeMillis();
+			mLatency.begin(mRequestTime);
+			mCrossfader.start(mPlayer, mPlayerGain, mStandbyPlayer,
+					mStandbyGain, Math.min(mCrossfadeMs, remaining),
+					getFocusVolume());
+			playStandbySong(true);
+		}
+	};
+
+	/** Takes back the player that was faded out, as the next standby player. */
+	public void onCrossfadeFinished(MediaPlayer outgoing) {
+		outgoing.reset();
+		if (mStandbyPlayer == null)
+			mStandbyPlayer = outgoing;
+		else
+			outgoing.release(); // a standby song came in during the fade
+		if (mState == State.Playing || mState == State.Paused)
+			prepareStandbySong();
+	}
+
+	/** Drops the standby song, but keeps its player for the next one. */
+	void dropStandby() {
+		if (mStandbyChained && mPlayer != null)
+			MediaPlayerCompat.setNextMediaPlayer(mPlayer, null);
+		if (mStandbyPlayer != null)
+			mStandbyPlayer.reset();
+		mStandbyItem = null;
+		mStandbyPrepared = false;
+		mStandbyChained = false;
+		mStandbyFromQueue = false;
+	}
+
+	/** Drops the standby song and releases its player. */
+	void releaseStandby() {
+		if (mStandbyPlayer != null) {
+			mStandbyPlayer.reset();
+			mStandbyPlayer.release();
+			mStandbyPlayer = null;
+		}
+		mStandbyItem = null;
+		mStandbyPrepared = false;
+		mStandbyChained = false;
+		mStandbyFromQueue = false;
+	}
+
 	/** Called when media player is done playing current song. */
 	public void onCompletion(MediaPlayer player) {
+		if (player != mPlayer) {
+			// the song we were fading out of ran out before the fade did
+			if (mCrossfader.isFading(player))
+				mCrossfader.finish();
+			return;
+		}
+
 		// The media player finished playing the current song, so we go ahead
 		// and start the next.
+		mRequestTime = SystemClock.uptimeMillis();
 		playNextSong(null);
 	}
 
 	/** Called when media player is done preparing. */
 	public void onPrepared(MediaPlayer player) {
+		if (player == mStandbyPlayer) {
+			// The next song is ready to go whenever the current one ends.
+			mStandbyPrepared = true;
+			chainStandbyPlayer();
+			return;
+		}
+
 		// The media player is done preparing. That means we can start playing!
-		mState = State.Playing;
-		updateNotification(mSongTitle + " (playing)");
+		mLatency.mark(PlaybackLatency.STAGE_PREPARED,
+				SystemClock.uptimeMillis());
+		if (mSeekOnPrepared > 0) {
+			// resuming where we left off
+			mPlayer.seekTo(mSeekOnPrepared);
+			mSeekOnPrepared = 0;
+		}
+		setState(State.Playing);
+		mNotificationController.show(mSongTitle + " (playing)");
 		configAndStartMediaPlayer();
-	}
-
-	/** Updates the notification. */
-	void updateNotification(String text) {
-		PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
-				0,
-				new Intent(getApplicationContext(), MaxPlayerActivity.class),
-				PendingIntent.FLAG_UPDATE_CURRENT);
-		mNotification.setLatestEventInfo(getApplicationContext(),
-				"RandomMusicPlayer", text, pi);
-		mNotificationManager.notify(NOTIFICATION_ID, mNotification);
-	}
-
-	/**
-	 * Configures service as a foreground service. A foreground service is a
-	 * service that's doing something the user is actively aware of (such as
-	 * playing music), and must appear to the user as a notification. That's why
-	 * we create the notification here.
-	 */
-	void setUpAsForeground(String text) {
-		PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
-				0,
-				new Intent(getApplicationContext(), MaxPlayerActivity.class),
-				PendingIntent.FLAG_UPDATE_CURRENT);
-		mNotification = new Notification();
-		mNotification.tickerText = text;
-		mNotification.icon = R.drawable.ic_stat_playing;
-		mNotification.flags |= Notification.FLAG_ONGOING_EVENT;
-		mNotification.setLatestEventInfo(getApplicationContext(),
-				"RandomMusicPlayer", text, pi);
-		startForeground(NOTIFICATION_ID, mNotification);
+		prepareStandbySong();
 	}
 
 	/**
@@ -489,21 +1444,55 @@ public class MusicService extends Service implements OnCompletionListener,
 	 * reset the media player.
 	 */
 	public boolean onError(MediaPlayer mp, int what, int extra) {
-		Toast.makeText(getApplicationContext(),
-				"Media player error! Resetting.", Toast.LENGTH_SHORT).show();
+		if (mp == mStandbyPlayer) {
+			// Only the song we were getting ready failed. Playback goes on, and
+			// we'll pick another song when we get to it.
+			Log.w(TAG, "Standby player error: what=" + what + ", extra="
+					+ extra);
+			dropStandby();
+			return true;
+		}
+		if (mp != mPlayer && mCrossfader.isFading(mp)) {
+			// the song we were fading out of failed; let it go
+			mCrossfader.finish();
+			return true;
+		}
+
+		showToast("Media player error! Resetting.", Toast.LENGTH_SHORT);
 		Log.e(TAG,
 				"Error: what=" + String.valueOf(what) + ", extra="
 						+ String.valueOf(extra));
 
-		mState = State.Stopped;
+		// The next play picks up at the last checkpoint, unless the song never
+		// got going: then it would only fail again.
+		mResumeOnPlay = mState != State.Preparing
+				&& mResumePoint.getTrackId() >= 0;
+		mSeekOnPrepared = 0;
+
+		setState(State.Stopped);
 		relaxResources(true);
 		giveUpAudioFocus();
 		return true; // true indicates we handled the error
 	}
 
 	public void onGainedAudioFocus() {
-		Toast.makeText(getApplicationContext(), "gained audio focus.",
-				Toast.LENGTH_SHORT).show();
+		mPlaybackHandler.post(new Runnable() {
+			public void run() {
+				handleGainedAudioFocus();
+			}
+		});
+	}
+
+	public void onLostAudioFocus(final boolean canDuck) {
+		mPlaybackHandler.post(new Runnable() {
+			public void run() {
+				handleLostAudioFocus(canDuck);
+			}
+		});
+	}
+
+	void handleGainedAudioFocus() {
+		showToast("gained audio focus.", Toast.LENGTH_SHORT);
 		mAudioFocus = AudioFocus.Focused;
 
 		// restart media player with new focus settings
@@ -511,10 +1500,9 @@ public class MusicService extends Service implements OnCompletionListener,
 			configAndStartMediaPlayer();
 	}
 
-	public void onLostAudioFocus(boolean canDuck) {
-		Toast.makeText(getApplicationContext(),
-				"lost audio focus." + (canDuck ? "can duck" : "no duck"),
-				Toast.LENGTH_SHORT).show();
+	void handleLostAudioFocus(boolean canDuck) {
+		showToast("lost audio focus." + (canDuck ? "can duck" : "no duck"),
+				Toast.LENGTH_SHORT);
 		mAudioFocus = canDuck ? AudioFocus.NoFocusCanDuck
 				: AudioFocus.NoFocusNoDuck;
 
@@ -523,29 +1511,143 @@ public class MusicService extends Service implements OnCompletionListener,
 			configAndStartMediaPlayer();
 	}
 
+	public void onMusicRetrieverPartiallyPrepared() {
+		// The first songs are in. That's enough to pick a random one, so there
+		// is no need to wait for the rest.
+		mPlaybackHandler.post(mFinishRetrievingRunnable);
+	}
+
+	public void onMusicRetrieverProgress(int rows, int rowsPerSecond) {
+		Log.i(TAG, "Retrieved " + rows + " songs (" + rowsPerSecond
+				+ " rows/s)");
+	}
+
 	public void onMusicRetrieverPrepared() {
 		// Done retrieving!
-		mState = State.Stopped;
+		mPlaybackHandler.post(mFinishRetrievingRunnable);
+
+		// From now on, keep the catalog up to date as music is added or
+		// removed, without ever re-scanning the whole library; collapse the
+		// copies of songs in it, fill in the tags MediaStore lacks, and
+		// measure the loudness of the new songs, now and after every change.
+		mRetriever.setSyncListener(new MusicRetriever.SyncListener() {
+			public void onSynced() {
+				mDuplicateDetector.start();
+				if (TagEnricher.isAvailable())
+					mTagEnricher.start();
+				mPlaybackHandler.post(mStartLoudnessScanRunnable);
+			}
+		});
+		mRetriever.startWatching(mMainHandler);
+		mDuplicateDetector.start();
+		if (TagEnricher.isAvailable())
+			mTagEnricher.start();
+
+		// and measure the loudness of the songs we haven't yet
+		mPlaybackHandler.post(mStartLoudnessScanRunnable);
+	}
+
+	private final Runnable mFinishRetrievingRunnable = new Runnable() {
+		public void run() {
+			finishRetrieving();
+		}
+	};
+
+	/**
+	 * Leaves the Retrieving state, if we are still in it, and starts playing if
+	 * a play request came in while we were retrieving.
+	 */
+	void finishRetrieving() {
+		if (mState != State.Retrieving)
+			return;
+		setState(State.Stopped);
 
 		// If the flag indicates we should start playing after retrieving, let's
 		// do that now.
 		if (mStartPlayingAfterRetrieve) {
 			tryToGetAudioFocus();
-			playNextSong(mWhatToPlayAfterRetrieve == null ? null
-					: mWhatToPlayAfterRetrieve.toString());
+			if (mWhatToPlayAfterRetrieve == null)
+				resumeOrPlayNextSong();
+			else
+				playUrl(mWhatToPlayAfterRetrieve.toString());
 		}
 	}
 
 	@Override
 	public void onDestroy() {
-		// Service is being killed, so make sure we release our resources
-		mState = State.Stopped;
-		relaxResources(true);
-		giveUpAudioFocus();
+		// Service is being killed, so make sure we release our resources. The
+		// players belong to the playback thread, so that's where we release
+		// them, after dropping any commands that are still queued.
+		mRetrieverLoader.cancel(); // we don't want to hear from it any more
+		mDuplicateDetector.cancel();
+		mTagEnricher.cancel();
+		if (mPlaylistImporter != null)
+			mPlaylistImporter.cancel(); // nor from this
+		mRetriever.stopWatching();
+		unregisterReceiver(mPowerReceiver);
+		mPlaybackHandler.removeCallbacksAndMessages(null);
+		mPlaybackHandler.post(new Runnable() {
+			public void run() {
+				checkpoint();
+				setState(State.Stopped);
+				relaxResources(true);
+				giveUpAudioFocus();
+				if (mStreamProxy != null)
+					mStreamProxy.shutdown();
+				mAlbumArtLoader.quit();
+				mQueue.close();
+				if (mLoudnessScanner != null)
+					mLoudnessScanner.cancel();
+				mGainTable.close();
+				// stopping may have scheduled one last metadata update
+				if (mMetadataPublisher != null)
+					mMetadataPublisher.cancel();
+				mPlaybackThread.quit();
+			}
+		});
+	}
+
+	/**
+	 * Prints the playback latency histograms, for "adb shell dumpsys activity
+	 * service com.max.player/.controller.MusicService".
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		writer.println("State: " + mState);
+		mLatency.dump(writer);
+	}
+
+	/**
+	 * Lets activities in our process reach the retriever, to search the
+	 * catalog. Playback itself is still controlled with intents.
+	 */
+	public class LocalBinder extends Binder {
+		public MusicRetriever getRetriever() {
+			return mRetriever;
+		}
+
+		/**
+		 * Registers a listener for state changes. It is told about the current
+		 * state right away.
+		 */
+		public void addPlaybackStateListener(PlaybackStateListener listener) {
+			mStateListeners.add(listener);
+			mPlaybackHandler.post(new Runnable() {
+				public void run() {
+					publishState();
+				}
+			});
+		}
+
+		public void removePlaybackStateListener(PlaybackStateListener listener) {
+			mStateListeners.remove(listener);
+		}
 	}
 
+	private final IBinder mBinder = new LocalBinder();
+
 	@Override
 	public IBinder onBind(Intent arg0) {
-		return null;
+		return mBinder;
 	}
 }
@@ -0,0 +1,116 @@
+package com.max.player.controller;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.max.player.MaxPlayerActivity;
+import com.max.player.R;
+
+/**
+ * Keeps the service in the foreground with a single notification that is updated in place. The
+ * PendingIntent and the Notification are built once, and each update only changes their text;
+ * updates that come within {@link #UPDATE_WINDOW_MS} of the last one (a song that is loaded and
+ * starts playing right away, a burst of skips) are folded into one, so the status bar only gets
+ * to see the last of them. The service enters the foreground once, when the first update is
+ * shown, and only leaves it on {@link #stop()}: pausing and moving to another song just change
+ * the text.
+ *
+ * Must only be used on the thread of the handler it is given.
+ */
+class NotificationController {
+    static final long UPDATE_WINDOW_MS = 100;
+
+    private static final String TITLE = "RandomMusicPlayer";
+
+    private final Service mService;
+    private final Handler mHandler;
+    private final int mId;
+    private final NotificationManager mNotificationManager;
+    private final PendingIntent mContentIntent;
+    private final Notification mNotification;
+
+    // what we want the notification to say, and whether it is about a new song
+    private String mText;
+    private boolean mNewSong = false;
+
+    private boolean mForeground = false;
+    private long mLastUpdateTime = 0;
+    private boolean mUpdateScheduled = false;
+
+    NotificationController(Service service, Handler handler, int id) {
+        mService = service;
+        mHandler = handler;
+        mId = id;
+        Context context = service.getApplicationContext();
+        mNotificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        mContentIntent = PendingIntent.getActivity(context, 0,
+                new Intent(context, MaxPlayerActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        mNotification = new Notification();
+        mNotification.icon = R.drawable.ic_stat_playing;
+        mNotification.flags |= Notification.FLAG_ONGOING_EVENT;
+    }
+
+    /** Shows a new song. The text also scrolls by in the status bar. */
+    void showSong(String text) {
+        mNewSong = true;
+        show(text);
+    }
+
+    /** Changes what the notification says about the current song. */
+    void show(String text) {
+        mText = text;
+        if (!mForeground) {
+            // the service is not meant to wait around in the background, so don't delay this one
+            update();
+            return;
+        }
+
+        if (mUpdateScheduled) return;
+        long wait = mLastUpdateTime + UPDATE_WINDOW_MS - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+            update();
+        } else {
+            mUpdateScheduled = true;
+            mHandler.postDelayed(mUpdateRunnable, wait);
+        }
+    }
+
+    /** Takes the service out of the foreground and removes the notification. */
+    void stop() {
+        mHandler.removeCallbacks(mUpdateRunnable);
+        mUpdateScheduled = false;
+        mNewSong = false;
+        if (mForeground) {
+            mService.stopForeground(true);
+            mForeground = false;
+        }
+    }
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        public void run() {
+            mUpdateScheduled = false;
+            update();
+        }
+    };
+
+    private void update() {
+        mNotification.tickerText = mNewSong ? mText : null;
+        mNotification.setLatestEventInfo(mService.getApplicationContext(), TITLE, mText,
+                mContentIntent);
+        if (mForeground) {
+            mNotificationManager.notify(mId, mNotification);
+        } else {
+            mService.startForeground(mId, mNotification);
+            mForeground = true;
+        }
+        mNewSong = false;
+        mLastUpdateTime = SystemClock.uptimeMillis();
+    }
+}
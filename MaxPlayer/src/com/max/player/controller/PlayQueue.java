@@ -0,0 +1,320 @@
+package com.max.player.controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * The songs the user asked to hear next, in order: MediaStore track ids and URLs, played before
+ * the shuffle gets another turn. The queue is a ring of longs, so adding at the tail and taking
+ * from the head are O(1) and a queue of thousands of songs is one array. A track is its id
+ * (MediaStore ids are positive); a URL is stored in a table of its own, and its entry is the
+ * negated slot number, less one.
+ *
+ * Every change is appended to a journal file as it happens, so the queue survives the service
+ * going away. Loading replays the journal with one sequential read. When the journal has grown
+ * to several times the size of the queue, it is compacted: rewritten as just the additions of
+ * the songs still queued, to a temporary file that is then renamed over it. A record cut short
+ * by a crash ends the replay, and the journal is compacted right away to drop it.
+ *
+ * Not thread-safe; {@link MusicService} only uses it on its playback thread.
+ */
+class PlayQueue {
+    static final String TAG = "PlayQueue";
+
+    static final int MAGIC = 0x4d585051; // "MXPQ"
+    static final int VERSION = 1;
+
+    private static final byte OP_ADD_TRACK = 1;
+    private static final byte OP_ADD_URL = 2;
+    private static final byte OP_REMOVE = 3; // takes the head
+    private static final byte OP_CLEAR = 4;
+
+    // journals shorter than this are never worth compacting
+    static final int MIN_COMPACT_RECORDS = 1024;
+
+    private final File mFile;
+
+    private long[] mEntries = new long[16];
+    private int mHead = 0;
+    private int mSize = 0;
+
+    private String[] mUrls = new String[4];
+    private int[] mFreeUrlSlots = new int[4];
+    private int mFreeUrlSlotCount = 0;
+    private int mUrlSlotsUsed = 0; // slots ever handed out
+
+    private DataOutputStream mJournal;
+    private int mJournalRecords = 0;
+
+    PlayQueue(File file) {
+        mFile = file;
+    }
+
+    static boolean isUrl(long entry) {
+        return entry < 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /** Returns the entry at the head of the queue, which must not be empty. */
+    long peek() {
+        return mEntries[mHead];
+    }
+
+    /** Returns the URL of a URL entry, as long as the entry is still queued. */
+    String getUrl(long entry) {
+        return mUrls[(int) (-entry - 1)];
+    }
+
+    void addTrack(long id) {
+        push(id);
+        journal(OP_ADD_TRACK, id, null);
+    }
+
+    void addUrl(String url) {
+        push(-(allocateUrlSlot(url) + 1));
+        journal(OP_ADD_URL, 0, url);
+    }
+
+    /**
+     * Adds songs in a batch, with one write to the journal: urls[i] is the URL of song i, or
+     * null if ids[i] is the id of its track.
+     */
+    void addAll(long[] ids, String[] urls) {
+        for (int i = 0; i < ids.length; i++) {
+            push(urls[i] != null ? -(allocateUrlSlot(urls[i]) + 1) : ids[i]);
+        }
+        try {
+            if (mJournal == null) openJournal();
+            for (int i = 0; i < ids.length; i++) {
+                if (urls[i] != null) {
+                    writeRecord(OP_ADD_URL, 0, urls[i]);
+                } else {
+                    writeRecord(OP_ADD_TRACK, ids[i], null);
+                }
+            }
+            mJournal.flush();
+        } catch (IOException e) {
+            failedToJournal(e);
+            return;
+        }
+        maybeCompact();
+    }
+
+    /** Takes the head off the queue, which must not be empty, and returns it. */
+    long remove() {
+        long entry = pop();
+        journal(OP_REMOVE, 0, null);
+        return entry;
+    }
+
+    void clear() {
+        clearEntries();
+        journal(OP_CLEAR, 0, null);
+    }
+
+    /** Restores the queue from the journal, if there is one. */
+    void load() {
+        clearEntries();
+        boolean clean = true;
+        int records = 0;
+        if (mFile.exists()) {
+            long startTime = System.currentTimeMillis();
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mFile), 64 * 1024));
+                try {
+                    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                        throw new IOException("Not a play queue journal");
+                    }
+                    while (true) {
+                        int op = in.read();
+                        if (op < 0) break;
+                        switch (op) {
+                        case OP_ADD_TRACK:
+                            push(in.readLong());
+                            break;
+                        case OP_ADD_URL:
+                            push(-(allocateUrlSlot(in.readUTF()) + 1));
+                            break;
+                        case OP_REMOVE:
+                            if (mSize > 0) pop();
+                            break;
+                        case OP_CLEAR:
+                            clearEntries();
+                            break;
+                        default:
+                            throw new IOException("Unknown journal record " + op);
+                        }
+                        records++;
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (EOFException e) {
+                clean = false; // the last record was cut short
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read play queue: " + e.getMessage());
+                clean = false;
+            }
+            Log.i(TAG, "Loaded " + mSize + " queued songs from " + records + " records in "
+                    + (System.currentTimeMillis() - startTime) + "ms.");
+        }
+
+        mJournalRecords = records;
+        if (!clean || !mFile.exists()) {
+            compact();
+        } else {
+            maybeCompact();
+        }
+    }
+
+    /** Flushes the journal to disk and closes it. */
+    void close() {
+        if (mJournal == null) return;
+        try {
+            mJournal.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close play queue journal: " + e.getMessage());
+        }
+        mJournal = null;
+    }
+
+    private void journal(byte op, long id, String url) {
+        try {
+            if (mJournal == null) openJournal();
+            writeRecord(op, id, url);
+            mJournal.flush();
+        } catch (IOException e) {
+            failedToJournal(e);
+            return;
+        }
+        maybeCompact();
+    }
+
+    private void writeRecord(byte op, long id, String url) throws IOException {
+        mJournal.writeByte(op);
+        if (op == OP_ADD_TRACK) mJournal.writeLong(id);
+        if (op == OP_ADD_URL) mJournal.writeUTF(url);
+        mJournalRecords++;
+    }
+
+    private void failedToJournal(IOException e) {
+        // the queue still works, it just won't come back as it is now
+        Log.w(TAG, "Failed to write play queue journal: " + e.getMessage());
+        close();
+    }
+
+    private void openJournal() throws IOException {
+        mJournal = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mFile, true)));
+    }
+
+    private void maybeCompact() {
+        if (mJournalRecords > MIN_COMPACT_RECORDS && mJournalRecords > 4 * mSize) compact();
+    }
+
+    /** Rewrites the journal as the additions of what is queued now. */
+    private void compact() {
+        close();
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut,
+                        64 * 1024));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (int i = 0; i < mSize; i++) {
+                    long entry = mEntries[(mHead + i) % mEntries.length];
+                    if (isUrl(entry)) {
+                        out.writeByte(OP_ADD_URL);
+                        out.writeUTF(getUrl(entry));
+                    } else {
+                        out.writeByte(OP_ADD_TRACK);
+                        out.writeLong(entry);
+                    }
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+            if (!tmp.renameTo(mFile)) throw new IOException("Could not rename " + tmp);
+            mJournalRecords = mSize;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact play queue journal: " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    private void push(long entry) {
+        if (mSize == mEntries.length) {
+            long[] grown = new long[mEntries.length * 2];
+            int firstPart = Math.min(mSize, mEntries.length - mHead);
+            System.arraycopy(mEntries, mHead, grown, 0, firstPart);
+            System.arraycopy(mEntries, 0, grown, firstPart, mSize - firstPart);
+            mEntries = grown;
+            mHead = 0;
+        }
+        mEntries[(mHead + mSize) % mEntries.length] = entry;
+        mSize++;
+    }
+
+    private long pop() {
+        long entry = mEntries[mHead];
+        mHead = (mHead + 1) % mEntries.length;
+        mSize--;
+        if (isUrl(entry)) freeUrlSlot((int) (-entry - 1));
+        return entry;
+    }
+
+    private void clearEntries() {
+        mHead = 0;
+        mSize = 0;
+        for (int i = 0; i < mUrlSlotsUsed; i++) mUrls[i] = null;
+        mUrlSlotsUsed = 0;
+        mFreeUrlSlotCount = 0;
+    }
+
+    private int allocateUrlSlot(String url) {
+        int slot;
+        if (mFreeUrlSlotCount > 0) {
+            slot = mFreeUrlSlots[--mFreeUrlSlotCount];
+        } else {
+            if (mUrlSlotsUsed == mUrls.length) {
+                String[] grown = new String[mUrls.length * 2];
+                System.arraycopy(mUrls, 0, grown, 0, mUrlSlotsUsed);
+                mUrls = grown;
+            }
+            slot = mUrlSlotsUsed++;
+        }
+        mUrls[slot] = url;
+        return slot;
+    }
+
+    private void freeUrlSlot(int slot) {
+        mUrls[slot] = null;
+        if (mFreeUrlSlotCount == mFreeUrlSlots.length) {
+            int[] grown = new int[mFreeUrlSlots.length * 2];
+            System.arraycopy(mFreeUrlSlots, 0, grown, 0, mFreeUrlSlotCount);
+            mFreeUrlSlots = grown;
+        }
+        mFreeUrlSlots[mFreeUrlSlotCount++] = slot;
+    }
+}
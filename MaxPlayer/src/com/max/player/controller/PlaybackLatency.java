@@ -0,0 +1,98 @@
+package com.max.player.controller;
+
+import java.io.PrintWriter;
+
+import com.max.player.util.LatencyHistogram;
+
+/**
+ * Times the way from a request to play something (a button press, a skip, the end of the
+ * previous song) to the moment the new song starts, one stage at a time, and keeps a
+ * {@link LatencyHistogram} of each stage and of the whole, separately for local songs and for
+ * streams. Only one request is timed at a time; a new one replaces a request that never made it
+ * to the start.
+ *
+ * The playback thread records, and {@link #dump} may be called from any thread.
+ */
+class PlaybackLatency {
+    static final int STAGE_REQUEST = 0; // intent received, or song completed
+    static final int STAGE_DATA_SOURCE = 1; // setDataSource() returned
+    static final int STAGE_PREPARE = 2; // prepareAsync() issued
+    static final int STAGE_PREPARED = 3; // onPrepared() called
+    static final int STAGE_STARTED = 4; // start() returned
+    private static final int STAGE_COUNT = 5;
+
+    private static final String[] INTERVAL_NAMES = {
+            "request -> setDataSource", "setDataSource -> prepareAsync",
+            "prepareAsync -> onPrepared", "onPrepared -> start"
+    };
+
+    static final int SOURCE_LOCAL = 0;
+    static final int SOURCE_STREAM = 1;
+    private static final String[] SOURCE_NAMES = { "local", "streamed" };
+
+    // when each stage of the current request was reached (uptime ms), 0 if it wasn't
+    private final long[] mStageTimes = new long[STAGE_COUNT];
+
+    // by source, then by the stage an interval ends at, less one
+    private final LatencyHistogram[][] mIntervals =
+            new LatencyHistogram[SOURCE_NAMES.length][STAGE_COUNT - 1];
+    private final LatencyHistogram[] mTotals = new LatencyHistogram[SOURCE_NAMES.length];
+    private final int[] mStandbyStarts = new int[SOURCE_NAMES.length];
+
+    PlaybackLatency() {
+        for (int source = 0; source < SOURCE_NAMES.length; source++) {
+            for (int i = 0; i < STAGE_COUNT - 1; i++) {
+                mIntervals[source][i] = new LatencyHistogram();
+            }
+            mTotals[source] = new LatencyHistogram();
+        }
+    }
+
+    /** Starts timing a request that came in at the given uptime. */
+    synchronized void begin(long requestTime) {
+        for (int i = 0; i < STAGE_COUNT; i++) mStageTimes[i] = 0;
+        mStageTimes[STAGE_REQUEST] = requestTime;
+    }
+
+    /** Records that the current request reached the given stage at the given uptime. */
+    synchronized void mark(int stage, long now) {
+        if (mStageTimes[STAGE_REQUEST] != 0) mStageTimes[stage] = now;
+    }
+
+    /**
+     * Records that the current request is audible now, and files its stages under the given
+     * source. A song started from the prepared standby player skips the stages in between.
+     * Returns the total latency in ms, or -1 if no request was being timed.
+     */
+    synchronized long finish(int source, boolean standby, long now) {
+        if (mStageTimes[STAGE_REQUEST] == 0) return -1;
+        mStageTimes[STAGE_STARTED] = now;
+
+        for (int stage = 1; stage < STAGE_COUNT; stage++) {
+            long time = mStageTimes[stage];
+            long previous = mStageTimes[stage - 1];
+            if (time != 0 && previous != 0) mIntervals[source][stage - 1].record(time - previous);
+        }
+        long total = now - mStageTimes[STAGE_REQUEST];
+        mTotals[source].record(total);
+        if (standby) mStandbyStarts[source]++;
+
+        mStageTimes[STAGE_REQUEST] = 0;
+        return total;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Playback latency (ms):");
+        for (int source = 0; source < SOURCE_NAMES.length; source++) {
+            writer.print("  ");
+            writer.print(SOURCE_NAMES[source]);
+            writer.print(" (");
+            writer.print(mStandbyStarts[source]);
+            writer.println(" from standby):");
+            mTotals[source].dump(writer, "    request -> start");
+            for (int i = 0; i < STAGE_COUNT - 1; i++) {
+                mIntervals[source][i].dump(writer, "    " + INTERVAL_NAMES[i]);
+            }
+        }
+    }
+}
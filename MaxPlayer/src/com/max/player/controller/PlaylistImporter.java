@@ -0,0 +1,217 @@
+package com.max.player.controller;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Reads a playlist from a file, a content: URI or a server on a thread of its own, with
+ * {@link PlaylistParser}, and turns its entries into songs to queue: a path that MediaStore
+ * knows becomes that song of the {@link MusicRetriever}, and anything else stays a URL or path
+ * to play as it is.
+ *
+ * The listener gets the songs on the thread of the given handler, in batches: the first song on
+ * its own, as soon as it is read, so that it can start playing right away, and the rest
+ * {@link #BATCH_SIZE} at a time. Like {@link MusicRetrieverLoader}, {@link #cancel()} stops the
+ * import at the next entry and silences the listener.
+ */
+public class PlaylistImporter {
+    static final String TAG = "PlaylistImporter";
+
+    static final int BATCH_SIZE = 256;
+
+    static final int CONNECT_TIMEOUT_MS = 15000;
+    static final int READ_TIMEOUT_MS = 30000;
+
+    private final String mLocation;
+    private final MusicRetriever mRetriever;
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    private volatile boolean mCancelled = false;
+
+    // only touched by the importing thread
+    private long[] mIds = new long[1];
+    private String[] mUrls = new String[1];
+    private int mCount = 0;
+    private int mEntries = 0;
+    private int mResolved = 0;
+
+    public PlaylistImporter(String location, MusicRetriever retriever, Handler handler,
+            Listener listener) {
+        mLocation = location;
+        mRetriever = retriever;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /** Tells whether the URL or path is one of a playlist we can import. */
+    public static boolean isPlaylist(String location) {
+        return PlaylistParser.isPlaylist(location);
+    }
+
+    /** Starts the import. */
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                importPlaylist();
+            }
+        }, "PlaylistImport");
+        thread.start();
+    }
+
+    /** Stops the import as soon as possible, and silences the listener. */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    private void importPlaylist() {
+        long startTime = SystemClock.elapsedRealtime();
+        int result;
+        try {
+            InputStream in = open(mLocation);
+            try {
+                result = PlaylistParser.parse(in, PlaylistParser.formatOf(mLocation), mLocation,
+                        new PlaylistParser.Callback() {
+                            public boolean onEntry(String location) {
+                                return add(location);
+                            }
+                        });
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read playlist " + mLocation + ": " + e.getMessage());
+            result = mEntries;
+        } catch (RuntimeException e) {
+            // a SecurityException for a content: URI we may not read, or whatever else a
+            // provider throws; it is as much a failure to read as an IOException
+            Log.w(TAG, "Failed to read playlist " + mLocation + ": " + e);
+            result = mEntries;
+        }
+        if (mCancelled) return;
+
+        if (result == PlaylistParser.NOT_SONGS) {
+            post(new Runnable() {
+                public void run() {
+                    mListener.onPlaylistIsStream(mLocation);
+                }
+            });
+            return;
+        }
+        flush();
+        Log.i(TAG, "Imported " + mEntries + " entries (" + mResolved + " from the catalog) in "
+                + (SystemClock.elapsedRealtime() - startTime) + "ms.");
+        final int entries = mEntries;
+        post(new Runnable() {
+            public void run() {
+                mListener.onPlaylistImported(entries);
+            }
+        });
+    }
+
+    private InputStream open(String location) throws IOException {
+        if (location.startsWith("http:") || location.startsWith("https:")) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(location)
+                    .openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                throw new IOException("HTTP " + code);
+            }
+            return connection.getInputStream();
+        }
+        if (location.startsWith("content:")) {
+            InputStream in = mRetriever.getContentResolver().openInputStream(
+                    Uri.parse(location));
+            if (in == null) throw new IOException("No content");
+            return in;
+        }
+        if (location.startsWith("file:")) {
+            return new FileInputStream(PlaylistParser.resolve(location, location));
+        }
+        return new FileInputStream(new File(location));
+    }
+
+    /** Adds an entry to the batch, and hands the batch over when it is time. */
+    private boolean add(String location) {
+        if (mCancelled) return false;
+
+        MusicRetriever.Item item = null;
+        if (location.startsWith("/")) {
+            item = mRetriever.getItemByPath(location);
+            if (item == null) {
+                // the playlist may have gone through a link, like /sdcard, to get there
+                try {
+                    String canonical = new File(location).getCanonicalPath();
+                    if (!canonical.equals(location)) item = mRetriever.getItemByPath(canonical);
+                } catch (IOException e) {
+                    // then it's not in the catalog either
+                }
+            }
+        }
+        if (item != null) mResolved++;
+        mIds[mCount] = item != null ? item.getId() : -1;
+        mUrls[mCount] = item != null ? null : location;
+        mCount++;
+        mEntries++;
+        if (mCount == mIds.length) {
+            flush();
+            if (mIds.length < BATCH_SIZE) {
+                // the first song went out on its own; the rest go in full batches
+                mIds = new long[BATCH_SIZE];
+                mUrls = new String[BATCH_SIZE];
+            }
+        }
+        return true;
+    }
+
+    private void flush() {
+        if (mCount == 0) return;
+        final long[] ids = new long[mCount];
+        final String[] urls = new String[mCount];
+        System.arraycopy(mIds, 0, ids, 0, mCount);
+        System.arraycopy(mUrls, 0, urls, 0, mCount);
+        mCount = 0;
+        post(new Runnable() {
+            public void run() {
+                mListener.onPlaylistSongs(ids, urls);
+            }
+        });
+    }
+
+    /** Runs the callback on the handler's thread, unless we are cancelled by then. */
+    private void post(final Runnable callback) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (!mCancelled) callback.run();
+            }
+        });
+    }
+
+    public interface Listener {
+        /**
+         * Hands over the next songs of the playlist, in order: urls[i] is the URL or path of
+         * song i if it is not in the catalog, and null if ids[i] is its MediaStore id.
+         */
+        public void onPlaylistSongs(long[] ids, String[] urls);
+
+        /** Signals that the playlist is a live stream, to be played as a whole. */
+        public void onPlaylistIsStream(String location);
+
+        /** Signals that the whole playlist has been read, and how many songs it had. */
+        public void onPlaylistImported(int songs);
+    }
+}
@@ -0,0 +1,192 @@
+package com.max.player.controller;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Locale;
+
+/**
+ * Reads M3U, M3U8 and PLS playlists one line at a time and hands each entry over as soon as it
+ * is read, so the first songs of a long playlist can be playing while the rest is still on its
+ * way. Entries are resolved against the location of the playlist: a relative path or URL in a
+ * playlist file becomes a path next to it, in a playlist on a server a URL next to it, and file:
+ * URLs become paths.
+ *
+ * All three formats are read as UTF-8, which is what M3U8 and PLS files are in practice, and
+ * what most M3U files written this century are too.
+ *
+ * An M3U8 file is also what HTTP Live Streaming serves a stream as. Its segments are not songs,
+ * so when the playlist turns out to be one, parsing stops and reports {@link #NOT_SONGS}, and the
+ * playlist is best handed to MediaPlayer as it is.
+ */
+class PlaylistParser {
+    static final int FORMAT_NONE = 0;
+    static final int FORMAT_M3U = 1;
+    static final int FORMAT_PLS = 2;
+
+    // what parse() returns for an HTTP Live Streaming playlist
+    static final int NOT_SONGS = -1;
+
+    /** Receives the entries of a playlist, in order. */
+    interface Callback {
+        /**
+         * Called on the parsing thread for every entry.
+         *
+         * @param location Path or URL of the song, resolved against the playlist's.
+         * @return Whether to go on parsing.
+         */
+        boolean onEntry(String location);
+    }
+
+    /** Tells a playlist's format from its extension, ignoring a URL's query and fragment. */
+    static int formatOf(String location) {
+        String path = location;
+        int end = path.length();
+        int query = path.indexOf('?');
+        if (query >= 0 && isUrl(path)) end = query;
+        int fragment = path.indexOf('#');
+        if (fragment >= 0 && fragment < end && isUrl(path)) end = fragment;
+        path = path.substring(0, end).toLowerCase(Locale.US);
+        if (path.endsWith(".m3u") || path.endsWith(".m3u8")) return FORMAT_M3U;
+        if (path.endsWith(".pls")) return FORMAT_PLS;
+        return FORMAT_NONE;
+    }
+
+    static boolean isPlaylist(String location) {
+        return formatOf(location) != FORMAT_NONE;
+    }
+
+    /**
+     * Reads the playlist from the stream, which the caller closes, calling back with each entry.
+     * Returns the number of entries, or {@link #NOT_SONGS}.
+     */
+    static int parse(InputStream in, int format, String base, Callback callback)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), 8192);
+        int entries = 0;
+        String line;
+        boolean first = true;
+        while ((line = reader.readLine()) != null) {
+            if (first) {
+                first = false;
+                if (line.length() > 0 && line.charAt(0) == '\ufeff') line = line.substring(1);
+            }
+            line = line.trim();
+            if (line.length() == 0) continue;
+
+            String location;
+            if (format == FORMAT_PLS) {
+                location = plsFile(line);
+            } else if (line.charAt(0) == '#') {
+                // only live streams have these, and they have them before their first segment
+                if (entries == 0 && line.startsWith("#EXT-X-")) return NOT_SONGS;
+                location = null;
+            } else {
+                location = line;
+            }
+            if (location == null) continue;
+
+            entries++;
+            if (!callback.onEntry(resolve(base, location))) break;
+        }
+        return entries;
+    }
+
+    /** Returns the value of a FileN= line of a PLS playlist, or null for any other line. */
+    private static String plsFile(String line) {
+        if (!line.regionMatches(true, 0, "File", 0, 4)) return null;
+        int equals = line.indexOf('=');
+        if (equals <= 4) return null;
+        for (int i = 4; i < equals; i++) {
+            if (!Character.isDigit(line.charAt(i))) return null;
+        }
+        String value = line.substring(equals + 1).trim();
+        return value.length() > 0 ? value : null;
+    }
+
+    /** Resolves an entry against the location of the playlist it is in. */
+    static String resolve(String base, String location) {
+        location = location.replace('\\', '/');
+        if (location.startsWith("file:")) return fileUrlToPath(location);
+        if (hasScheme(location)) return location;
+
+        if (isUrl(base)) {
+            try {
+                return new URL(new URL(base), location.replace(" ", "%20")).toString();
+            } catch (MalformedURLException e) {
+                return location;
+            }
+        }
+
+        String path = base.startsWith("file:") ? fileUrlToPath(base) : base;
+        if (location.startsWith("/")) return normalize(location);
+        int slash = path.lastIndexOf('/');
+        return normalize(slash < 0 ? location : path.substring(0, slash + 1) + location);
+    }
+
+    private static boolean isUrl(String location) {
+        return location.startsWith("http:") || location.startsWith("https:");
+    }
+
+    // "scheme:" where a scheme is two or more letters, so "C:/Music" is not taken for one
+    private static boolean hasScheme(String location) {
+        int colon = location.indexOf(':');
+        if (colon < 2) return false;
+        for (int i = 0; i < colon; i++) {
+            char c = location.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '+' && c != '-' && c != '.') return false;
+        }
+        return true;
+    }
+
+    private static String fileUrlToPath(String url) {
+        String path = url.substring(5);
+        if (path.startsWith("//")) {
+            // file://host/path; the host is empty or localhost on a phone
+            int slash = path.indexOf('/', 2);
+            path = slash < 0 ? "/" : path.substring(slash);
+        }
+        try {
+            path = URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // every Java platform has UTF-8
+        } catch (IllegalArgumentException e) {
+            // a stray '%': take the path as it is
+        }
+        return normalize(path);
+    }
+
+    /** Drops "." segments and folds ".." ones, since MediaStore paths have neither. */
+    static String normalize(String path) {
+        if (path.indexOf("./") < 0 && !path.endsWith("/.") && !path.endsWith("/..")
+                && path.indexOf("//") < 0) {
+            return path;
+        }
+        String[] segments = path.split("/");
+        String[] kept = new String[segments.length];
+        int count = 0;
+        for (String segment : segments) {
+            if (segment.length() == 0 || segment.equals(".")) continue;
+            if (segment.equals("..")) {
+                if (count > 0 && !kept[count - 1].equals("..")) {
+                    count--;
+                    continue;
+                }
+                if (path.startsWith("/")) continue; // can't go above the root
+            }
+            kept[count++] = segment;
+        }
+        StringBuilder normalized = new StringBuilder(path.length());
+        if (path.startsWith("/")) normalized.append('/');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) normalized.append('/');
+            normalized.append(kept[i]);
+        }
+        return normalized.toString();
+    }
+}
@@ -20,6 +20,13 @@ public class RemoteControlClientCompat {
     private static Method sRCCSetPlayStateMethod;
     private static Method sRCCSetTransportControlFlags;
 
+    // MetadataEditor methods, looked up once per process rather than once per editor
+    private static Method sMDPutStringMethod;
+    private static Method sMDPutBitmapMethod;
+    private static Method sMDPutLongMethod;
+    private static Method sMDClearMethod;
+    private static Method sMDApplyMethod;
+
     private static boolean sHasRemoteControlAPIs = false;
 
     static {
@@ -52,6 +59,18 @@ public class RemoteControlClientCompat {
             sRCCSetTransportControlFlags = sRemoteControlClientClass.getMethod(
                     "setTransportControlFlags", int.class);
 
+            // and the ones on its MetadataEditor
+            Class metadataEditorClass = classLoader.loadClass(
+                    "android.media.RemoteControlClient$MetadataEditor");
+            sMDPutStringMethod = metadataEditorClass.getMethod("putString",
+                    int.class, String.class);
+            sMDPutBitmapMethod = metadataEditorClass.getMethod("putBitmap",
+                    int.class, Bitmap.class);
+            sMDPutLongMethod = metadataEditorClass.getMethod("putLong",
+                    int.class, long.class);
+            sMDClearMethod = metadataEditorClass.getMethod("clear", new Class[]{});
+            sMDApplyMethod = metadataEditorClass.getMethod("apply", new Class[]{});
+
             sHasRemoteControlAPIs = true;
         } catch (ClassNotFoundException e) {
             // Silently fail when running on an OS before ICS.
@@ -108,12 +127,6 @@ public class RemoteControlClientCompat {
      */
     public class MetadataEditorCompat {
 
-        private Method mPutStringMethod;
-        private Method mPutBitmapMethod;
-        private Method mPutLongMethod;
-        private Method mClearMethod;
-        private Method mApplyMethod;
-
         private Object mActualMetadataEditor;
 
         /**
@@ -126,22 +139,6 @@ public class RemoteControlClientCompat {
                 throw new IllegalArgumentException("Remote Control API's exist, " +
                         "should not be given a null MetadataEditor");
             }
-            if (sHasRemoteControlAPIs) {
-                Class metadataEditorClass = actualMetadataEditor.getClass();
-
-                try {
-                    mPutStringMethod = metadataEditorClass.getMethod("putString",
-                            int.class, String.class);
-                    mPutBitmapMethod = metadataEditorClass.getMethod("putBitmap",
-                            int.class, Bitmap.class);
-                    mPutLongMethod = metadataEditorClass.getMethod("putLong",
-                            int.class, long.class);
-                    mClearMethod = metadataEditorClass.getMethod("clear", new Class[]{});
-                    mApplyMethod = metadataEditorClass.getMethod("apply", new Class[]{});
-                } catch (Exception e) {
-                    throw new RuntimeException(e.getMessage(), e);
-                }
-            }
             mActualMetadataEditor = actualMetadataEditor;
         }
 
@@ -169,7 +166,7 @@ public class RemoteControlClientCompat {
         public MetadataEditorCompat putString(int key, String value) {
             if (sHasRemoteControlAPIs) {
                 try {
-                    mPutStringMethod.invoke(mActualMetadataEditor, key, value);
+                    sMDPutStringMethod.invoke(mActualMetadataEditor, key, value);
                 } catch (Exception e) {
                     throw new RuntimeException(e.getMessage(), e);
                 }
@@ -190,7 +187,7 @@ public class RemoteControlClientCompat {
         public MetadataEditorCompat putBitmap(int key, Bitmap bitmap) {
             if (sHasRemoteControlAPIs) {
                 try {
-                    mPutBitmapMethod.invoke(mActualMetadataEditor, key, bitmap);
+                    sMDPutBitmapMethod.invoke(mActualMetadataEditor, key, bitmap);
                 } catch (Exception e) {
                     throw new RuntimeException(e.getMessage(), e);
                 }
@@ -216,7 +213,7 @@ public class RemoteControlClientCompat {
         public MetadataEditorCompat putLong(int key, long value) {
             if (sHasRemoteControlAPIs) {
                 try {
-                    mPutLongMethod.invoke(mActualMetadataEditor, key, value);
+                    sMDPutLongMethod.invoke(mActualMetadataEditor, key, value);
                 } catch (Exception e) {
                     throw new RuntimeException(e.getMessage(), e);
                 }
@@ -231,7 +228,7 @@ public class RemoteControlClientCompat {
         public void clear() {
             if (sHasRemoteControlAPIs) {
                 try {
-                    mClearMethod.invoke(mActualMetadataEditor, (Object[]) null);
+                    sMDClearMethod.invoke(mActualMetadataEditor, (Object[]) null);
                 } catch (Exception e) {
                     throw new RuntimeException(e.getMessage(), e);
                 }
@@ -247,7 +244,7 @@ public class RemoteControlClientCompat {
         public void apply() {
             if (sHasRemoteControlAPIs) {
                 try {
-                    mApplyMethod.invoke(mActualMetadataEditor, (Object[]) null);
+                    sMDApplyMethod.invoke(mActualMetadataEditor, (Object[]) null);
                 } catch (Exception e) {
                     throw new RuntimeException(e.getMessage(), e);
                 }
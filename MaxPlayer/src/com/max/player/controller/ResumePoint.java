@@ -0,0 +1,141 @@
+package com.max.player.controller;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Where to pick up playback after the service has gone away: the MediaStore id of the song that
+ * was playing, and how far into it we were. It is kept in one record of {@link #RECORD_SIZE}
+ * bytes, checksummed, which is written whole to a temporary file and renamed over the old one;
+ * so a reader sees either the old record or the new one, never half of each, and a write is one
+ * small block rather than a growing file.
+ *
+ * To keep the flash from wearing for nothing, {@link #save} writes only when the song changed or
+ * the position moved by at least {@link #MIN_POSITION_CHANGE_MS}: pausing a song twice at the
+ * same place writes once.
+ *
+ * Not thread-safe; {@link MusicService} only uses it on its playback thread.
+ */
+class ResumePoint {
+    static final String TAG = "ResumePoint";
+
+    static final int MAGIC = 0x4d585250; // "MXRP"
+    static final int VERSION = 1;
+
+    // magic, version, track id, position, CRC32 of what comes before it
+    static final int RECORD_SIZE = 4 + 4 + 8 + 4 + 4;
+
+    // smaller moves than this are not worth a write
+    static final int MIN_POSITION_CHANGE_MS = 2000;
+
+    private final File mFile;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+
+    // what the file holds; mTrackId is -1 if there is nothing to resume
+    private long mTrackId = -1;
+    private int mPosition = 0;
+
+    ResumePoint(File file) {
+        mFile = file;
+    }
+
+    /** The song to resume, or -1 if there is none. */
+    long getTrackId() {
+        return mTrackId;
+    }
+
+    /** Where to resume the song, in ms. */
+    int getPosition() {
+        return mPosition;
+    }
+
+    /** Reads the record, if there is a valid one; returns whether there is a song to resume. */
+    boolean load() {
+        mTrackId = -1;
+        mPosition = 0;
+        if (!mFile.exists()) return false;
+
+        byte[] record = new byte[RECORD_SIZE];
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+            try {
+                in.readFully(record);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read resume point: " + e.getMessage());
+            return false;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return false;
+        long trackId = buffer.getLong();
+        int position = buffer.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, RECORD_SIZE - 4);
+        if (buffer.getInt() != (int) crc.getValue()) {
+            Log.w(TAG, "Ignoring corrupt resume point");
+            return false;
+        }
+
+        mTrackId = trackId;
+        mPosition = position;
+        return trackId >= 0;
+    }
+
+    /** Records that the given song is at the given position, if that's news. */
+    void save(long trackId, int position) {
+        if (trackId == mTrackId && Math.abs(position - mPosition) < MIN_POSITION_CHANGE_MS) {
+            return;
+        }
+        if (write(trackId, position)) {
+            mTrackId = trackId;
+            mPosition = position;
+        }
+    }
+
+    /** Forgets the song to resume. */
+    void clear() {
+        if (mTrackId < 0) return;
+        if (write(-1, 0)) {
+            mTrackId = -1;
+            mPosition = 0;
+        }
+    }
+
+    private boolean write(long trackId, int position) {
+        mRecord.clear();
+        mRecord.putInt(MAGIC);
+        mRecord.putInt(VERSION);
+        mRecord.putLong(trackId);
+        mRecord.putInt(position);
+        CRC32 crc = new CRC32();
+        crc.update(mRecord.array(), 0, RECORD_SIZE - 4);
+        mRecord.putInt((int) crc.getValue());
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(mRecord.array());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) throw new IOException("Could not rename " + tmp);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write resume point: " + e.getMessage());
+            tmp.delete();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.max.player.controller;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Full-text index over the title, artist and album of the tracks in a {@link TrackCatalog}.
+ *
+ * Each field is split into words, which are lowercased and stripped of accents. The words are
+ * kept in a sorted map, so all the words that start with a given prefix form one contiguous
+ * range of it, and each word points to a posting list: a sorted int[] of the catalog positions
+ * of the tracks it appears in. A query matches the tracks that have a word starting with each of
+ * the query's words.
+ *
+ * This class is not thread-safe; {@link MusicRetriever} guards it with its own lock.
+ */
+class SearchIndex {
+    private final TreeMap<String, Postings> mWords = new TreeMap<String, Postings>();
+
+    /** Indexes the fields of the track at the given position. */
+    void add(int position, String artist, String title, String album) {
+        for (String word : words(artist, title, album)) {
+            Postings postings = mWords.get(word);
+            if (postings == null) {
+                postings = new Postings();
+                mWords.put(word, postings);
+            }
+            postings.add(position);
+        }
+    }
+
+    /** Removes the track at the given position, which was indexed with the given fields. */
+    void remove(int position, String artist, String title, String album) {
+        for (String word : words(artist, title, album)) {
+            Postings postings = mWords.get(word);
+            if (postings == null) continue;
+            postings.remove(position);
+            if (postings.size == 0) mWords.remove(word);
+        }
+    }
+
+    /**
+     * Moves every track to its new position after {@link TrackCatalog#compact()}, which keeps
+     * the tracks in order, so the posting lists stay sorted.
+     */
+    void remap(int[] newPositions) {
+        for (Postings postings : mWords.values()) {
+            int kept = 0;
+            for (int i = 0; i < postings.size; i++) {
+                int position = newPositions[postings.positions[i]];
+                if (position >= 0) postings.positions[kept++] = position;
+            }
+            postings.size = kept;
+        }
+    }
+
+    /**
+     * Returns up to limit catalog positions of tracks matching the query, or an empty array if
+     * the query has no words.
+     */
+    int[] search(String query, int limit) {
+        List<String> prefixes = new ArrayList<String>();
+        tokenize(query, prefixes);
+        if (prefixes.isEmpty() || limit <= 0) return new int[0];
+
+        // Drive the search with the most selective prefix, and check the tracks it finds
+        // against the others.
+        int driver = 0;
+        int driverCount = Integer.MAX_VALUE;
+        for (int i = 0; i < prefixes.size(); i++) {
+            int count = countPostings(prefixes.get(i), driverCount);
+            if (count < driverCount) {
+                driver = i;
+                driverCount = count;
+            }
+        }
+        if (driverCount == 0) return new int[0];
+
+        BitSet[] filters = new BitSet[prefixes.size()];
+        for (int i = 0; i < prefixes.size(); i++) {
+            if (i != driver) filters[i] = collectPostings(prefixes.get(i));
+        }
+
+        int[] results = new int[Math.min(limit, driverCount)];
+        int found = 0;
+        BitSet seen = new BitSet();
+        Iterator<Postings> it = range(prefixes.get(driver)).values().iterator();
+        while (it.hasNext() && found < results.length) {
+            Postings postings = it.next();
+            for (int i = 0; i < postings.size && found < results.length; i++) {
+                int position = postings.positions[i];
+                if (seen.get(position)) continue;
+                seen.set(position);
+                if (matchesAll(filters, position)) results[found++] = position;
+            }
+        }
+
+        if (found == results.length) return results;
+        int[] trimmed = new int[found];
+        System.arraycopy(results, 0, trimmed, 0, found);
+        return trimmed;
+    }
+
+    private static boolean matchesAll(BitSet[] filters, int position) {
+        for (BitSet filter : filters) {
+            if (filter != null && !filter.get(position)) return false;
+        }
+        return true;
+    }
+
+    /** Number of postings of the words starting with prefix, counting no further than max. */
+    private int countPostings(String prefix, int max) {
+        int count = 0;
+        for (Postings postings : range(prefix).values()) {
+            count += postings.size;
+            if (count >= max) break;
+        }
+        return count;
+    }
+
+    private BitSet collectPostings(String prefix) {
+        BitSet positions = new BitSet();
+        for (Postings postings : range(prefix).values()) {
+            for (int i = 0; i < postings.size; i++) positions.set(postings.positions[i]);
+        }
+        return positions;
+    }
+
+    /** The words that start with the given prefix. */
+    private SortedMap<String, Postings> range(String prefix) {
+        return mWords.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private static List<String> words(String artist, String title, String album) {
+        List<String> words = new ArrayList<String>();
+        tokenize(artist, words);
+        tokenize(title, words);
+        tokenize(album, words);
+        return words;
+    }
+
+    /**
+     * Splits the text into words made of letters and digits, folded to lowercase without
+     * accents, and adds the ones not already in the list. MediaStore's placeholder for a missing
+     * artist or album is not indexed.
+     */
+    static void tokenize(String text, List<String> words) {
+        if (text == null || text.equals(android.provider.MediaStore.UNKNOWN_STRING)) return;
+
+        StringBuilder word = new StringBuilder();
+        int length = text.length();
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? fold(text.charAt(i)) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                String w = word.toString();
+                if (!words.contains(w)) words.add(w);
+                word.setLength(0);
+            }
+        }
+    }
+
+    // accented Latin-1 letters, and what they fold to
+    private static final String ACCENTED =
+            "\u00e0\u00e1\u00e2\u00e3\u00e4\u00e5\u00e7\u00e8\u00e9\u00ea\u00eb\u00ec\u00ed" // a, c, e, i
+            + "\u00ee\u00ef\u00f1\u00f2\u00f3\u00f4\u00f5\u00f6\u00f8" // i, n, o
+            + "\u00f9\u00fa\u00fb\u00fc\u00fd\u00ff"; // u, y
+    private static final String UNACCENTED = "aaaaaaceeeeiiiinoooooouuuuyy";
+
+    /**
+     * Lowercases the character and strips its accent. java.text.Normalizer is not available
+     * before API level 9, so we only know about Latin-1, which covers most tag text.
+     */
+    static char fold(char c) {
+        c = Character.toLowerCase(c);
+        if (c < '\u00e0') return c;
+        int i = ACCENTED.indexOf(c);
+        return i < 0 ? c : UNACCENTED.charAt(i);
+    }
+
+    /** Sorted, growable list of catalog positions. */
+    private static class Postings {
+        int[] positions = new int[2];
+        int size;
+
+        void add(int position) {
+            // positions mostly come in increasing order, so this is usually an append
+            int index = size;
+            while (index > 0 && positions[index - 1] > position) index--;
+            if (index > 0 && positions[index - 1] == position) return;
+
+            if (size == positions.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(positions, 0, grown, 0, size);
+                positions = grown;
+            }
+            System.arraycopy(positions, index, positions, index + 1, size - index);
+            positions[index] = position;
+            size++;
+        }
+
+        void remove(int position) {
+            // Arrays.binarySearch() on a range is not available before API level 9
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (positions[mid] < position) low = mid + 1;
+                else if (positions[mid] > position) high = mid - 1;
+                else {
+                    System.arraycopy(positions, mid + 1, positions, mid, size - mid - 1);
+                    size--;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.max.player.controller;
+
+import java.util.Random;
+
+/**
+ * Plays the tracks of a {@link TrackCatalog} in random order without repeating any of them until
+ * every track has had its turn, and remembers that order so we can go back and forth in it.
+ *
+ * The order is a Fisher-Yates shuffle of catalog positions that is only carried out as far as it
+ * has been played: the first {@code mDrawn} entries of {@code mOrder} are the tracks drawn so
+ * far, in play order, and the rest is the pool still to draw from. Drawing a track swaps a random
+ * pool entry to the front of the pool. Going back and forth just moves {@code mCursor}. New
+ * catalog positions are appended to the pool, so the catalog can grow without reshuffling.
+ *
+ * When a round is over, its order is kept in {@code mLastRound} and a new one starts, so that
+ * going back works across the boundary: a negative cursor is an index into the last round, from
+ * its end. Going further back than that isn't possible, so the whole thing costs two ints per
+ * track however long the session is.
+ *
+ * Tracks that are copies of others are drawn like any other, but passed over; they stay in the
+ * order in case their original goes away and they become tracks of their own.
+ *
+ * This class is not thread-safe; {@link MusicRetriever} guards it with its own lock.
+ */
+class ShuffleOrder {
+    // findNext() found nothing; a negative index is a valid one
+    private static final int NONE = Integer.MIN_VALUE;
+
+    private final TrackCatalog mCatalog;
+    private final Random mRandom;
+
+    private int[] mOrder = new int[0];
+    private int mSize; // entries in use in mOrder
+    private int mCovered; // catalog positions [0, mCovered) have been added to mOrder
+    private int mDrawn; // mOrder[0..mDrawn) have been drawn
+    private int mCursor = -1; // index in mOrder of the current track; see above if negative
+
+    private int[] mLastRound = new int[0];
+    private int mLastRoundSize;
+
+    ShuffleOrder(TrackCatalog catalog, Random random) {
+        mCatalog = catalog;
+        mRandom = random;
+    }
+
+    /** Returns the catalog position of the next track and makes it current, or -1 if none. */
+    int next() {
+        int index = findNext();
+        if (index == NONE) return -1;
+        mCursor = index;
+        return at(index);
+    }
+
+    /**
+     * Returns the catalog position next() would return, without making it current. The shuffle
+     * may be drawn ahead to find it, but the current track and the history stay as they were, so
+     * next() and previous() return what they would have.
+     */
+    int peekNext() {
+        int index = findNext();
+        return index == NONE ? -1 : at(index);
+    }
+
+    /**
+     * Makes the given track current if it is the one next() would return, and returns whether
+     * it was. For moving on to the track peekNext() returned, unless the catalog changed since.
+     */
+    boolean moveTo(int position) {
+        int index = findNext();
+        if (index == NONE || at(index) != position) return false;
+        mCursor = index;
+        return true;
+    }
+
+    /**
+     * Moves back to the track that was played before the current one and returns its catalog
+     * position, or -1 if we are at the start of the history.
+     */
+    int previous() {
+        for (int index = mCursor - 1; index >= -mLastRoundSize; index--) {
+            if (isPlayable(at(index))) {
+                mCursor = index;
+                return at(index);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves every track to its new position after {@link TrackCatalog#compact()}, and drops the
+     * removed ones, keeping the order and the history as they were otherwise.
+     */
+    void remap(int[] newPositions) {
+        cover(newPositions.length);
+        int kept = 0;
+        int drawn = mDrawn;
+        int cursor = mCursor;
+        for (int index = 0; index < mSize; index++) {
+            int position = newPositions[mOrder[index]];
+            if (position >= 0) {
+                mOrder[kept++] = position;
+                continue;
+            }
+            // like removeAt()
+            if (index < mDrawn) drawn--;
+            if (index <= mCursor) cursor--;
+        }
+        mSize = kept;
+        mDrawn = drawn;
+
+        int lastKept = 0;
+        int lastCursor = mLastRoundSize + mCursor; // where the cursor is in the last round
+        int newLastCursor = -1;
+        for (int index = 0; index < mLastRoundSize; index++) {
+            int position = newPositions[mLastRound[index]];
+            if (position >= 0) mLastRound[lastKept++] = position;
+            if (index == lastCursor) newLastCursor = lastKept - 1;
+        }
+        mLastRoundSize = lastKept;
+        mCursor = mCursor >= 0 ? cursor : newLastCursor - lastKept;
+        mCovered = mCatalog.size();
+    }
+
+    // the track at the given index: of mOrder, or if negative, of the last round from its end
+    private int at(int index) {
+        return index < 0 ? mLastRound[mLastRoundSize + index] : mOrder[index];
+    }
+
+    private boolean isPlayable(int position) {
+        return !mCatalog.isRemoved(position) && !mCatalog.isDuplicate(position);
+    }
+
+    /**
+     * Returns the index of the first live track after the cursor, drawing new tracks from the
+     * pool as needed, or NONE if the catalog has no live tracks. Nothing it does moves the
+     * current track or the history.
+     */
+    private int findNext() {
+        ensureSize();
+        if (mCatalog.count() == 0) return NONE;
+
+        int index = mCursor + 1;
+        int passedOver = 0;
+        while (true) {
+            if (index < 0) {
+                // we went back into the last round, and play it again from there
+                if (isPlayable(at(index))) return index;
+                index++;
+                continue;
+            }
+            if (index == mSize) {
+                // everything has been played: start a new round
+                startNewRound();
+                index = 0;
+            }
+            if (index == mDrawn) draw();
+            int position = mOrder[index];
+            if (mCatalog.isRemoved(position)) {
+                // the track was removed from the catalog; drop it from the order for good
+                removeAt(index);
+                continue;
+            }
+            // every live track has a live original, so a whole round of copies can't happen;
+            // but don't bet the playback thread on it
+            if (!mCatalog.isDuplicate(position) || passedOver++ > mSize) return index;
+            index++;
+        }
+    }
+
+    /** Moves a random pool entry to the front of the pool. */
+    private void draw() {
+        int pick = mDrawn + mRandom.nextInt(mSize - mDrawn);
+        swap(mDrawn, pick);
+        mDrawn++;
+    }
+
+    /**
+     * Starts over with every track back in the pool, keeping the round that is over as the last
+     * one. The current track stays current, there. It can't come first in the new round, so it
+     * doesn't play twice in a row.
+     */
+    private void startNewRound() {
+        int last = mCursor >= 0 ? mOrder[mCursor] : -1;
+        if (mLastRound.length < mSize) mLastRound = new int[mOrder.length];
+        System.arraycopy(mOrder, 0, mLastRound, 0, mSize);
+        mLastRoundSize = mSize;
+        // a cursor in the last round but one can't be kept; the end of the last round will do
+        mCursor = mCursor >= 0 ? mCursor - mSize : -1;
+        mDrawn = 0;
+        if (mSize > 1) {
+            draw();
+            if (mOrder[0] == last) swap(0, 1 + mRandom.nextInt(mSize - 1));
+        }
+    }
+
+    /** Removes the entry at the given index from mOrder, keeping the history in order. */
+    private void removeAt(int index) {
+        if (index == mDrawn - 1) {
+            // the pool has no order to keep, so its last entry can take the place of the one we
+            // just drew
+            mOrder[index] = mOrder[mSize - 1];
+            mSize--;
+            mDrawn--;
+            return;
+        }
+        System.arraycopy(mOrder, index + 1, mOrder, index, mSize - index - 1);
+        mSize--;
+        if (index < mDrawn) mDrawn--;
+        if (index <= mCursor) mCursor--;
+    }
+
+    /** Adds the catalog positions handed out since we last looked to the pool. */
+    private void ensureSize() {
+        cover(mCatalog.size());
+    }
+
+    /** Adds the positions from mCovered up to the given catalog size to the pool. */
+    private void cover(int catalogSize) {
+        if (catalogSize <= mCovered) return;
+
+        int added = catalogSize - mCovered;
+        if (mSize + added > mOrder.length) {
+            int[] grown = new int[Math.max(mSize + added, mOrder.length * 3 / 2)];
+            System.arraycopy(mOrder, 0, grown, 0, mSize);
+            mOrder = grown;
+        }
+        for (int position = mCovered; position < catalogSize; position++) {
+            mOrder[mSize++] = position;
+        }
+        mCovered = catalogSize;
+    }
+
+    private void swap(int i, int j) {
+        int tmp = mOrder[i];
+        mOrder[i] = mOrder[j];
+        mOrder[j] = tmp;
+    }
+}
@@ -0,0 +1,175 @@
+package com.max.player.controller;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Reads the tags of the songs MediaStore has an unknown artist or album, or no duration, for,
+ * from their files with MediaMetadataRetriever, and puts what it finds in the
+ * {@link TagTable}, and from there in the catalog, a song at a time. Only those songs are read,
+ * and each of them once, until its file changes.
+ *
+ * The files are read by at most {@link #MAX_WORKERS} workers at background priority, and no more
+ * than {@link #MAX_FILES_PER_SECOND} of them a second between them, since reading the tags of a
+ * file can mean reading all of it, and playback reads from the same storage.
+ *
+ * MediaMetadataRetriever needs API level 10; before that, {@link #isAvailable()} is false.
+ */
+class TagEnricher {
+    static final String TAG = "TagEnricher";
+
+    static final int MAX_WORKERS = 2;
+    static final int MAX_FILES_PER_SECOND = 4;
+    private static final long TURN_INTERVAL_MS = 1000 / MAX_FILES_PER_SECOND;
+
+    private final MusicRetriever mRetriever;
+    private final TagTable mTable;
+
+    // the run under way; guarded by this
+    private ExecutorService mExecutor;
+    private boolean mRunAgain = false; // start() was called during it
+    private long[] mIds;
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final AtomicInteger mWorkers = new AtomicInteger();
+    private final AtomicInteger mRead = new AtomicInteger();
+    private long mStartTime;
+    private long mNextTurn = 0; // when the next file may be opened (elapsed realtime)
+
+    private volatile boolean mCancelled = false;
+
+    TagEnricher(MusicRetriever retriever, TagTable table) {
+        mRetriever = retriever;
+        mTable = table;
+    }
+
+    static boolean isAvailable() {
+        return Build.VERSION.SDK_INT >= 10;
+    }
+
+    /**
+     * Starts reading the tags of the incomplete songs that are in the catalog now. If a run is
+     * under way, another one follows it, for the songs that came in since.
+     */
+    synchronized void start() {
+        if (mCancelled) return;
+        if (mExecutor != null) {
+            mRunAgain = true;
+            return;
+        }
+        mIds = mRetriever.getTrackIds();
+        mNext.set(0);
+        mRead.set(0);
+        mStartTime = SystemClock.elapsedRealtime();
+        int workers = Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors());
+        mWorkers.set(workers);
+        mExecutor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "TagEnricher");
+            }
+        });
+        final long[] ids = mIds;
+        for (int i = 0; i < workers; i++) {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    enrich(ids);
+                }
+            });
+        }
+        mExecutor.shutdown(); // the threads go away when the run is done
+    }
+
+    /** Stops reading for good; what has been read so far is kept. */
+    void cancel() {
+        mCancelled = true;
+        synchronized (this) {
+            if (mExecutor != null) mExecutor.shutdownNow();
+        }
+    }
+
+    private void enrich(long[] ids) {
+        int index;
+        while (!mCancelled && (index = mNext.getAndIncrement()) < ids.length) {
+            long id = ids[index];
+            MusicRetriever.Item item = mRetriever.getItem(id);
+            if (item == null || item.getPath() == null || !TagTable.isIncomplete(item)
+                    || mTable.isCurrent(item)) {
+                continue;
+            }
+            try {
+                awaitTurn();
+            } catch (InterruptedException e) {
+                break; // cancelled
+            }
+            read(item);
+        }
+        if (mWorkers.decrementAndGet() == 0) finishRun();
+    }
+
+    /** Waits until the workers, between them, may open another file. */
+    private void awaitTurn() throws InterruptedException {
+        long turn;
+        synchronized (this) {
+            turn = Math.max(SystemClock.elapsedRealtime(), mNextTurn);
+            mNextTurn = turn + TURN_INTERVAL_MS;
+        }
+        long wait = turn - SystemClock.elapsedRealtime();
+        if (wait > 0) Thread.sleep(wait);
+    }
+
+    /** Reads the song's tags, and records and applies what they have. */
+    private void read(MusicRetriever.Item item) {
+        String artist = null;
+        String album = null;
+        long duration = 0;
+        MediaMetadataRetriever metadata = new MediaMetadataRetriever();
+        try {
+            metadata.setDataSource(item.getPath());
+            artist = metadata.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
+            if (TagTable.isUnknown(artist)) {
+                artist = metadata.extractMetadata(
+                        MediaMetadataRetriever.METADATA_KEY_ALBUMARTIST);
+            }
+            album = metadata.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
+            String durationValue = metadata.extractMetadata(
+                    MediaMetadataRetriever.METADATA_KEY_DURATION);
+            if (durationValue != null) duration = Long.parseLong(durationValue.trim());
+        } catch (NumberFormatException e) {
+            // no duration, then
+        } catch (RuntimeException e) {
+            // setDataSource() throws IllegalArgumentException for a file it can't read
+            Log.w(TAG, "Failed to read the tags of " + item.getPath() + ": " + e);
+        } finally {
+            metadata.release();
+        }
+        mRead.incrementAndGet();
+        mTable.put(item.getId(), item.getDateModified(),
+                TagTable.isUnknown(artist) ? null : artist.trim(),
+                TagTable.isUnknown(album) ? null : album.trim(), duration);
+        mRetriever.refreshTrack(item.getId());
+    }
+
+    private synchronized void finishRun() {
+        mExecutor = null;
+        mTable.close();
+        if (mCancelled) return;
+        Log.i(TAG, "Read the tags of " + mRead.get() + " songs in "
+                + (SystemClock.elapsedRealtime() - mStartTime) + "ms.");
+        if (mRunAgain) {
+            mRunAgain = false;
+            start();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.max.player.controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.provider.MediaStore;
+import android.util.Log;
+
+import com.max.player.util.LongIntMap;
+import com.max.player.util.PrimitiveArrays;
+
+/**
+ * What {@link TagEnricher} read from the files of the songs MediaStore has incomplete rows for:
+ * artist, album and duration, by MediaStore id, with null or 0 for what the file didn't have
+ * either. A song that was looked at has an entry even if nothing was found, so that it isn't
+ * looked at again, along with the DATE_MODIFIED of its file at the time; once the file has
+ * changed, the entry no longer applies, and the song is looked at anew.
+ *
+ * {@link MusicRetriever} runs every song that goes into the catalog through
+ * {@link #fillIn(MusicRetriever.Item)}, so what we know stays in the catalog however often the
+ * row comes back from MediaStore as it was.
+ *
+ * On disk the table is a file of records appended as songs are looked at; a later record for the
+ * same song replaces an earlier one, and a record cut short by a crash ends the load. The file is
+ * read the first time the table is used, and written anew then if it had records replaced by
+ * later ones, so it doesn't grow with every song that is looked at again. A file of an older
+ * version is dropped, and the songs looked at again.
+ *
+ * Thread-safe: the enricher's workers add to it while the retriever's loading thread reads it.
+ */
+class TagTable {
+    static final String TAG = "TagTable";
+
+    static final int MAGIC = 0x4d585447; // "MXTG"
+    static final int VERSION = 2;
+
+    private final File mFile;
+    private boolean mLoaded = false;
+
+    private final LongIntMap mIndexById = new LongIntMap();
+    private long[] mIds = new long[64];
+    private long[] mDatesModified = new long[64];
+    private String[] mArtists = new String[64];
+    private String[] mAlbums = new String[64];
+    private long[] mDurations = new long[64];
+    private int mCount = 0;
+
+    private DataOutputStream mOut;
+
+    TagTable(File file) {
+        mFile = file;
+    }
+
+    /** Whether MediaStore's value is a placeholder for one it didn't find. */
+    static boolean isUnknown(String value) {
+        return value == null || value.length() == 0 || MediaStore.UNKNOWN_STRING.equals(value);
+    }
+
+    /** Whether the song's row lacks an artist, an album or a duration. */
+    static boolean isIncomplete(MusicRetriever.Item item) {
+        return isUnknown(item.artist) || isUnknown(item.album) || item.duration <= 0;
+    }
+
+    /** Whether the song has been looked at since its file last changed. */
+    synchronized boolean isCurrent(MusicRetriever.Item item) {
+        load();
+        int index = mIndexById.get(item.id);
+        return index >= 0 && mDatesModified[index] == item.dateModified;
+    }
+
+    /**
+     * Returns the song with the gaps of its row filled in from the table, or the song itself if
+     * we have nothing to add, or nothing that still applies to its file.
+     */
+    synchronized MusicRetriever.Item fillIn(MusicRetriever.Item item) {
+        load();
+        int index = mIndexById.get(item.id);
+        if (index < 0 || mDatesModified[index] != item.dateModified) return item;
+        String artist = isUnknown(item.artist) && mArtists[index] != null ? mArtists[index]
+                : item.artist;
+        String album = isUnknown(item.album) && mAlbums[index] != null ? mAlbums[index]
+                : item.album;
+        long duration = item.duration <= 0 ? mDurations[index] : item.duration;
+        if (artist == item.artist && album == item.album && duration == item.duration) {
+            return item;
+        }
+        return new MusicRetriever.Item(item.id, artist, item.title, album, item.albumId,
+                duration, item.path, item.dateModified);
+    }
+
+    /**
+     * Records what was found for a song, in its file as of the given DATE_MODIFIED: null or 0 for
+     * what wasn't.
+     */
+    synchronized void put(long id, long dateModified, String artist, String album,
+            long duration) {
+        load();
+        set(id, dateModified, artist, album, duration);
+        try {
+            if (mOut == null) {
+                mOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mFile, true)));
+            }
+            mOut.writeLong(id);
+            mOut.writeLong(dateModified);
+            mOut.writeLong(duration);
+            mOut.writeUTF(artist != null ? artist : "");
+            mOut.writeUTF(album != null ? album : "");
+            mOut.flush();
+        } catch (IOException e) {
+            // it still applies; the song will just be looked at again next time
+            Log.w(TAG, "Failed to write tag table: " + e.getMessage());
+            close();
+        }
+    }
+
+    /** Closes the file; it is opened again if more is added. */
+    synchronized void close() {
+        if (mOut == null) return;
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close tag table: " + e.getMessage());
+        }
+        mOut = null;
+    }
+
+    private void load() {
+        if (mLoaded) return;
+        mLoaded = true;
+        boolean clean = true;
+        int records = 0;
+        if (mFile.exists()) {
+            long startTime = System.currentTimeMillis();
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mFile), 64 * 1024));
+                try {
+                    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                        throw new IOException("Not a tag table");
+                    }
+                    while (true) {
+                        long id;
+                        try {
+                            id = in.readLong();
+                        } catch (EOFException e) {
+                            break; // the end of the last whole record
+                        }
+                        long dateModified = in.readLong();
+                        long duration = in.readLong();
+                        String artist = in.readUTF();
+                        String album = in.readUTF();
+                        set(id, dateModified, artist.length() > 0 ? artist : null,
+                                album.length() > 0 ? album : null, duration);
+                        records++;
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (EOFException e) {
+                clean = false; // the last record was cut short
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read tag table: " + e.getMessage());
+                mIndexById.clear();
+                mCount = 0;
+                clean = false;
+            }
+            Log.i(TAG, "Loaded tags of " + mCount + " songs from " + records + " records in "
+                    + (System.currentTimeMillis() - startTime) + "ms.");
+        }
+        // drop the records later ones replaced, too
+        if (!clean || records > mCount || !mFile.exists()) rewrite();
+    }
+
+    private void set(long id, long dateModified, String artist, String album, long duration) {
+        int index = mIndexById.get(id);
+        if (index < 0) {
+            if (mCount == mDurations.length) grow();
+            index = mCount++;
+            mIndexById.put(id, index);
+        }
+        mIds[index] = id;
+        mDatesModified[index] = dateModified;
+        mArtists[index] = artist;
+        mAlbums[index] = album;
+        mDurations[index] = Math.max(duration, 0);
+    }
+
+    /** Writes the file anew from what we have, a record per song. */
+    private void rewrite() {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut,
+                        64 * 1024));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (int i = 0; i < mCount; i++) {
+                    out.writeLong(mIds[i]);
+                    out.writeLong(mDatesModified[i]);
+                    out.writeLong(mDurations[i]);
+                    out.writeUTF(mArtists[i] != null ? mArtists[i] : "");
+                    out.writeUTF(mAlbums[i] != null ? mAlbums[i] : "");
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+            if (!tmp.renameTo(mFile)) throw new IOException("Could not rename " + tmp);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to rewrite tag table: " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    private void grow() {
+        int capacity = mDurations.length * 2;
+        mIds = PrimitiveArrays.copyOf(mIds, capacity);
+        mDatesModified = PrimitiveArrays.copyOf(mDatesModified, capacity);
+        mArtists = PrimitiveArrays.copyOf(mArtists, capacity);
+        mAlbums = PrimitiveArrays.copyOf(mAlbums, capacity);
+        mDurations = PrimitiveArrays.copyOf(mDurations, capacity);
+    }
+}
@@ -0,0 +1,340 @@
+package com.max.player.controller;
+
+import java.util.Arrays;
+
+import com.max.player.util.LongIntMap;
+import com.max.player.util.PrimitiveArrays;
+import com.max.player.util.StringDictionary;
+
+/**
+ * Column-oriented store for the tracks known to {@link MusicRetriever}. Each attribute lives in
+ * its own primitive array indexed by track position, and artist and album names, and the
+ * folders of the files, are dictionary-encoded, so a large library costs a handful of arrays
+ * instead of one object and five strings per track. {@link MusicRetriever.Item} objects are only
+ * created on demand.
+ *
+ * Positions are stable: removing a track leaves a hole that is skipped from then on, so other
+ * structures can refer to tracks by position. A position is never reused by another track.
+ * Once holes make up a good part of the catalog, {@link #compact()} moves the live tracks down
+ * over them and re-encodes the dictionaries with only the strings still in use, and hands back
+ * where each track went, so that whoever keeps positions can follow.
+ *
+ * This class is not thread-safe; {@link MusicRetriever} guards it with its own lock.
+ */
+class TrackCatalog {
+    private static final int INITIAL_CAPACITY = 256;
+
+    // compact() is worth it once there are this many holes, and they are a quarter of the
+    // positions or more
+    private static final int COMPACT_MIN_HOLES = 1024;
+
+    private long[] mIds = new long[INITIAL_CAPACITY];
+    private long[] mDurations = new long[INITIAL_CAPACITY];
+    private long[] mAlbumIds = new long[INITIAL_CAPACITY];
+    private long[] mDatesModified = new long[INITIAL_CAPACITY];
+    private int[] mArtists = new int[INITIAL_CAPACITY];
+    private int[] mAlbums = new int[INITIAL_CAPACITY];
+    private String[] mTitles = new String[INITIAL_CAPACITY];
+    private int[] mFolders = new int[INITIAL_CAPACITY];
+    private String[] mFileNames = new String[INITIAL_CAPACITY];
+
+    // one bit per position, set when the track at that position has been removed
+    private long[] mRemoved = new long[INITIAL_CAPACITY / 64];
+
+    private StringDictionary mArtistDictionary = new StringDictionary();
+    private StringDictionary mAlbumDictionary = new StringDictionary();
+    private StringDictionary mFolderDictionary = new StringDictionary();
+
+    // position of each live track, by MediaStore id
+    private LongIntMap mPositionById = new LongIntMap(INITIAL_CAPACITY);
+
+    // position of each live track with a path, by a 64-bit hash of the path; lookups check the
+    // path itself, so a collision can only make a track unfindable by path, never the wrong one
+    private LongIntMap mPositionByPath = new LongIntMap(INITIAL_CAPACITY);
+
+    // for each track that is a copy of another, the position of that other track; only the
+    // copies are in here, so it costs nothing in a library without any
+    private LongIntMap mOriginals = new LongIntMap();
+
+    // positions in use, including removed ones
+    private int mSize;
+
+    /** Number of live (not removed) tracks. */
+    int count() {
+        return mPositionById.size();
+    }
+
+    /** Number of positions handed out so far, including those of removed tracks. */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Inserts a track, or overwrites the one with the same id in place. Returns its position.
+     */
+    int put(MusicRetriever.Item item) {
+        int position = mPositionById.get(item.id);
+        if (position < 0) {
+            if (mSize == mIds.length) grow();
+            position = mSize++;
+            mPositionById.put(item.id, position);
+        } else {
+            // a new file is no longer a copy of anything we know of
+            if (item.path == null || !item.path.equals(getPath(position))) {
+                mOriginals.remove(position);
+            }
+            removePath(position);
+        }
+        mIds[position] = item.id;
+        mDurations[position] = item.duration;
+        mAlbumIds[position] = item.albumId;
+        mDatesModified[position] = item.dateModified;
+        mArtists[position] = mArtistDictionary.encode(item.artist);
+        mAlbums[position] = mAlbumDictionary.encode(item.album);
+        mTitles[position] = item.title;
+        putPath(position, item.path);
+        return position;
+    }
+
+    /** Whether removed tracks leave enough holes for {@link #compact()} to be worth it. */
+    boolean needsCompacting() {
+        int holes = mSize - count();
+        return holes >= COMPACT_MIN_HOLES && holes * 4 >= mSize;
+    }
+
+    /**
+     * Moves the live tracks down over the holes, in the order they were in, and drops the
+     * strings no track uses any more from the dictionaries, so that their codes change too.
+     * Returns the new position of each old one, or -1 for the removed ones.
+     */
+    int[] compact() {
+        int[] newPositions = new int[mSize];
+        StringDictionary artists = new StringDictionary();
+        StringDictionary albums = new StringDictionary();
+        StringDictionary folders = new StringDictionary();
+        LongIntMap originals = new LongIntMap();
+        int size = 0;
+        for (int position = 0; position < mSize; position++) {
+            if (isRemoved(position)) {
+                newPositions[position] = -1;
+                continue;
+            }
+            int moved = size++;
+            newPositions[position] = moved;
+            mIds[moved] = mIds[position];
+            mDurations[moved] = mDurations[position];
+            mAlbumIds[moved] = mAlbumIds[position];
+            mDatesModified[moved] = mDatesModified[position];
+            mArtists[moved] = artists.encode(mArtistDictionary.decode(mArtists[position]));
+            mAlbums[moved] = albums.encode(mAlbumDictionary.decode(mAlbums[position]));
+            mTitles[moved] = mTitles[position];
+            mFolders[moved] = folders.encode(mFolderDictionary.decode(mFolders[position]));
+            mFileNames[moved] = mFileNames[position];
+        }
+        // a copy comes before or after its original, so the originals are mapped in a second
+        // pass; a copy of a removed track is a track of its own now
+        for (int position = 0; position < mSize; position++) {
+            int original = mOriginals.get(position);
+            if (original >= 0 && newPositions[position] >= 0 && newPositions[original] >= 0) {
+                originals.put(newPositions[position], newPositions[original]);
+            }
+        }
+        for (int position = size; position < mSize; position++) {
+            mTitles[position] = null;
+            mFileNames[position] = null;
+        }
+        Arrays.fill(mRemoved, 0);
+        mArtistDictionary = artists;
+        mAlbumDictionary = albums;
+        mFolderDictionary = folders;
+        mOriginals = originals;
+        mSize = size;
+
+        mPositionById = new LongIntMap(Math.max(INITIAL_CAPACITY, size));
+        mPositionByPath = new LongIntMap(Math.max(INITIAL_CAPACITY, size));
+        for (int position = 0; position < size; position++) {
+            mPositionById.put(mIds[position], position);
+            String path = getPath(position);
+            if (path != null) mPositionByPath.put(pathHash(path), position);
+        }
+        return newPositions;
+    }
+
+    /** Removes the track with the given id. Returns the position it had, or -1. */
+    int remove(long id) {
+        int position = mPositionById.remove(id);
+        if (position < 0) return -1;
+        removePath(position);
+        mOriginals.remove(position);
+        mRemoved[position >> 6] |= 1L << position;
+        mTitles[position] = null;
+        mFileNames[position] = null;
+        return position;
+    }
+
+    /** Returns the position of the track with the given id, or -1 if it is not in the catalog. */
+    int positionOf(long id) {
+        return mPositionById.get(id);
+    }
+
+    /** Returns the position of the live track with the given file path, or -1. */
+    int positionOfPath(String path) {
+        if (path == null) return -1;
+        int position = mPositionByPath.get(pathHash(path));
+        if (position < 0 || !path.equals(getPath(position))) return -1;
+        return position;
+    }
+
+    boolean isRemoved(int position) {
+        return (mRemoved[position >> 6] & (1L << position)) != 0;
+    }
+
+    /**
+     * Whether the track is a copy of another live track, and should not be offered as a track of
+     * its own. A copy whose original has been removed is a track of its own again.
+     */
+    boolean isDuplicate(int position) {
+        int original = mOriginals.get(position);
+        return original >= 0 && !isRemoved(original);
+    }
+
+    /** Number of tracks that are copies of other live tracks. */
+    int duplicateCount() {
+        return mOriginals.size();
+    }
+
+    /** Marks the track at the given position as a copy of the one at the other position. */
+    void setOriginal(int position, int original) {
+        mOriginals.put(position, original);
+    }
+
+    /** Forgets which tracks are copies of which. */
+    void clearDuplicates() {
+        mOriginals.clear();
+    }
+
+    long getId(int position) {
+        return mIds[position];
+    }
+
+    long getDuration(int position) {
+        return mDurations[position];
+    }
+
+    long getAlbumId(int position) {
+        return mAlbumIds[position];
+    }
+
+    long getDateModified(int position) {
+        return mDatesModified[position];
+    }
+
+    String getTitle(int position) {
+        return mTitles[position];
+    }
+
+    String getArtist(int position) {
+        return mArtistDictionary.decode(mArtists[position]);
+    }
+
+    String getAlbum(int position) {
+        return mAlbumDictionary.decode(mAlbums[position]);
+    }
+
+    /** Returns the path of the track's file, or null if we don't know it. */
+    String getPath(int position) {
+        String fileName = mFileNames[position];
+        if (fileName == null) return null;
+        String folder = mFolderDictionary.decode(mFolders[position]);
+        return folder == null ? fileName : folder + '/' + fileName;
+    }
+
+    /** Returns the folder of the track's file, or null if we don't know it. */
+    String getFolder(int position) {
+        return mFolderDictionary.decode(mFolders[position]);
+    }
+
+    String getFileName(int position) {
+        return mFileNames[position];
+    }
+
+    int getFolderCode(int position) {
+        return mFolders[position];
+    }
+
+    int getArtistCode(int position) {
+        return mArtists[position];
+    }
+
+    int getAlbumCode(int position) {
+        return mAlbums[position];
+    }
+
+    StringDictionary getArtistDictionary() {
+        return mArtistDictionary;
+    }
+
+    StringDictionary getAlbumDictionary() {
+        return mAlbumDictionary;
+    }
+
+    StringDictionary getFolderDictionary() {
+        return mFolderDictionary;
+    }
+
+    /** Materializes the track at the given position, or returns null if it was removed. */
+    MusicRetriever.Item getItem(int position) {
+        if (isRemoved(position)) return null;
+        return new MusicRetriever.Item(mIds[position], getArtist(position), mTitles[position],
+                getAlbum(position), mAlbumIds[position], mDurations[position], getPath(position),
+                mDatesModified[position]);
+    }
+
+    // a path is kept as its folder, dictionary-encoded, and the file name within it
+    private void putPath(int position, String path) {
+        if (path == null) {
+            mFolders[position] = -1;
+            mFileNames[position] = null;
+            return;
+        }
+        int slash = path.lastIndexOf('/');
+        mFolders[position] = slash < 0 ? -1 : mFolderDictionary.encode(path.substring(0, slash));
+        mFileNames[position] = path.substring(slash + 1);
+        mPositionByPath.put(pathHash(path), position);
+    }
+
+    private void removePath(int position) {
+        String path = getPath(position);
+        if (path == null) return;
+        long hash = pathHash(path);
+        if (mPositionByPath.get(hash) == position) mPositionByPath.remove(hash);
+    }
+
+    // 64-bit FNV-1a over the chars of the path
+    static long pathHash(String path) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void grow() {
+        int capacity = mIds.length * 2;
+        mIds = PrimitiveArrays.copyOf(mIds, capacity);
+        mDurations = PrimitiveArrays.copyOf(mDurations, capacity);
+        mAlbumIds = PrimitiveArrays.copyOf(mAlbumIds, capacity);
+        mDatesModified = PrimitiveArrays.copyOf(mDatesModified, capacity);
+        mArtists = PrimitiveArrays.copyOf(mArtists, capacity);
+        mAlbums = PrimitiveArrays.copyOf(mAlbums, capacity);
+        String[] titles = new String[capacity];
+        System.arraycopy(mTitles, 0, titles, 0, mSize);
+        mTitles = titles;
+        mFolders = PrimitiveArrays.copyOf(mFolders, capacity);
+        String[] fileNames = new String[capacity];
+        System.arraycopy(mFileNames, 0, fileNames, 0, mSize);
+        mFileNames = fileNames;
+        mRemoved = PrimitiveArrays.copyOf(mRemoved, capacity / 64);
+    }
+}
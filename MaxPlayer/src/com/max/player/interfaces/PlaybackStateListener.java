@@ -0,0 +1,14 @@
+package com.max.player.interfaces;
+
+import com.max.player.controller.MusicService;
+
+public interface PlaybackStateListener {
+    /**
+     * Signals that the service went into a new state, or started on a new song. Always called
+     * on the main thread.
+     *
+     * @param state The state the service is in now.
+     * @param songTitle Title of the current song, or an empty string if there is none.
+     */
+    public void onPlaybackStateChanged(MusicService.State state, String songTitle);
+}
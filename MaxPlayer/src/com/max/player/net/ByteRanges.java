@@ -0,0 +1,113 @@
+package com.max.player.net;
+
+/**
+ * A set of disjoint byte ranges of a stream, as two sorted arrays of starts and (exclusive) ends.
+ * Adjacent and overlapping ranges are merged as they are added, so a stream that is read from
+ * start to end is a single range however many chunks it came in. Not thread-safe.
+ */
+class ByteRanges {
+    private long[] mStarts;
+    private long[] mEnds;
+    private int mCount = 0;
+
+    ByteRanges() {
+        mStarts = new long[4];
+        mEnds = new long[4];
+    }
+
+    /** Number of disjoint ranges. */
+    int count() {
+        return mCount;
+    }
+
+    long getStart(int i) {
+        return mStarts[i];
+    }
+
+    long getEnd(int i) {
+        return mEnds[i];
+    }
+
+    /** Total number of bytes covered. */
+    long size() {
+        long size = 0;
+        for (int i = 0; i < mCount; i++) size += mEnds[i] - mStarts[i];
+        return size;
+    }
+
+    /** Whether [0, length) is covered. */
+    boolean covers(long length) {
+        return length == 0 || (mCount == 1 && mStarts[0] == 0 && mEnds[0] >= length);
+    }
+
+    /**
+     * Returns the end of the range that contains the given position, or the position itself if
+     * it is not covered.
+     */
+    long coveredEnd(long position) {
+        int i = find(position);
+        return i >= 0 && mEnds[i] > position ? mEnds[i] : position;
+    }
+
+    /**
+     * Returns the start of the first range after the given position, or {@link Long#MAX_VALUE}
+     * if there is none.
+     */
+    long nextStart(long position) {
+        int i = find(position) + 1;
+        return i < mCount ? mStarts[i] : Long.MAX_VALUE;
+    }
+
+    void clear() {
+        mCount = 0;
+    }
+
+    /** Adds [start, end), and returns how many of its bytes were not covered yet. */
+    long add(long start, long end) {
+        if (end <= start) return 0;
+        long before = size();
+
+        // the ranges that overlap or touch [start, end) are mStarts[first..last]
+        int first = find(start);
+        if (first < 0 || mEnds[first] < start) first++;
+        int last = find(end);
+        if (last >= first) {
+            start = Math.min(start, mStarts[first]);
+            end = Math.max(end, mEnds[last]);
+        }
+        int removed = last - first + 1; // may be 0 when nothing overlaps
+        int shift = 1 - removed;
+        if (mCount + shift > mStarts.length) {
+            mStarts = grow(mStarts, mCount + shift);
+            mEnds = grow(mEnds, mCount + shift);
+        }
+        int tail = mCount - (last + 1);
+        System.arraycopy(mStarts, last + 1, mStarts, last + 1 + shift, tail);
+        System.arraycopy(mEnds, last + 1, mEnds, last + 1 + shift, tail);
+        mStarts[first] = start;
+        mEnds[first] = end;
+        mCount += shift;
+        return size() - before;
+    }
+
+    /** Index of the last range that starts at or before the position, or -1. */
+    private int find(long position) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mStarts[mid] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private static long[] grow(long[] array, int minLength) {
+        long[] grown = new long[Math.max(minLength, array.length * 2)];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
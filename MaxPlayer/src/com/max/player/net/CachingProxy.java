@@ -0,0 +1,508 @@
+package com.max.player.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A small HTTP server on the loopback interface that sits between a MediaPlayer and the streams
+ * it plays, and keeps what it downloads in a {@link StreamCache}. The player is given
+ * {@link #getUrl(String) a URL on the proxy} instead of the real one; each request it makes
+ * (usually "from byte N to the end", since seeking reconnects at a new offset) is answered from
+ * the cache as far as the cached ranges go, and the missing ranges in between are fetched from
+ * the server with a Range request of their own and stored on the way through. Playing a stream
+ * again, or seeking back into the part we already have, needs no network at all.
+ *
+ * When the connection to the server stalls or drops in the middle of a range, the proxy
+ * reconnects with a Range request from the first byte it doesn't have yet, after a pause that
+ * doubles with each failed attempt, and carries on sending to the player as if nothing had
+ * happened. The player keeps its connection to us all the while, and plays from its buffer; only
+ * when {@link #MAX_RECONNECTS} attempts in a row fail does it get an error.
+ *
+ * Streams without a known length (internet radio) are passed through without caching, and
+ * without reconnecting: a live stream has no offset to pick it up again at, so if its connection
+ * drops, the player's does too.
+ *
+ * Any app on the device can connect to the loopback interface, so the proxy only answers paths
+ * that start with a random token of its own, which only the URLs from {@link #getUrl(String)}
+ * have, and only fetches http: and https: URLs. A request it can't make sense of gets a 400,
+ * and whatever goes wrong with one connection takes nothing else down with it.
+ *
+ * Uses nothing but java.net, so it can be run against a local HTTP server off the device.
+ */
+public class CachingProxy {
+    static final int CONNECT_TIMEOUT_MS = 15000;
+    static final int READ_TIMEOUT_MS = 30000;
+    // a server that sends nothing for this long is taken to have dropped us
+    static final int STALL_TIMEOUT_MS = 8000;
+    static final int BUFFER_SIZE = 32 * 1024;
+
+    // reconnects after a dropped or stalled connection, waiting 250ms, 500ms, ... 4s in between
+    static final int MAX_RECONNECTS = 6;
+    static final long INITIAL_BACKOFF_MS = 250;
+    static final long MAX_BACKOFF_MS = 4000;
+
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private final StreamCache mCache;
+    // the first segment of every path we answer, so other apps can't use us as a relay
+    private final String mToken = Long.toHexString(new SecureRandom().nextLong());
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+    private final HashSet<Socket> mClients = new HashSet<Socket>();
+
+    public CachingProxy(StreamCache cache) {
+        mCache = cache;
+    }
+
+    /** Starts listening on a free port of the loopback interface. */
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) return;
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop(mServerSocket);
+            }
+        }, "StreamProxy");
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    /** Stops listening, and drops the connections that are still open. */
+    public synchronized void shutdown() {
+        if (mServerSocket == null) return;
+        closeQuietly(mServerSocket);
+        mServerSocket = null;
+        for (Socket client : mClients) closeQuietly(client);
+        mClients.clear();
+    }
+
+    /** Returns the URL on the proxy that serves the stream at the given URL. */
+    public synchronized String getUrl(String url) {
+        if (mServerSocket == null) throw new IllegalStateException("Proxy is not started");
+        try {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + mToken + "/"
+                    + URLEncoder.encode(url, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // every Java platform has UTF-8
+        }
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (true) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                return; // closed by shutdown()
+            }
+            synchronized (this) {
+                if (mServerSocket != serverSocket) {
+                    closeQuietly(client);
+                    return;
+                }
+                mClients.add(client);
+            }
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        serve(client);
+                    } catch (IOException e) {
+                        // the player went away (it does that on every seek), or the server did
+                    } catch (RuntimeException e) {
+                        // a bug of ours; the player sees its connection close, and the rest of
+                        // the app carries on
+                    } finally {
+                        closeQuietly(client);
+                        synchronized (CachingProxy.this) {
+                            mClients.remove(client);
+                        }
+                    }
+                }
+            }, "StreamProxyClient");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket client) throws IOException {
+        client.setSoTimeout(READ_TIMEOUT_MS);
+        InputStream in = client.getInputStream();
+        OutputStream out = client.getOutputStream();
+
+        // the request line, then the headers; all we care about is the path and the range
+        String requestLine = readLine(in);
+        if (requestLine == null) return;
+        String rangeHeader = null;
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            if (line.regionMatches(true, 0, "Range:", 0, 6)) {
+                rangeHeader = line.substring(6).trim();
+            }
+        }
+
+        String[] parts = requestLine.split(" ");
+        String prefix = "/" + mToken + "/";
+        if (parts.length < 2 || !parts[0].equals("GET")) {
+            writeStatus(out, "400 Bad Request");
+            return;
+        }
+        if (!parts[1].startsWith(prefix)) {
+            writeStatus(out, "404 Not Found");
+            return;
+        }
+        String url;
+        long start = 0;
+        long end = -1; // inclusive, like in the header
+        try {
+            url = URLDecoder.decode(parts[1].substring(prefix.length()), "UTF-8");
+            String protocol = new URL(url).getProtocol();
+            if (!protocol.equals("http") && !protocol.equals("https")) {
+                writeStatus(out, "400 Bad Request");
+                return;
+            }
+            if (rangeHeader != null) {
+                Matcher m = RANGE.matcher(rangeHeader);
+                if (!m.matches()) {
+                    writeStatus(out, "416 Requested Range Not Satisfiable");
+                    return;
+                }
+                start = Long.parseLong(m.group(1));
+                if (m.group(2).length() > 0) end = Long.parseLong(m.group(2));
+            }
+        } catch (MalformedURLException e) {
+            writeStatus(out, "400 Bad Request");
+            return;
+        } catch (IllegalArgumentException e) {
+            // a bad escape in the path, or a range too large for a long
+            writeStatus(out, "400 Bad Request");
+            return;
+        }
+
+        StreamCache.Entry entry = mCache.open(url);
+        Upstream upstream = null;
+        try {
+            long length = entry.getLength();
+            if (length < 0) {
+                // the first time we see the stream, the server has to tell us how long it is
+                for (int attempt = 1; upstream == null; attempt++) {
+                    try {
+                        upstream = Upstream.open(url, start, end);
+                    } catch (IOException e) {
+                        backOff(attempt, e);
+                    }
+                }
+                if (upstream.length < 0) {
+                    passThrough(upstream, out);
+                    return;
+                }
+                length = upstream.length;
+                entry.setInfo(length, upstream.contentType);
+            }
+            if (start >= length) {
+                writeStatus(out, "416 Requested Range Not Satisfiable");
+                return;
+            }
+            if (end < 0 || end >= length) end = length - 1;
+
+            String contentType = entry.getContentType();
+            StringBuilder headers = new StringBuilder();
+            headers.append(rangeHeader != null ? "HTTP/1.1 206 Partial Content\r\n"
+                    : "HTTP/1.1 200 OK\r\n");
+            headers.append("Content-Type: ")
+                    .append(contentType != null ? contentType : DEFAULT_CONTENT_TYPE)
+                    .append("\r\n");
+            headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            if (rangeHeader != null) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(length).append("\r\n");
+            }
+            headers.append("Accept-Ranges: bytes\r\n");
+            headers.append("Connection: close\r\n\r\n");
+            out.write(headers.toString().getBytes("US-ASCII"));
+
+            upstream = copyRange(url, entry, upstream, start, end + 1, out);
+            out.flush();
+        } finally {
+            if (upstream != null) upstream.close();
+            mCache.release(entry);
+        }
+    }
+
+    /**
+     * Sends [from, to) to the player, from the cache where we have it and from the server where
+     * we don't. The upstream connection is reused as long as it is at the right offset, and
+     * reopened at the same offset if it fails; whatever connection is left open at the end is
+     * returned, for the caller to close.
+     */
+    private Upstream copyRange(String url, StreamCache.Entry entry, Upstream upstream, long from,
+            long to, OutputStream out) throws IOException {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = from;
+        int failures = 0; // in a row, without a byte in between
+        while (position < to) {
+            long cachedEnd = Math.min(entry.coveredEnd(position), to);
+            if (cachedEnd > position) {
+                if (upstream != null) {
+                    upstream.close();
+                    upstream = null;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(bytes.length, cachedEnd - position));
+                int n = entry.read(buffer, position);
+                if (n <= 0) throw new IOException("Cache file is shorter than its ranges");
+                out.write(bytes, 0, n);
+                position += n;
+                continue;
+            }
+
+            // a gap: fetch exactly the bytes up to the next cached range
+            long gapEnd = Math.min(entry.nextStart(position), to);
+            int n;
+            try {
+                if (upstream == null || upstream.position != position) {
+                    if (upstream != null) upstream.close();
+                    upstream = null;
+                    upstream = Upstream.open(url, position, gapEnd - 1);
+                }
+                n = upstream.read(bytes, (int) Math.min(bytes.length, gapEnd - position));
+                if (n < 0) throw new EOFException("Server closed the stream at " + position);
+            } catch (IOException e) {
+                if (upstream != null) {
+                    upstream.close();
+                    upstream = null;
+                }
+                backOff(++failures, e);
+                continue; // and reopen at the same position
+            }
+            failures = 0;
+            buffer.clear();
+            buffer.limit(n);
+            entry.write(buffer, position); // cached before the player sees it
+            out.write(bytes, 0, n);
+            position += n;
+        }
+        return upstream;
+    }
+
+    /**
+     * Waits before reconnect attempt number attempt (counting from 1) after the given failure,
+     * or rethrows the failure if it can't be helped by trying again.
+     */
+    private void backOff(int attempt, IOException failure) throws IOException {
+        if (attempt > MAX_RECONNECTS || !isRetryable(failure)) throw failure;
+        synchronized (this) {
+            if (mServerSocket == null) throw failure; // shut down while we were at it
+        }
+        long delay = Math.min(INITIAL_BACKOFF_MS << (attempt - 1), MAX_BACKOFF_MS);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while reconnecting");
+        }
+    }
+
+    /** A network failure may go away; a server that answers with a 4xx won't change its mind. */
+    private static boolean isRetryable(IOException failure) {
+        if (failure instanceof StatusException) return ((StatusException) failure).code >= 500;
+        return true;
+    }
+
+    /**
+     * Sends a stream of unknown length to the player as it comes. If the connection to the
+     * server drops, so does the player's; there is no offset to reconnect at.
+     */
+    private static void passThrough(Upstream upstream, OutputStream out) throws IOException {
+        String contentType = upstream.contentType != null ? upstream.contentType
+                : DEFAULT_CONTENT_TYPE;
+        out.write(("HTTP/1.1 200 OK\r\nContent-Type: " + contentType
+                + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+        byte[] bytes = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = upstream.read(bytes, bytes.length)) >= 0) {
+            out.write(bytes, 0, n);
+        }
+        out.flush();
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    /** Reads a CRLF (or LF) terminated line of ASCII, or returns null at the end of the stream. */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+    /** A connection to the server, reading the stream from a given offset. */
+    static class Upstream {
+        final long length; // of the whole stream, or -1 if the server didn't say
+        final String contentType;
+        long position;
+
+        private final HttpURLConnection mConnection;
+        private final InputStream mIn;
+
+        private Upstream(HttpURLConnection connection, InputStream in, long position,
+                long length, String contentType) {
+            mConnection = connection;
+            mIn = in;
+            this.position = position;
+            this.length = length;
+            this.contentType = contentType;
+        }
+
+        /**
+         * Asks the server for the stream from the given offset up to and including the given
+         * end, or to the end of the stream if the end is negative. Servers that ignore the
+         * Range header are read up to the offset.
+         */
+        static Upstream open(String url, long from, long to) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(STALL_TIMEOUT_MS);
+            if (from > 0 || to >= 0) {
+                connection.setRequestProperty("Range", "bytes=" + from + "-"
+                        + (to >= 0 ? Long.toString(to) : ""));
+            }
+            // the cache wants the bytes as they are stored, not a compressed transfer of them
+            connection.setRequestProperty("Accept-Encoding", "identity");
+
+            try {
+                int code = connection.getResponseCode();
+                String contentType = connection.getContentType();
+                InputStream in;
+                long length;
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    Matcher m = CONTENT_RANGE.matcher(
+                            String.valueOf(connection.getHeaderField("Content-Range")));
+                    long start = -1;
+                    length = -1;
+                    try {
+                        if (m.matches()) {
+                            start = Long.parseLong(m.group(1));
+                            length = Long.parseLong(m.group(3));
+                        }
+                    } catch (NumberFormatException e) {
+                        // too many digits for a long; a garbled response, so try again
+                        throw new IOException("Bad Content-Range from " + url);
+                    }
+                    if (start != from || length < 0) {
+                        throw new StatusException(code, "Unexpected Content-Range from " + url);
+                    }
+                    in = connection.getInputStream();
+                } else if (code == HttpURLConnection.HTTP_OK) {
+                    length = contentLength(connection);
+                    in = connection.getInputStream();
+                    skipFully(in, from);
+                } else {
+                    throw new StatusException(code, "HTTP " + code + " from " + url);
+                }
+                return new Upstream(connection, in, from, length, contentType);
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+        }
+
+        /** Reads up to max bytes, or returns -1 at the end of the stream. */
+        int read(byte[] bytes, int max) throws IOException {
+            int n = mIn.read(bytes, 0, max);
+            if (n > 0) position += n;
+            return n;
+        }
+
+        void close() {
+            try {
+                mIn.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+            mConnection.disconnect();
+        }
+
+        private static long contentLength(HttpURLConnection connection) {
+            String value = connection.getHeaderField("Content-Length");
+            if (value == null) return -1;
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private static void skipFully(InputStream in, long count) throws IOException {
+            byte[] scratch = null;
+            while (count > 0) {
+                long skipped = in.skip(count);
+                if (skipped <= 0) {
+                    // some streams won't skip, but they can always be read
+                    if (scratch == null) scratch = new byte[BUFFER_SIZE];
+                    int n = in.read(scratch, 0, (int) Math.min(scratch.length, count));
+                    if (n < 0) throw new IOException("Stream ended before offset");
+                    skipped = n;
+                }
+                count -= skipped;
+            }
+        }
+    }
+
+    /** A response that the server meant, as opposed to a failure of the connection. */
+    static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        StatusException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.max.player.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A size-bounded disk cache of the byte ranges we have downloaded from HTTP streams. Each stream
+ * has a sparse data file, written at the offsets the bytes belong at, and a small metadata file
+ * with its URL, length, content type and the ranges of the data file that hold real bytes.
+ *
+ * When the cached bytes add up to more than the limit, whole streams are evicted, least recently
+ * used first; streams that are being read or written are never evicted. The order survives
+ * restarts through the modification time of the metadata files.
+ *
+ * Thread-safe: the cache and each of its entries lock themselves.
+ */
+public class StreamCache {
+    static final int MAGIC = 0x4d585343; // "MXSC"
+    static final int VERSION = 1;
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".meta";
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    // every stream we have bytes of, least recently used first
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16,
+            0.75f, true);
+    private long mSize = 0;
+
+    /**
+     * Opens the cache in the given directory, picking up whatever earlier runs left there. Files
+     * that are not complete pairs of data and valid metadata are deleted.
+     */
+    public StreamCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        dir.mkdirs();
+
+        File[] metaFiles = dir.listFiles();
+        if (metaFiles == null) return;
+        Arrays.sort(metaFiles, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long ta = a.lastModified();
+                long tb = b.lastModified();
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        HashSet<File> known = new HashSet<File>();
+        for (File file : metaFiles) {
+            String name = file.getName();
+            if (!name.endsWith(META_SUFFIX)) continue;
+            String key = name.substring(0, name.length() - META_SUFFIX.length());
+            Entry entry = new Entry(key);
+            if (entry.readMetadata()) {
+                mEntries.put(key, entry);
+                mSize += entry.mRanges.size();
+                known.add(entry.mMetaFile);
+                known.add(entry.mDataFile);
+            }
+        }
+        for (File file : metaFiles) {
+            if (!known.contains(file)) file.delete();
+        }
+        trim();
+    }
+
+    /** Total number of cached bytes. */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /** Whether the whole stream at the given URL is cached, so playing it needs no network. */
+    public synchronized boolean isComplete(String url) {
+        Entry entry = mEntries.get(keyOf(url));
+        return entry != null && entry.isComplete();
+    }
+
+    /**
+     * Opens the entry of the given URL, creating it if the stream has no cached bytes yet. Each
+     * call must be paired with a call to {@link #release}.
+     */
+    synchronized Entry open(String url) throws IOException {
+        String key = keyOf(url);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entry.mUrl = url;
+            mEntries.put(key, entry);
+        }
+        entry.acquire();
+        return entry;
+    }
+
+    /** Releases an entry that was opened with {@link #open}. */
+    synchronized void release(Entry entry) {
+        entry.release();
+        trim();
+    }
+
+    private synchronized void added(long bytes) {
+        mSize += bytes;
+        if (mSize > mMaxBytes) trim();
+    }
+
+    /** Evicts unused streams, least recently used first, until we are within the limit. */
+    private synchronized void trim() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mSize > mMaxBytes && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.isInUse()) continue;
+            it.remove();
+            mSize -= entry.delete();
+        }
+    }
+
+    private static String keyOf(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // every Java platform has MD5
+        } catch (IOException e) {
+            throw new RuntimeException(e); // and UTF-8
+        }
+    }
+
+    /** The cached bytes of one stream. */
+    class Entry {
+        private final File mDataFile;
+        private final File mMetaFile;
+
+        private String mUrl;
+        private long mLength = -1; // -1 until we hear it from the server
+        private String mContentType;
+        private final ByteRanges mRanges = new ByteRanges();
+
+        private int mUsers = 0;
+        private RandomAccessFile mFile;
+        private FileChannel mChannel;
+        private boolean mDirty = false;
+
+        Entry(String key) {
+            mDataFile = new File(mDir, key + DATA_SUFFIX);
+            mMetaFile = new File(mDir, key + META_SUFFIX);
+        }
+
+        /** Length of the stream, or -1 if we don't know it yet. */
+        synchronized long getLength() {
+            return mLength;
+        }
+
+        synchronized String getContentType() {
+            return mContentType;
+        }
+
+        /**
+         * Records what the server told us about the stream. If its length changed, it is not the
+         * stream we cached any more, so the bytes we have of it are dropped.
+         */
+        void setInfo(long length, String contentType) {
+            long dropped = 0;
+            synchronized (this) {
+                if (mLength == length && equal(mContentType, contentType)) return;
+                if (mLength >= 0 && mLength != length) {
+                    dropped = mRanges.size();
+                    mRanges.clear();
+                }
+                mLength = length;
+                mContentType = contentType;
+                mDirty = true;
+            }
+            added(-dropped);
+        }
+
+        synchronized boolean isComplete() {
+            return mLength >= 0 && mRanges.covers(mLength);
+        }
+
+        /** See {@link ByteRanges#coveredEnd}. */
+        synchronized long coveredEnd(long position) {
+            return mRanges.coveredEnd(position);
+        }
+
+        /** See {@link ByteRanges#nextStart}. */
+        synchronized long nextStart(long position) {
+            return mRanges.nextStart(position);
+        }
+
+        /** Reads cached bytes at the given position. They must be covered. */
+        int read(ByteBuffer buffer, long position) throws IOException {
+            return mChannel.read(buffer, position);
+        }
+
+        /** Stores bytes we got from the server at the given position. */
+        void write(ByteBuffer buffer, long position) throws IOException {
+            long start = position;
+            while (buffer.hasRemaining()) {
+                position += mChannel.write(buffer, position);
+            }
+            long added;
+            synchronized (this) {
+                added = mRanges.add(start, position);
+                mDirty = true;
+            }
+            added(added);
+        }
+
+        synchronized boolean isInUse() {
+            return mUsers > 0;
+        }
+
+        private synchronized void acquire() throws IOException {
+            if (mUsers == 0) {
+                mFile = new RandomAccessFile(mDataFile, "rw");
+                mChannel = mFile.getChannel();
+                mMetaFile.setLastModified(System.currentTimeMillis());
+            }
+            mUsers++;
+        }
+
+        private synchronized void release() {
+            if (--mUsers > 0) return;
+            try {
+                // the data has to be on disk before the metadata says it's there
+                if (mDirty) {
+                    mChannel.force(false);
+                    writeMetadata();
+                    mDirty = false;
+                }
+            } catch (IOException e) {
+                // we'll just fetch those bytes again
+                mMetaFile.delete();
+            } finally {
+                try {
+                    mFile.close();
+                } catch (IOException e) {
+                    // nothing left to do with it
+                }
+                mFile = null;
+                mChannel = null;
+            }
+        }
+
+        /** Deletes the files of the entry, and returns how many cached bytes went with them. */
+        private synchronized long delete() {
+            mMetaFile.delete();
+            mDataFile.delete();
+            return mRanges.size();
+        }
+
+        private void writeMetadata() throws IOException {
+            File tmp = new File(mMetaFile.getPath() + ".tmp");
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(mUrl);
+                out.writeLong(mLength);
+                out.writeUTF(mContentType != null ? mContentType : "");
+                out.writeInt(mRanges.count());
+                for (int i = 0; i < mRanges.count(); i++) {
+                    out.writeLong(mRanges.getStart(i));
+                    out.writeLong(mRanges.getEnd(i));
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+            if (!tmp.renameTo(mMetaFile)) {
+                tmp.delete();
+                throw new IOException("Could not rename " + tmp + " to " + mMetaFile);
+            }
+        }
+
+        /** Loads the metadata file. Returns false if it is missing or not valid. */
+        private boolean readMetadata() {
+            if (!mDataFile.exists()) return false;
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mMetaFile)));
+                try {
+                    if (in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+                    mUrl = in.readUTF();
+                    mLength = in.readLong();
+                    mContentType = in.readUTF();
+                    if (mContentType.length() == 0) mContentType = null;
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        mRanges.add(in.readLong(), in.readLong());
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            return keyOf(mUrl).equals(mMetaFile.getName().substring(0,
+                    mMetaFile.getName().length() - META_SUFFIX.length()));
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,36 @@
+package com.max.player.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+
+/**
+ * The one thread that library scans and other long-running chores run on, at background
+ * priority so they never compete with audio decoding for the CPU. Tasks run one at a time, in
+ * order; at most {@link #QUEUE_CAPACITY} can wait, and submitting more than that throws
+ * RejectedExecutionException rather than letting work pile up.
+ */
+public class BackgroundExecutor {
+    public static final int QUEUE_CAPACITY = 8;
+
+    private static final ExecutorService sExecutor = new ThreadPoolExecutor(1, 1, 0,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY),
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "Background");
+                }
+            });
+
+    public static ExecutorService get() {
+        return sExecutor;
+    }
+}
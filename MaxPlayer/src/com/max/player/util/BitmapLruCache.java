@@ -0,0 +1,74 @@
+package com.max.player.util;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bitmaps by long key, kept within a budget of bytes rather than a number of entries: one
+ * large bitmap can cost as much as a hundred small ones. When the budget is exceeded, the least
+ * recently used bitmaps are dropped (but not recycled, since someone may still be showing them).
+ *
+ * A key can also be cached as having no bitmap at all, so that we remember not to look for it
+ * again; such entries are charged a small fixed cost. Thread-safe.
+ *
+ * (android.util.LruCache would do most of this, but it needs API level 12.)
+ */
+public class BitmapLruCache {
+    private static final int MISSING_ENTRY_BYTES = 64;
+
+    private final long mMaxBytes;
+    private long mBytes = 0;
+
+    // least recently used first; null values are keys known to have no bitmap
+    private final LinkedHashMap<Long, Bitmap> mEntries = new LinkedHashMap<Long, Bitmap>(16,
+            0.75f, true);
+
+    public BitmapLruCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /** Whether there is an entry for the key, with or without a bitmap. */
+    public synchronized boolean contains(long key) {
+        return mEntries.containsKey(key);
+    }
+
+    /** Returns the bitmap of the key, or null if there is none or it is not cached. */
+    public synchronized Bitmap get(long key) {
+        return mEntries.get(key);
+    }
+
+    /** Caches the bitmap of the key; a null bitmap records that the key has none. */
+    public synchronized void put(long key, Bitmap bitmap) {
+        if (mEntries.containsKey(key)) mBytes -= sizeOf(mEntries.get(key));
+        mEntries.put(key, bitmap);
+        mBytes += sizeOf(bitmap);
+        trim();
+    }
+
+    /** Bytes used by the cached bitmaps. */
+    public synchronized long size() {
+        return mBytes;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<Long, Bitmap>> it = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            mBytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    // Bitmap.getByteCount() is not available before API level 12
+    private static long sizeOf(Bitmap bitmap) {
+        if (bitmap == null) return MISSING_ENTRY_BYTES;
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
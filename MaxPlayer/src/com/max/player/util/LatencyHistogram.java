@@ -0,0 +1,95 @@
+package com.max.player.util;
+
+import java.io.PrintWriter;
+
+/**
+ * Counts of latencies in a fixed set of buckets that grow roughly geometrically from 1 ms to 30
+ * s, plus one for anything slower. Recording a value is a short search and an increment, with no
+ * allocation, so it can be done on the playback path. Percentiles come out as the upper bound of
+ * the bucket they fall in (capped at the largest value seen), which is as precise as the bucket
+ * widths: within about half of the value.
+ *
+ * Not thread-safe.
+ */
+public class LatencyHistogram {
+    // inclusive upper bound of each bucket but the last, in ms
+    private static final long[] BOUNDS_MS = {
+            1, 2, 3, 5, 7, 10, 15, 20, 30, 50, 70, 100, 150, 200, 300, 500, 700, 1000, 1500,
+            2000, 3000, 5000, 7000, 10000, 15000, 20000, 30000
+    };
+
+    private final int[] mCounts = new int[BOUNDS_MS.length + 1];
+    private int mCount = 0;
+    private long mSum = 0;
+    private long mMax = 0;
+
+    public void record(long ms) {
+        if (ms < 0) ms = 0;
+        int low = 0;
+        int high = BOUNDS_MS.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (BOUNDS_MS[mid] < ms) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        mCounts[low]++;
+        mCount++;
+        mSum += ms;
+        if (ms > mMax) mMax = ms;
+    }
+
+    public int count() {
+        return mCount;
+    }
+
+    public long max() {
+        return mMax;
+    }
+
+    public long mean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /** Returns the latency that the given fraction (0 to 1) of the values are at or below. */
+    public long percentile(double fraction) {
+        if (mCount == 0) return 0;
+        long rank = (long) Math.ceil(fraction * mCount);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) return i < BOUNDS_MS.length ? Math.min(BOUNDS_MS[i], mMax) : mMax;
+        }
+        return mMax;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mCounts.length; i++) mCounts[i] = 0;
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    /** Prints one line: the count, p50, p90, p99, mean and max, in ms. */
+    public void dump(PrintWriter writer, String label) {
+        writer.print(label);
+        writer.print(": n=");
+        writer.print(mCount);
+        if (mCount > 0) {
+            writer.print(" p50=");
+            writer.print(percentile(0.5));
+            writer.print(" p90=");
+            writer.print(percentile(0.9));
+            writer.print(" p99=");
+            writer.print(percentile(0.99));
+            writer.print(" mean=");
+            writer.print(mean());
+            writer.print(" max=");
+            writer.print(mMax);
+        }
+        writer.println();
+    }
+}
@@ -0,0 +1,108 @@
+package com.max.player.util;
+
+/**
+ * A map from long keys to non-negative int values, stored in two primitive arrays with open
+ * addressing. Unlike a HashMap<Long, Integer> it does not allocate an entry and two boxes for
+ * every mapping, which matters when there is one mapping per track in a large library.
+ */
+public class LongIntMap {
+    private static final int EMPTY = -1;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mSize;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    public LongIntMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) capacity <<= 1;
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        java.util.Arrays.fill(mValues, EMPTY);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the value mapped to the key, or -1 if there is none. */
+    public int get(long key) {
+        int mask = mKeys.length - 1;
+        for (int slot = hash(key) & mask; mValues[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (mKeys[slot] == key) return mValues[slot];
+        }
+        return EMPTY;
+    }
+
+    /** Maps the key to the given value, which must not be negative. */
+    public void put(long key, int value) {
+        if (value < 0) throw new IllegalArgumentException("Negative value: " + value);
+        if ((mSize + 1) * 2 > mKeys.length) grow();
+
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mValues[slot] != EMPTY) {
+            if (mKeys[slot] == key) {
+                mValues[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mSize++;
+    }
+
+    /** Removes the mapping for the key. Returns the value it had, or -1 if there was none. */
+    public int remove(long key) {
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mValues[slot] != EMPTY && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        int value = mValues[slot];
+        if (value == EMPTY) return EMPTY;
+
+        // shift back the entries that follow in the probe run, so lookups never stop early at
+        // the hole we leave
+        int hole = slot;
+        for (slot = (slot + 1) & mask; mValues[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int home = hash(mKeys[slot]) & mask;
+            boolean movable = hole <= slot ? (home <= hole || home > slot)
+                    : (home <= hole && home > slot);
+            if (movable) {
+                mKeys[hole] = mKeys[slot];
+                mValues[hole] = mValues[slot];
+                hole = slot;
+            }
+        }
+        mValues[hole] = EMPTY;
+        mSize--;
+        return value;
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(mValues, EMPTY);
+        mSize = 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = mKeys;
+        int[] oldValues = mValues;
+        mKeys = new long[oldKeys.length * 2];
+        mValues = new int[oldValues.length * 2];
+        java.util.Arrays.fill(mValues, EMPTY);
+        mSize = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,146 @@
+package com.max.player.util;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Measures the integrated loudness of a piece of audio, in LUFS, the way ITU-R BS.1770 (and EBU
+ * R128) has it: each channel goes through the K-weighting filter, the mean square is taken over
+ * 400ms blocks that overlap by 75%, and the blocks are gated twice, at -70 LUFS and then 10 LU
+ * below the loudness of what passed the first gate.
+ *
+ * The blocks are not kept; each one goes into a histogram of 0.1 LU bins, which also holds the
+ * sum of the blocks' energies, so the meter takes the same few kilobytes for a song as for an
+ * hour-long mix.
+ */
+public class LoudnessMeter {
+    private static final double ABSOLUTE_GATE = -70.0; // LUFS
+    private static final double RELATIVE_GATE = -10.0; // LU below the absolute-gated loudness
+    private static final double MAX_LOUDNESS = 10.0; // LUFS; louder blocks go in the top bin
+    private static final double BIN_WIDTH = 0.1; // LU
+    private static final int BIN_COUNT = (int) ((MAX_LOUDNESS - ABSOLUTE_GATE) / BIN_WIDTH);
+
+    private static final int SUB_BLOCKS = 4; // 100ms steps to a 400ms block
+
+    private final int mChannels;
+    private final double[] mWeights;
+
+    // K-weighting: a high shelf, then a high pass, as two biquads per channel
+    private final double mShelfB0, mShelfB1, mShelfB2, mShelfA1, mShelfA2;
+    private final double mPassA1, mPassA2;
+    private final double[] mShelfZ1, mShelfZ2, mPassZ1, mPassZ2;
+
+    private final int mSubBlockFrames;
+    private int mFramesInSubBlock = 0;
+    private double mSubBlockSum = 0;
+    private final double[] mSubBlockSums = new double[SUB_BLOCKS];
+    private int mSubBlocks = 0; // completed so far
+
+    private final long[] mBinCounts = new long[BIN_COUNT];
+    private final double[] mBinEnergies = new double[BIN_COUNT];
+
+    public LoudnessMeter(int sampleRate, int channels) {
+        mChannels = channels;
+        mWeights = new double[channels];
+        for (int c = 0; c < channels; c++) {
+            // in the usual 5.1 order, the LFE channel doesn't count and the surrounds count more
+            if (channels >= 6 && c == 3) mWeights[c] = 0;
+            else if (channels >= 6 && (c == 4 || c == 5)) mWeights[c] = 1.41;
+            else mWeights[c] = 1.0;
+        }
+
+        // the filter coefficients of BS.1770, worked out for the given sample rate
+        double f0 = 1681.974450955533;
+        double gain = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double vh = Math.pow(10, gain / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        mShelfB0 = (vh + vb * k / q + k * k) / a0;
+        mShelfB1 = 2 * (k * k - vh) / a0;
+        mShelfB2 = (vh - vb * k / q + k * k) / a0;
+        mShelfA1 = 2 * (k * k - 1) / a0;
+        mShelfA2 = (1 - k / q + k * k) / a0;
+
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / sampleRate);
+        a0 = 1 + k / q + k * k;
+        mPassA1 = 2 * (k * k - 1) / a0;
+        mPassA2 = (1 - k / q + k * k) / a0;
+
+        mShelfZ1 = new double[channels];
+        mShelfZ2 = new double[channels];
+        mPassZ1 = new double[channels];
+        mPassZ2 = new double[channels];
+        mSubBlockFrames = Math.max(1, sampleRate / 10);
+    }
+
+    /** Takes interleaved 16-bit samples, from the buffer's position to its limit. */
+    public void process(ShortBuffer samples) {
+        int channels = mChannels;
+        while (samples.remaining() >= channels) {
+            double frameSum = 0;
+            for (int c = 0; c < channels; c++) {
+                double x = samples.get() / 32768.0;
+
+                // direct form II transposed
+                double y = mShelfB0 * x + mShelfZ1[c];
+                mShelfZ1[c] = mShelfB1 * x - mShelfA1 * y + mShelfZ2[c];
+                mShelfZ2[c] = mShelfB2 * x - mShelfA2 * y;
+
+                double z = y + mPassZ1[c]; // the high pass has b = (1, -2, 1)
+                mPassZ1[c] = -2 * y - mPassA1 * z + mPassZ2[c];
+                mPassZ2[c] = y - mPassA2 * z;
+
+                frameSum += mWeights[c] * z * z;
+            }
+            mSubBlockSum += frameSum;
+            if (++mFramesInSubBlock == mSubBlockFrames) endSubBlock();
+        }
+    }
+
+    private void endSubBlock() {
+        mSubBlockSums[mSubBlocks % SUB_BLOCKS] = mSubBlockSum / mFramesInSubBlock;
+        mSubBlocks++;
+        mSubBlockSum = 0;
+        mFramesInSubBlock = 0;
+        if (mSubBlocks < SUB_BLOCKS) return;
+
+        double energy = 0;
+        for (int i = 0; i < SUB_BLOCKS; i++) energy += mSubBlockSums[i];
+        energy /= SUB_BLOCKS;
+        double loudness = loudnessOf(energy);
+        if (loudness <= ABSOLUTE_GATE) return;
+        int bin = Math.min(BIN_COUNT - 1, (int) ((loudness - ABSOLUTE_GATE) / BIN_WIDTH));
+        mBinCounts[bin]++;
+        mBinEnergies[bin] += energy;
+    }
+
+    /**
+     * Returns the integrated loudness of everything processed so far, in LUFS, or negative
+     * infinity if nothing was loud enough to pass the gates (or shorter than one block).
+     */
+    public double getIntegratedLoudness() {
+        double ungated = meanEnergy(0);
+        if (ungated <= 0) return Double.NEGATIVE_INFINITY;
+        double threshold = loudnessOf(ungated) + RELATIVE_GATE;
+        int firstBin = (int) Math.max(0, Math.ceil((threshold - ABSOLUTE_GATE) / BIN_WIDTH));
+        double gated = meanEnergy(firstBin);
+        return gated <= 0 ? Double.NEGATIVE_INFINITY : loudnessOf(gated);
+    }
+
+    private double meanEnergy(int firstBin) {
+        long count = 0;
+        double energy = 0;
+        for (int bin = firstBin; bin < BIN_COUNT; bin++) {
+            count += mBinCounts[bin];
+            energy += mBinEnergies[bin];
+        }
+        return count == 0 ? 0 : energy / count;
+    }
+
+    private static double loudnessOf(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+}
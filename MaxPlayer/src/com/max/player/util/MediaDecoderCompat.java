@@ -0,0 +1,266 @@
+package com.max.player.util;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.util.Log;
+
+/**
+ * Decodes the audio of a file to 16-bit PCM with MediaExtractor and MediaCodec, for looking at
+ * the samples rather than playing them.
+ */
+public class MediaDecoderCompat {
+    // Backwards compatibility code (classes available as of API Level 16)
+    private static final String TAG = "MediaDecoderCompat";
+
+    // how long to wait for a codec buffer before looking at the other side (us)
+    private static final long TIMEOUT_US = 10000;
+
+    // from MediaCodec
+    private static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    private static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+    private static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    static {
+        initializeStaticCompatMethods();
+    }
+
+    static Constructor<?> sConstructorMediaExtractor;
+    static Method sMethodSetDataSource;
+    static Method sMethodGetTrackCount;
+    static Method sMethodGetTrackFormat;
+    static Method sMethodSelectTrack;
+    static Method sMethodReadSampleData;
+    static Method sMethodGetSampleTime;
+    static Method sMethodAdvance;
+    static Method sMethodReleaseExtractor;
+
+    static Method sMethodGetString;
+    static Method sMethodGetInteger;
+
+    static Method sMethodCreateDecoderByType;
+    static Method sMethodConfigure;
+    static Method sMethodStart;
+    static Method sMethodStop;
+    static Method sMethodReleaseCodec;
+    static Method sMethodGetInputBuffers;
+    static Method sMethodGetOutputBuffers;
+    static Method sMethodGetOutputFormat;
+    static Method sMethodDequeueInputBuffer;
+    static Method sMethodQueueInputBuffer;
+    static Method sMethodDequeueOutputBuffer;
+    static Method sMethodReleaseOutputBuffer;
+
+    static Constructor<?> sConstructorBufferInfo;
+    static Field sFieldBufferInfoOffset;
+    static Field sFieldBufferInfoSize;
+    static Field sFieldBufferInfoFlags;
+
+    static void initializeStaticCompatMethods() {
+        try {
+            Class<?> extractorClass = Class.forName("android.media.MediaExtractor");
+            Class<?> formatClass = Class.forName("android.media.MediaFormat");
+            Class<?> codecClass = Class.forName("android.media.MediaCodec");
+            Class<?> cryptoClass = Class.forName("android.media.MediaCrypto");
+            Class<?> surfaceClass = Class.forName("android.view.Surface");
+            Class<?> bufferInfoClass = Class.forName("android.media.MediaCodec$BufferInfo");
+
+            sConstructorMediaExtractor = extractorClass.getConstructor();
+            sMethodSetDataSource = extractorClass.getMethod("setDataSource", String.class);
+            sMethodGetTrackCount = extractorClass.getMethod("getTrackCount");
+            sMethodGetTrackFormat = extractorClass.getMethod("getTrackFormat", int.class);
+            sMethodSelectTrack = extractorClass.getMethod("selectTrack", int.class);
+            sMethodReadSampleData = extractorClass.getMethod("readSampleData", ByteBuffer.class,
+                    int.class);
+            sMethodGetSampleTime = extractorClass.getMethod("getSampleTime");
+            sMethodAdvance = extractorClass.getMethod("advance");
+            sMethodReleaseExtractor = extractorClass.getMethod("release");
+
+            sMethodGetString = formatClass.getMethod("getString", String.class);
+            sMethodGetInteger = formatClass.getMethod("getInteger", String.class);
+
+            sMethodCreateDecoderByType = codecClass.getMethod("createDecoderByType",
+                    String.class);
+            sMethodConfigure = codecClass.getMethod("configure", formatClass, surfaceClass,
+                    cryptoClass, int.class);
+            sMethodStart = codecClass.getMethod("start");
+            sMethodStop = codecClass.getMethod("stop");
+            sMethodReleaseCodec = codecClass.getMethod("release");
+            sMethodGetInputBuffers = codecClass.getMethod("getInputBuffers");
+            sMethodGetOutputBuffers = codecClass.getMethod("getOutputBuffers");
+            sMethodGetOutputFormat = codecClass.getMethod("getOutputFormat");
+            sMethodDequeueInputBuffer = codecClass.getMethod("dequeueInputBuffer", long.class);
+            sMethodQueueInputBuffer = codecClass.getMethod("queueInputBuffer", int.class,
+                    int.class, int.class, long.class, int.class);
+            sMethodDequeueOutputBuffer = codecClass.getMethod("dequeueOutputBuffer",
+                    bufferInfoClass, long.class);
+            sMethodReleaseOutputBuffer = codecClass.getMethod("releaseOutputBuffer", int.class,
+                    boolean.class);
+
+            sConstructorBufferInfo = bufferInfoClass.getConstructor();
+            sFieldBufferInfoOffset = bufferInfoClass.getField("offset");
+            sFieldBufferInfoSize = bufferInfoClass.getField("size");
+            sFieldBufferInfoFlags = bufferInfoClass.getField("flags");
+        } catch (ClassNotFoundException e) {
+            // Silently fail when running on an OS before API level 16.
+            sConstructorMediaExtractor = null;
+        } catch (NoSuchMethodException e) {
+            sConstructorMediaExtractor = null;
+        } catch (NoSuchFieldException e) {
+            sConstructorMediaExtractor = null;
+        }
+    }
+
+    /** Whether {@link #decode} can decode anything on this OS. */
+    public static boolean isAvailable() {
+        return sConstructorMediaExtractor != null;
+    }
+
+    /** Receives the decoded audio, on the decoding thread. */
+    public interface PcmListener {
+        /** Gives the format of the samples to come; called again if it changes on the way. */
+        public void onFormat(int sampleRate, int channels);
+
+        /** Gives the next interleaved samples. Returns whether to go on decoding. */
+        public boolean onSamples(ShortBuffer samples);
+    }
+
+    /**
+     * Decodes the first audio track of the file at the given path, handing the samples to the
+     * listener as they come. Returns whether the whole track was decoded: false if the file has
+     * no audio track, or the listener stopped it.
+     */
+    public static boolean decode(String path, PcmListener listener) throws IOException {
+        if (!isAvailable()) return false;
+
+        Object extractor = newInstance(sConstructorMediaExtractor);
+        Object codec = null;
+        try {
+            invoke(sMethodSetDataSource, extractor, path);
+            int tracks = (Integer) invoke(sMethodGetTrackCount, extractor);
+            Object format = null;
+            String mime = null;
+            for (int i = 0; i < tracks && format == null; i++) {
+                Object trackFormat = invoke(sMethodGetTrackFormat, extractor, i);
+                String trackMime = (String) invoke(sMethodGetString, trackFormat, "mime");
+                if (trackMime != null && trackMime.startsWith("audio/")) {
+                    invoke(sMethodSelectTrack, extractor, i);
+                    format = trackFormat;
+                    mime = trackMime;
+                }
+            }
+            if (format == null) return false;
+
+            codec = invoke(sMethodCreateDecoderByType, null, mime);
+            invoke(sMethodConfigure, codec, format, null, null, 0);
+            invoke(sMethodStart, codec);
+            listener.onFormat((Integer) invoke(sMethodGetInteger, format, "sample-rate"),
+                    (Integer) invoke(sMethodGetInteger, format, "channel-count"));
+
+            ByteBuffer[] inputs = (ByteBuffer[]) invoke(sMethodGetInputBuffers, codec);
+            ByteBuffer[] outputs = (ByteBuffer[]) invoke(sMethodGetOutputBuffers, codec);
+            Object info = newInstance(sConstructorBufferInfo);
+            boolean inputDone = false;
+            while (true) {
+                if (!inputDone) {
+                    int index = (Integer) invoke(sMethodDequeueInputBuffer, codec, TIMEOUT_US);
+                    if (index >= 0) {
+                        int size = (Integer) invoke(sMethodReadSampleData, extractor,
+                                inputs[index], 0);
+                        if (size < 0) {
+                            invoke(sMethodQueueInputBuffer, codec, index, 0, 0, 0L,
+                                    BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            invoke(sMethodQueueInputBuffer, codec, index, 0, size,
+                                    invoke(sMethodGetSampleTime, extractor), 0);
+                            invoke(sMethodAdvance, extractor);
+                        }
+                    }
+                }
+
+                int index = (Integer) invoke(sMethodDequeueOutputBuffer, codec, info,
+                        TIMEOUT_US);
+                if (index >= 0) {
+                    int offset = getInt(sFieldBufferInfoOffset, info);
+                    int size = getInt(sFieldBufferInfoSize, info);
+                    int flags = getInt(sFieldBufferInfoFlags, info);
+                    ByteBuffer output = outputs[index];
+                    output.clear();
+                    output.position(offset);
+                    output.limit(offset + size);
+                    boolean more = listener.onSamples(output.slice()
+                            .order(ByteOrder.nativeOrder()).asShortBuffer());
+                    invoke(sMethodReleaseOutputBuffer, codec, index, false);
+                    if ((flags & BUFFER_FLAG_END_OF_STREAM) != 0) return true;
+                    if (!more) return false;
+                } else if (index == INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputs = (ByteBuffer[]) invoke(sMethodGetOutputBuffers, codec);
+                } else if (index == INFO_OUTPUT_FORMAT_CHANGED) {
+                    Object outputFormat = invoke(sMethodGetOutputFormat, codec);
+                    listener.onFormat(
+                            (Integer) invoke(sMethodGetInteger, outputFormat, "sample-rate"),
+                            (Integer) invoke(sMethodGetInteger, outputFormat, "channel-count"));
+                }
+            }
+        } finally {
+            if (codec != null) {
+                try {
+                    invoke(sMethodStop, codec);
+                } catch (IOException e) {
+                    // it may not have started; releasing it is what matters
+                }
+                release(sMethodReleaseCodec, codec);
+            }
+            release(sMethodReleaseExtractor, extractor);
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args)
+            throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            // the codec throws IOExceptions, IllegalStateExceptions and such alike
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(method.getName() + " failed: " + cause);
+        } catch (IllegalAccessException e) {
+            throw new IOException("IllegalAccessException invoking " + method.getName());
+        }
+    }
+
+    private static Object newInstance(Constructor<?> constructor) throws IOException {
+        try {
+            return constructor.newInstance();
+        } catch (InvocationTargetException e) {
+            throw new IOException("Failed to create decoder: " + e.getCause());
+        } catch (InstantiationException e) {
+            throw new IOException("Failed to create decoder: " + e);
+        } catch (IllegalAccessException e) {
+            throw new IOException("Failed to create decoder: " + e);
+        }
+    }
+
+    private static int getInt(Field field, Object target) throws IOException {
+        try {
+            return field.getInt(target);
+        } catch (IllegalAccessException e) {
+            throw new IOException("IllegalAccessException reading " + field.getName());
+        }
+    }
+
+    private static void release(Method method, Object target) {
+        try {
+            invoke(method, target);
+        } catch (IOException e) {
+            Log.w(TAG, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.max.player.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import android.media.MediaPlayer;
+import android.util.Log;
+
+public class MediaPlayerCompat {
+    // Backwards compatibility code (methods available as of API Level 16)
+    private static final String TAG = "MediaPlayerCompat";
+
+    static {
+        initializeStaticCompatMethods();
+    }
+
+    static Method sMethodSetNextMediaPlayer;
+
+    static void initializeStaticCompatMethods() {
+        try {
+            sMethodSetNextMediaPlayer = MediaPlayer.class.getMethod("setNextMediaPlayer",
+                    new Class[] { MediaPlayer.class });
+        } catch (NoSuchMethodException e) {
+            // Silently fail when running on an OS before API level 16.
+        }
+    }
+
+    /** Whether {@link #setNextMediaPlayer} can chain players on this OS. */
+    public static boolean hasSetNextMediaPlayer() {
+        return sMethodSetNextMediaPlayer != null;
+    }
+
+    /**
+     * Sets the player to start when the given one completes, so there is no gap between them.
+     * The next player must be prepared. Pass null to undo it. Returns whether the players were
+     * chained, which is never the case before API level 16.
+     */
+    public static boolean setNextMediaPlayer(MediaPlayer player, MediaPlayer next) {
+        if (sMethodSetNextMediaPlayer == null)
+            return false;
+
+        try {
+            sMethodSetNextMediaPlayer.invoke(player, next);
+            return true;
+        } catch (InvocationTargetException e) {
+            // The player was not in a state that allows chaining; we'll just switch over when
+            // it completes.
+            Log.w(TAG, "setNextMediaPlayer failed: " + e.getCause());
+            return false;
+        } catch (IllegalAccessException e) {
+            Log.e(TAG, "IllegalAccessException invoking setNextMediaPlayer.");
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
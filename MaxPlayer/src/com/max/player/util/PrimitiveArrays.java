@@ -0,0 +1,32 @@
+package com.max.player.util;
+
+/**
+ * Growing the primitive arrays, and the string ones, that the catalog, its indexes and the tag
+ * table keep their columns in.
+ * Arrays.copyOf() would do, but it is not available before API level 9.
+ */
+public final class PrimitiveArrays {
+    private PrimitiveArrays() {
+    }
+
+    /** Returns a copy of the array, cut short or padded with zeros to the given length. */
+    public static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /** Returns a copy of the array, cut short or padded with zeros to the given length. */
+    public static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /** Returns a copy of the array, cut short or padded with nulls to the given length. */
+    public static String[] copyOf(String[] array, int length) {
+        String[] copy = new String[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+}
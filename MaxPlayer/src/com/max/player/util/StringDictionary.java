@@ -0,0 +1,47 @@
+package com.max.player.util;
+
+import java.util.HashMap;
+
+/**
+ * Assigns a small int code to each distinct string, so that values repeated across many records
+ * (artist and album names, for instance) are stored once and referenced by code. Codes are
+ * dense and never reused; null is encoded as -1.
+ */
+public class StringDictionary {
+    private final HashMap<String, Integer> mCodes = new HashMap<String, Integer>();
+    private String[] mValues = new String[16];
+    private int mSize;
+
+    /** Returns the code for the value, adding it to the dictionary if it is new. */
+    public int encode(String value) {
+        if (value == null) return -1;
+        Integer code = mCodes.get(value);
+        if (code != null) return code;
+
+        if (mSize == mValues.length) {
+            String[] grown = new String[mSize * 2];
+            System.arraycopy(mValues, 0, grown, 0, mSize);
+            mValues = grown;
+        }
+        mValues[mSize] = value;
+        mCodes.put(value, mSize);
+        return mSize++;
+    }
+
+    /** Returns the code for the value, or -1 if it is not in the dictionary. */
+    public int codeOf(String value) {
+        if (value == null) return -1;
+        Integer code = mCodes.get(value);
+        return code != null ? code : -1;
+    }
+
+    /** Returns the value for a code previously returned by {@link #encode(String)}. */
+    public String decode(int code) {
+        return code < 0 ? null : mValues[code];
+    }
+
+    /** Number of distinct values in the dictionary. */
+    public int size() {
+        return mSize;
+    }
+}